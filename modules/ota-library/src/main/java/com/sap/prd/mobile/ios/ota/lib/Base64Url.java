@@ -0,0 +1,331 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Base64 codec for URL path segments. Encodes UTF-8 strings with the URL-safe alphabet ('-' and '_')
+ * without padding, the result never needs to be URL encoded. Decodes in a single pass from any range
+ * of a {@link CharSequence}, e.g. the request URI, into a byte array without intermediate strings.
+ * The decoder accepts both alphabets, padding and percent escapes, so segments encoded by former
+ * versions with the standard alphabet and URL encoded afterwards remain valid.
+ */
+public final class Base64Url
+{
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+    .toCharArray();
+
+  private static final char[] STANDARD_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+    .toCharArray();
+
+  private static final int PADDING = -2;
+
+  /** value of each ASCII character: 0-63 for both alphabets, PADDING for '=', otherwise -1 */
+  private static final byte[] VALUES = new byte[128];
+
+  static {
+    Arrays.fill(VALUES, (byte) -1);
+    for (int i = 0; i < 64; i++) {
+      VALUES[ALPHABET[i]] = (byte) i;
+      VALUES[STANDARD_ALPHABET[i]] = (byte) i;
+    }
+    VALUES['='] = PADDING;
+  }
+
+  /** larger buffers are not kept by the threads */
+  private static final int MAX_BUFFER_SIZE = 4096;
+
+  private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue()
+    {
+      return new byte[256];
+    }
+  };
+
+  private Base64Url()
+  {
+  }
+
+  /**
+   * @return the UTF-8 bytes of <code>string</code> encoded with the URL-safe alphabet without
+   *         padding, or null if <code>string</code> is null
+   */
+  public static String encode(String string)
+  {
+    if (string == null) {
+      return null;
+    }
+    return new String(encodeUtf8(string, ALPHABET));
+  }
+
+  /**
+   * @return the bytes encoded with the URL-safe alphabet without padding
+   */
+  public static String encode(byte[] bytes, int offset, int length)
+  {
+    char[] out = new char[(length * 4 + 2) / 3];
+    int pos = 0;
+    int end = offset + length;
+    int i = offset;
+    for (; i + 2 < end; i += 3) {
+      int buffered = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | bytes[i + 2] & 0xff;
+      out[pos++] = ALPHABET[buffered >> 18];
+      out[pos++] = ALPHABET[buffered >> 12 & 0x3f];
+      out[pos++] = ALPHABET[buffered >> 6 & 0x3f];
+      out[pos++] = ALPHABET[buffered & 0x3f];
+    }
+    int buffered = 0;
+    for (int j = i; j < end; j++) {
+      buffered = buffered << 8 | bytes[j] & 0xff;
+    }
+    encodeRest(buffered, end - i, ALPHABET, out, pos);
+    return new String(out);
+  }
+
+  /**
+   * Encodes like former versions: the UTF-8 bytes of <code>string</code> with the standard alphabet
+   * and padding, URL encoded ('+', '/' and '=' as %2B, %2F and %3D). Only needed where the exact
+   * former output matters, e.g. for hashes of it.
+   * 
+   * @return the encoded string or null if <code>string</code> is null
+   */
+  public static String encodeStandard(String string)
+  {
+    if (string == null) {
+      return null;
+    }
+    char[] base64 = encodeUtf8(string, STANDARD_ALPHABET);
+    StringBuilder sb = new StringBuilder(base64.length + 16);
+    for (char c : base64) {
+      if (c == '+') sb.append("%2B");
+      else if (c == '/') sb.append("%2F");
+      else sb.append(c);
+    }
+    for (int padding = (4 - base64.length % 4) % 4; padding > 0; padding--) {
+      sb.append("%3D");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Encodes the UTF-8 bytes of <code>string</code> without creating them as array. Unpaired
+   * surrogates are replaced by '?' like {@link String#getBytes(Charset)} does.
+   */
+  private static char[] encodeUtf8(String string, char[] alphabet)
+  {
+    char[] out = new char[(utf8Length(string) * 4 + 2) / 3];
+    int pos = 0;
+    int buffered = 0;
+    int count = 0;
+    for (int i = 0; i < string.length(); i++) {
+      int c = string.charAt(i);
+      int length;
+      if (c < 0x80) {
+        length = 1;
+      }
+      else if (c < 0x800) {
+        c = (0xc0 | c >> 6) << 8 | 0x80 | c & 0x3f;
+        length = 2;
+      }
+      else if (Character.isHighSurrogate((char) c) && i + 1 < string.length()
+            && Character.isLowSurrogate(string.charAt(i + 1))) {
+        int cp = Character.toCodePoint((char) c, string.charAt(++i));
+        c = (0xf0 | cp >> 18) << 24 | (0x80 | cp >> 12 & 0x3f) << 16 | (0x80 | cp >> 6 & 0x3f) << 8 | 0x80
+              | cp & 0x3f;
+        length = 4;
+      }
+      else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        c = '?';
+        length = 1;
+      }
+      else {
+        c = (0xe0 | c >> 12) << 16 | (0x80 | c >> 6 & 0x3f) << 8 | 0x80 | c & 0x3f;
+        length = 3;
+      }
+      for (int j = length - 1; j >= 0; j--) {
+        buffered = buffered << 8 | c >>> 8 * j & 0xff;
+        if (++count == 3) {
+          out[pos++] = alphabet[buffered >> 18 & 0x3f];
+          out[pos++] = alphabet[buffered >> 12 & 0x3f];
+          out[pos++] = alphabet[buffered >> 6 & 0x3f];
+          out[pos++] = alphabet[buffered & 0x3f];
+          buffered = 0;
+          count = 0;
+        }
+      }
+    }
+    encodeRest(buffered, count, alphabet, out, pos);
+    return out;
+  }
+
+  /**
+   * @return the number of bytes of <code>string</code> encoded with UTF-8
+   */
+  private static int utf8Length(String string)
+  {
+    int length = string.length();
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c < 0x80) {
+        continue;
+      }
+      else if (c < 0x800) {
+        length += 1;
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+            && Character.isLowSurrogate(string.charAt(i + 1))) {
+        length += 2; //4 bytes for 2 chars
+        i++;
+      }
+      else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+        length += 2;
+      }
+    }
+    return length;
+  }
+
+  /** encodes the last one or two bytes of the input, without padding */
+  private static void encodeRest(int buffered, int count, char[] alphabet, char[] out, int pos)
+  {
+    if (count == 1) {
+      out[pos++] = alphabet[buffered >> 2 & 0x3f];
+      out[pos] = alphabet[buffered << 4 & 0x3f];
+    }
+    else if (count == 2) {
+      out[pos++] = alphabet[buffered >> 10 & 0x3f];
+      out[pos++] = alphabet[buffered >> 4 & 0x3f];
+      out[pos] = alphabet[buffered << 2 & 0x3f];
+    }
+  }
+
+  /**
+   * @return the maximum number of bytes {@link #decode(CharSequence, int, int, byte[], int)} writes
+   *         for <code>length</code> characters
+   */
+  public static int maxDecodedLength(int length)
+  {
+    return length * 3 / 4;
+  }
+
+  /**
+   * Decodes the characters from <code>start</code> (inclusive) to <code>end</code> (exclusive) of
+   * <code>chars</code> into <code>out</code>. Both alphabets are accepted, padding is ignored,
+   * percent escapes are decoded on the fly.
+   * 
+   * @param out
+   *          must have room for {@link #maxDecodedLength(int)} bytes after <code>offset</code>
+   * @return the number of decoded bytes or -1 if the characters are not valid
+   */
+  public static int decode(CharSequence chars, int start, int end, byte[] out, int offset)
+  {
+    int size = offset;
+    int buffered = 0;
+    int bits = 0;
+    for (int i = start; i < end; i++) {
+      if (bits == 0 && i + 4 <= end) {
+        //fast path for four characters of the alphabets
+        int c0 = chars.charAt(i);
+        int c1 = chars.charAt(i + 1);
+        int c2 = chars.charAt(i + 2);
+        int c3 = chars.charAt(i + 3);
+        if ((c0 | c1 | c2 | c3) < 128) {
+          int value = VALUES[c0] << 18 | VALUES[c1] << 12 | VALUES[c2] << 6 | VALUES[c3];
+          if (value >= 0) {
+            out[size++] = (byte) (value >> 16);
+            out[size++] = (byte) (value >> 8);
+            out[size++] = (byte) value;
+            i += 3;
+            continue;
+          }
+        }
+      }
+      int c = chars.charAt(i);
+      if (c == '%') {
+        if (i + 2 >= end) return -1;
+        int high = Character.digit(chars.charAt(i + 1), 16);
+        int low = Character.digit(chars.charAt(i + 2), 16);
+        if (high < 0 || low < 0) return -1;
+        c = high << 4 | low;
+        i += 2;
+      }
+      int value = c < 128 ? VALUES[c] : -1;
+      if (value == PADDING) continue;
+      if (value < 0) return -1;
+      buffered = buffered << 6 | value;
+      bits += 6;
+      if (bits >= 8) {
+        bits -= 8;
+        out[size++] = (byte) (buffered >> bits);
+      }
+    }
+    return size - offset;
+  }
+
+  /**
+   * Decodes the characters from <code>start</code> (inclusive) to <code>end</code> (exclusive) of
+   * <code>chars</code>, see {@link #decode(CharSequence, int, int, byte[], int)}, into a string. A
+   * buffer of the current thread is used for the bytes.
+   * 
+   * @return the UTF-8 decoded string
+   * @throws IllegalArgumentException
+   *           if the characters are not valid
+   */
+  public static String decode(CharSequence chars, int start, int end)
+  {
+    String string = decodeOrNull(chars, start, end);
+    if (string == null) throw new IllegalArgumentException("Invalid Base64: " + chars.subSequence(start, end));
+    return string;
+  }
+
+  /**
+   * Like {@link #decode(CharSequence, int, int)}, but returns null if the characters are not valid.
+   */
+  public static String decodeOrNull(CharSequence chars, int start, int end)
+  {
+    int max = maxDecodedLength(end - start);
+    byte[] buffer = BUFFER.get();
+    if (buffer.length < max) {
+      buffer = new byte[max];
+      if (max <= MAX_BUFFER_SIZE) BUFFER.set(buffer);
+    }
+    int length = decode(chars, start, end, buffer, 0);
+    return length < 0 ? null : new String(buffer, 0, length, UTF_8);
+  }
+
+  /**
+   * @return the decoded string or null if <code>string</code> is null
+   * @throws IllegalArgumentException
+   *           if the string is not valid
+   */
+  public static String decode(String string)
+  {
+    if (string == null) {
+      return null;
+    }
+    return decode(string, 0, string.length());
+  }
+
+}
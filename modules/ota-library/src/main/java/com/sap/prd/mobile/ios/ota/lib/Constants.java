@@ -26,6 +26,11 @@ public class Constants
   public final static String KEY_IPA_URL = "ipaUrl";
   public final static String KEY_PLIST_URL = "plistUrl";
   public final static String KEY_HTML_QRCODE_URL = "htmlQrcodeUrl";
+  public final static String KEY_HTML_QRCODE_SVG_URL = "htmlQrcodeSvgUrl";
+  public final static String KEY_HTML_QRCODE_INLINE = "htmlQrcodeInline";
+  public final static String KEY_PLIST_QRCODE_INLINE = "plistQrcodeInline";
+  public final static String KEY_HTML_QRCODE_MODULES = "htmlQrcodeModules";
+  public final static String KEY_PLIST_QRCODE_MODULES = "plistQrcodeModules";
   public static final String KEY_TITLE = "title";
   public static final String KEY_BUNDLE_IDENTIFIER = "bundleIdentifier";
   public static final String KEY_BUNDLE_VERSION = "bundleVersion";
@@ -33,10 +38,17 @@ public class Constants
   public static final String KEY_OTA_CLASSIFIER = "otaClassifier";
   public final static String KEY_ACTION = "action";
   public final static String KEY_QRCODE = "qrcode";
+  public final static String KEY_QRCODE_FORMAT = "qrcodeFormat";
   public final static String KEY_ITMS_REDIRECT = "itmsRedirect";
   public final static String KEY_HTML_URL = "htmlUrl";
   public static final String KEY_HTML_SERVICE_URL = "htmlServiceUrl";
   public static final String KEY_REMOVE_OUTER_FRAME = "removeOuterFrame";
   public static final String KEY_DEBUG = "debug";
+  public static final String KEY_INLINE_QRCODES = "inlineQrcodes";
+  public static final String KEY_COMPACT_URLS = "compactUrls";
+  public static final String KEY_CACHE_CONTROL_HTML = "cacheControlHtml";
+  public static final String KEY_CACHE_CONTROL_PLIST = "cacheControlPlist";
+  public static final String KEY_CACHE_CONTROL_QRCODE = "cacheControlQrcode";
+  public static final String KEY_CACHE_CONTROL_ITMS_REDIRECT = "cacheControlItmsRedirect";
   
 }
@@ -0,0 +1,769 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static java.util.logging.Level.WARNING;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Tier of a {@link RenderCache} on disk, it survives restarts and can be shared by several processes
+ * using the same directory, e.g. the nodes of a cluster on a shared volume. See
+ * {@link RenderCache#setDiskCache(DiskCache)}.<br/>
+ * Values are appended to a segment file, an open addressing hash index maps the SHA-1 of the keys to
+ * the records. Both files are memory-mapped. Writers append and publish entries while holding an
+ * exclusive lock of <code>&lt;name&gt;.lock</code>. Readers do not lock, they verify the key and the
+ * checksum of a record before returning it, an entry which is just being written or replaced is a
+ * miss.<br/>
+ * When the segment or the index is full the newest entries are copied into a new generation of both
+ * files (compaction) and the older entries are dropped. The current generation is recorded in the
+ * lock file, other processes switch to it with their next access.<br/>
+ * Requests do not wait for the disk: {@link #putAsync(RenderCache.Key, ByteBuffer)} hands values to
+ * a single writer thread, they are dropped if {@link #WRITE_QUEUE_CAPACITY} values are waiting.<br/>
+ * Only keys consisting of strings, numbers, booleans, enums and nested keys are stored, other parts
+ * (e.g. a template instance) have no stable representation across processes.
+ */
+public class DiskCache
+{
+
+  private static final Logger LOG = Logger.getLogger(DiskCache.class.getSimpleName());
+
+  private static final int VERSION = 1;
+
+  /** lock file: magic, version, current generation */
+  private static final int LOCK_MAGIC = 0x4f54414c;
+  private static final int LOCK_SIZE = 16;
+  private static final int LOCK_GENERATION = 8;
+
+  /** index file: magic, version, slots, count, tail of the segment, slots */
+  private static final int INDEX_MAGIC = 0x4f544149;
+  private static final int INDEX_SLOTS = 8;
+  private static final int INDEX_COUNT = 12;
+  private static final int INDEX_TAIL = 16;
+  private static final int INDEX_HEADER_SIZE = 32;
+
+  /** slot: first 16 bytes of the key digest, offset, length and CRC-32 of the value */
+  private static final int SLOT_SIZE = 32;
+
+  /** segment file: magic, version, records */
+  private static final int SEGMENT_MAGIC = 0x4f544153;
+  private static final int SEGMENT_HEADER_SIZE = 8;
+
+  /** record: key digest, length, value */
+  private static final int DIGEST_SIZE = 20;
+  private static final int RECORD_HEADER_SIZE = DIGEST_SIZE + 4;
+
+  private static final long LOCK_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * Values waiting for the writer thread, further values are dropped.
+   */
+  public static final int WRITE_QUEUE_CAPACITY = 256;
+
+  private final File directory;
+  private final String name;
+  private final int segmentSize;
+  private final int slots;
+
+  private final MappedByteBuffer lockHeader;
+  private RandomAccessFile lockFile;
+  private volatile Generation current;
+  private volatile boolean closed;
+  private final ThreadPoolExecutor writer;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong compactions = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong droppedWrites = new AtomicLong();
+
+  /**
+   * Opens the cache files in <code>directory</code>, they are created if they do not exist. The sizes
+   * are used for new files, existing files keep the sizes they have been created with.
+   * 
+   * @param name
+   *          prefix of the file names, each cache in a directory needs its own name
+   * @param segmentSize
+   *          size in bytes of the segment file holding the values
+   * @param maxEntries
+   *          number of entries the index can hold
+   */
+  public DiskCache(File directory, String name, long segmentSize, int maxEntries) throws IOException
+  {
+    if (segmentSize < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE || segmentSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+    }
+    if (maxEntries < 1) throw new IllegalArgumentException("Invalid number of entries: " + maxEntries);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create cache directory " + directory.getAbsolutePath());
+    }
+    this.directory = directory;
+    this.name = name;
+    this.segmentSize = (int) segmentSize;
+    int slots = Integer.highestOneBit(maxEntries + maxEntries / 3);
+    this.slots = slots < maxEntries + maxEntries / 3 ? slots << 1 : slots;
+    this.writer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(WRITE_QUEUE_CAPACITY), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+              Thread thread = new Thread(runnable, "ota-diskcache-" + DiskCache.this.name);
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    this.writer.allowCoreThreadTimeOut(true);
+
+    lockFile = new RandomAccessFile(new File(directory, name + ".lock"), "rw");
+    lockHeader = lockFile.getChannel().map(MapMode.READ_WRITE, 0, LOCK_SIZE);
+    synchronized (this) {
+      FileLock lock = lock();
+      if (lock == null) throw new IOException("Cache " + name + " in " + directory + " is locked");
+      try {
+        if (lockHeader.getInt(0) != LOCK_MAGIC || lockHeader.getInt(4) != VERSION) {
+          switchTo(create(1));
+          lockHeader.putInt(4, VERSION);
+          lockHeader.putInt(0, LOCK_MAGIC);
+        }
+        else {
+          try {
+            current = open(lockHeader.getLong(LOCK_GENERATION));
+          }
+          catch (IOException e) {
+            LOG.log(WARNING, "Cannot open cache " + name + " in " + directory + ", it is recreated", e);
+            switchTo(create(lockHeader.getLong(LOCK_GENERATION) + 1));
+          }
+        }
+        deleteStaleGenerations();
+      }
+      finally {
+        lock.release();
+      }
+    }
+  }
+
+  /**
+   * @return the value stored for <code>key</code> or null. The returned buffer is a copy.
+   */
+  public ByteBuffer get(RenderCache.Key key)
+  {
+    byte[] digest = digest(key);
+    if (digest == null || closed) return null;
+    try {
+      Record record = current().find(digest);
+      if (record == null) {
+        misses.incrementAndGet();
+        return null;
+      }
+      hits.incrementAndGet();
+      return ByteBuffer.wrap(record.value);
+    }
+    catch (IOException e) {
+      error("read", e);
+      return null;
+    }
+  }
+
+  /**
+   * Stores the remaining bytes of <code>value</code>, a previous value of <code>key</code> is
+   * replaced. The position of <code>value</code> is not changed. Values larger than half of the
+   * segment are not stored.
+   */
+  public void put(RenderCache.Key key, ByteBuffer value)
+  {
+    byte[] digest = digest(key);
+    if (digest == null || closed) return;
+    if (RECORD_HEADER_SIZE + (long) value.remaining() > (segmentSize - SEGMENT_HEADER_SIZE) / 2) return;
+    byte[] bytes = new byte[value.remaining()];
+    value.duplicate().get(bytes);
+    try {
+      synchronized (this) {
+        FileLock lock = lock();
+        if (lock == null) {
+          //the value is only cached in memory then
+          error("write", new IOException("Cache is locked by another instance or process"));
+          return;
+        }
+        try {
+          Generation generation = current();
+          if (!generation.fits(bytes.length)) generation = compact(generation);
+          if (generation.fits(bytes.length)) {
+            generation.append(new Record(digest, bytes));
+            writes.incrementAndGet();
+          }
+        }
+        finally {
+          lock.release();
+        }
+      }
+    }
+    catch (IOException e) {
+      error("write", e);
+    }
+  }
+
+  /**
+   * Like {@link #put(RenderCache.Key, ByteBuffer)}, but a copy of the value is stored by the writer
+   * thread of the cache. The value is dropped if {@link #WRITE_QUEUE_CAPACITY} values are already
+   * waiting.
+   * 
+   * @return false if the value has been dropped or is not stored at all
+   */
+  public boolean putAsync(final RenderCache.Key key, ByteBuffer value)
+  {
+    if (closed) return false;
+    if (RECORD_HEADER_SIZE + (long) value.remaining() > (segmentSize - SEGMENT_HEADER_SIZE) / 2) return false;
+    //the caller may reuse the buffer, e.g. a chunk of a SlabStore
+    final ByteBuffer copy = ByteBuffer.allocate(value.remaining());
+    copy.put(value.duplicate()).flip();
+    try {
+      writer.execute(new Runnable() {
+        @Override
+        public void run()
+        {
+          put(key, copy);
+        }
+      });
+      return true;
+    }
+    catch (RejectedExecutionException e) {
+      droppedWrites.incrementAndGet();
+      return false;
+    }
+  }
+
+  /**
+   * Waits until the values queued before have been stored, see
+   * {@link #putAsync(RenderCache.Key, ByteBuffer)}.
+   */
+  public void flush() throws InterruptedException
+  {
+    while (!writer.isShutdown()) {
+      try {
+        writer.submit(new Runnable() {
+          @Override
+          public void run()
+          {
+            //the queue is processed in order
+          }
+        }).get();
+        return;
+      }
+      catch (RejectedExecutionException e) {
+        Thread.sleep(1); //the queue is full
+      }
+      catch (ExecutionException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /**
+   * Releases the lock file after the queued values have been stored. The cache does not return or
+   * store values afterwards.
+   */
+  public void close() throws IOException
+  {
+    //not synchronized, the writer thread needs the monitor to finish
+    writer.shutdown();
+    try {
+      writer.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      closed = true;
+      lockFile.close();
+    }
+  }
+
+  /**
+   * @return the number of entries in the current generation
+   */
+  public int size()
+  {
+    Generation generation = current;
+    return generation == null ? 0 : generation.index.getInt(INDEX_COUNT);
+  }
+
+  /**
+   * @return the number of bytes used in the segment of the current generation
+   */
+  public long getWeight()
+  {
+    Generation generation = current;
+    return generation == null ? 0 : generation.index.getLong(INDEX_TAIL);
+  }
+
+  public long getHitCount()
+  {
+    return hits.get();
+  }
+
+  public long getMissCount()
+  {
+    return misses.get();
+  }
+
+  public long getWriteCount()
+  {
+    return writes.get();
+  }
+
+  /**
+   * @return the number of compactions done by this process
+   */
+  public long getCompactionCount()
+  {
+    return compactions.get();
+  }
+
+  /**
+   * @return the number of values dropped because the writer thread was behind, see
+   *         {@link #putAsync(RenderCache.Key, ByteBuffer)}
+   */
+  public long getDroppedWriteCount()
+  {
+    return droppedWrites.get();
+  }
+
+  /**
+   * @return the number of failed reads and writes, they are treated as misses
+   */
+  public long getErrorCount()
+  {
+    return errors.get();
+  }
+
+  public File getDirectory()
+  {
+    return directory;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  private void error(String operation, IOException e)
+  {
+    //log the first errors only, a broken volume would otherwise flood the log
+    if (errors.incrementAndGet() <= 10) {
+      LOG.log(WARNING, "Cannot " + operation + " cache " + name + " in " + directory.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * @return the current generation, opened again if another process has compacted the cache
+   */
+  private Generation current() throws IOException
+  {
+    Generation generation = current;
+    if (generation.number == lockHeader.getLong(LOCK_GENERATION)) return generation;
+    synchronized (this) {
+      long number = lockHeader.getLong(LOCK_GENERATION);
+      if (current.number != number) current = open(number);
+      return current;
+    }
+  }
+
+  /**
+   * Acquires the lock file. Other instances in this process and other processes holding it are
+   * waited for {@link #LOCK_TIMEOUT} at most, a request is never blocked by a stuck writer.
+   * 
+   * @return the lock or null if it has not been released in time
+   */
+  private FileLock lock() throws IOException
+  {
+    long deadline = System.nanoTime() + LOCK_TIMEOUT;
+    while (true) {
+      //an interrupt while waiting for the lock closes the channel
+      if (!lockFile.getChannel().isOpen() && !closed) {
+        lockFile = new RandomAccessFile(new File(directory, name + ".lock"), "rw");
+      }
+      try {
+        //null if another process holds the lock
+        FileLock lock = lockFile.getChannel().tryLock();
+        if (lock != null) return lock;
+      }
+      catch (OverlappingFileLockException e) {
+        //held by another instance in this process
+      }
+      if (System.nanoTime() - deadline > 0) return null;
+      try {
+        Thread.sleep(1);
+      }
+      catch (InterruptedException interrupted) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Copies the newest entries of <code>generation</code> into a new generation, they fill half of
+   * its segment and index at most. Called with the lock held.
+   */
+  private Generation compact(Generation generation) throws IOException
+  {
+    List<Record> records = generation.records();
+    Collections.sort(records, new Comparator<Record>() {
+      @Override
+      public int compare(Record r1, Record r2)
+      {
+        return Long.valueOf(r2.offset).compareTo(r1.offset);
+      }
+    });
+    Generation next = create(generation.number + 1);
+    long bytes = 0;
+    int count = 0;
+    List<Record> kept = new ArrayList<Record>();
+    for (Record record : records) {
+      bytes += RECORD_HEADER_SIZE + record.value.length;
+      if (bytes > (next.segment.capacity() - SEGMENT_HEADER_SIZE) / 2 || ++count > next.slots * 3 / 8) break;
+      kept.add(record);
+    }
+    //appended in the original order, so that the next compaction keeps the newest entries again
+    for (int i = kept.size() - 1; i >= 0; i--) {
+      next.append(kept.get(i));
+    }
+    next.segment.force();
+    next.index.force();
+    switchTo(next);
+    deleteStaleGenerations();
+    compactions.incrementAndGet();
+    return next;
+  }
+
+  private void switchTo(Generation generation)
+  {
+    lockHeader.putLong(LOCK_GENERATION, generation.number);
+    lockHeader.force();
+    current = generation;
+  }
+
+  /**
+   * Deletes the files of older generations. Processes which still have them mapped can read them
+   * until they notice the new generation (on Windows the deletion fails until then).
+   */
+  private void deleteStaleGenerations()
+  {
+    File[] files = directory.listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      String fileName = file.getName();
+      if (!fileName.startsWith(name + ".") || !(fileName.endsWith(".idx") || fileName.endsWith(".seg"))) continue;
+      String number = fileName.substring(name.length() + 1, fileName.length() - 4);
+      if (!number.matches("\\d+") || number.equals(String.valueOf(current.number))) continue;
+      if (!file.delete()) LOG.fine("Cannot delete stale cache file " + file.getAbsolutePath());
+    }
+  }
+
+  private File getFile(long generation, String extension)
+  {
+    return new File(directory, name + "." + generation + extension);
+  }
+
+  private Generation create(long number) throws IOException
+  {
+    File indexFile = getFile(number, ".idx");
+    File segmentFile = getFile(number, ".seg");
+    //leftovers of a compaction which has not been completed
+    indexFile.delete();
+    segmentFile.delete();
+    MappedByteBuffer index = map(indexFile, INDEX_HEADER_SIZE + (long) slots * SLOT_SIZE);
+    index.putInt(INDEX_SLOTS, slots);
+    index.putInt(INDEX_COUNT, 0);
+    index.putLong(INDEX_TAIL, SEGMENT_HEADER_SIZE);
+    index.putInt(4, VERSION);
+    index.putInt(0, INDEX_MAGIC);
+    MappedByteBuffer segment = map(segmentFile, segmentSize);
+    segment.putInt(4, VERSION);
+    segment.putInt(0, SEGMENT_MAGIC);
+    return new Generation(number, index, segment);
+  }
+
+  private Generation open(long number) throws IOException
+  {
+    File indexFile = getFile(number, ".idx");
+    File segmentFile = getFile(number, ".seg");
+    if (!indexFile.isFile() || !segmentFile.isFile()) {
+      throw new IOException("Cache generation " + number + " does not exist in " + directory.getAbsolutePath());
+    }
+    MappedByteBuffer index = map(indexFile, indexFile.length());
+    MappedByteBuffer segment = map(segmentFile, segmentFile.length());
+    if (index.capacity() < INDEX_HEADER_SIZE || index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION
+          || index.capacity() != INDEX_HEADER_SIZE + (long) index.getInt(INDEX_SLOTS) * SLOT_SIZE
+          || Integer.bitCount(index.getInt(INDEX_SLOTS)) != 1) {
+      throw new IOException("Invalid cache index " + indexFile.getAbsolutePath());
+    }
+    if (segment.capacity() < SEGMENT_HEADER_SIZE || segment.getInt(0) != SEGMENT_MAGIC
+          || segment.getInt(4) != VERSION) {
+      throw new IOException("Invalid cache segment " + segmentFile.getAbsolutePath());
+    }
+    return new Generation(number, index, segment);
+  }
+
+  private static MappedByteBuffer map(File file, long size) throws IOException
+  {
+    if (size > Integer.MAX_VALUE) throw new IOException("Cache file too large: " + file.getAbsolutePath());
+    RandomAccessFile access = new RandomAccessFile(file, "rw");
+    try {
+      //the mapping stays valid after the file has been closed
+      return access.getChannel().map(MapMode.READ_WRITE, 0, size);
+    }
+    finally {
+      access.close();
+    }
+  }
+
+  /**
+   * @return the SHA-1 of a stable representation of <code>key</code> or null if it contains parts
+   *         without one
+   */
+  static byte[] digest(RenderCache.Key key)
+  {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      if (!write(out, key)) return null;
+      out.flush();
+      return MessageDigest.getInstance("SHA-1").digest(bytes.toByteArray());
+    }
+    catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static boolean write(DataOutputStream out, Object part) throws IOException
+  {
+    if (part == null) {
+      out.writeByte('N');
+    }
+    else if (part instanceof String) {
+      byte[] bytes = ((String) part).getBytes("UTF-8");
+      out.writeByte('S');
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+    else if (part instanceof Integer) {
+      out.writeByte('I');
+      out.writeInt((Integer) part);
+    }
+    else if (part instanceof Long) {
+      out.writeByte('J');
+      out.writeLong((Long) part);
+    }
+    else if (part instanceof Boolean) {
+      out.writeByte('Z');
+      out.writeBoolean((Boolean) part);
+    }
+    else if (part instanceof Enum) {
+      out.writeByte('E');
+      write(out, ((Enum<?>) part).getDeclaringClass().getName());
+      write(out, ((Enum<?>) part).name());
+    }
+    else if (part instanceof RenderCache.Key) {
+      Object[] parts = ((RenderCache.Key) part).getParts();
+      out.writeByte('K');
+      out.writeInt(parts.length);
+      for (Object nested : parts) {
+        if (!write(out, nested)) return false;
+      }
+    }
+    else {
+      return false;
+    }
+    return true;
+  }
+
+  private static final class Record
+  {
+    final byte[] digest;
+    final byte[] value;
+    final long offset;
+
+    Record(byte[] digest, byte[] value)
+    {
+      this(digest, value, -1);
+    }
+
+    Record(byte[] digest, byte[] value, long offset)
+    {
+      this.digest = digest;
+      this.value = value;
+      this.offset = offset;
+    }
+  }
+
+  /**
+   * A pair of mapped index and segment files. The mapped buffers are only accessed with absolute
+   * positions or through duplicates, so they can be shared by all threads.
+   */
+  private static final class Generation
+  {
+    final long number;
+    final MappedByteBuffer index;
+    final MappedByteBuffer segment;
+    final int slots;
+
+    Generation(long number, MappedByteBuffer index, MappedByteBuffer segment)
+    {
+      this.number = number;
+      this.index = index;
+      this.segment = segment;
+      this.slots = index.getInt(INDEX_SLOTS);
+    }
+
+    boolean fits(int length)
+    {
+      return index.getLong(INDEX_TAIL) + RECORD_HEADER_SIZE + length <= segment.capacity()
+            && index.getInt(INDEX_COUNT) < slots * 3 / 4;
+    }
+
+    /**
+     * @return the position of the slot of <code>digest</code>, of the first free slot if it is not
+     *         contained or -1 if the index is full
+     */
+    private int findSlot(long high, long low)
+    {
+      int mask = slots - 1;
+      int slot = (int) (high ^ high >>> 32) & mask;
+      for (int i = 0; i < slots; i++, slot = slot + 1 & mask) {
+        int position = INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+        long slotHigh = index.getLong(position);
+        long slotLow = index.getLong(position + 8);
+        if (slotHigh == high && slotLow == low || slotHigh == 0 && slotLow == 0) return position;
+      }
+      return -1;
+    }
+
+    Record find(byte[] digest)
+    {
+      ByteBuffer key = ByteBuffer.wrap(digest);
+      int position = findSlot(key.getLong(0), key.getLong(8) | 1);
+      if (position < 0 || index.getLong(position) == 0 && index.getLong(position + 8) == 0) return null;
+      Record record = read(position);
+      return record != null && Arrays.equals(digest, record.digest) ? record : null;
+    }
+
+    /**
+     * @return the record published in the slot at <code>position</code> or null if it is invalid,
+     *         e.g. because the slot is just being written by another process
+     */
+    Record read(int position)
+    {
+      long offset = index.getLong(position + 16);
+      int length = index.getInt(position + 24);
+      int crc = index.getInt(position + 28);
+      if (offset < SEGMENT_HEADER_SIZE || length < 0 || offset + RECORD_HEADER_SIZE + length > segment.capacity()) {
+        return null;
+      }
+      ByteBuffer buffer = segment.duplicate();
+      buffer.position((int) offset);
+      byte[] digest = new byte[DIGEST_SIZE];
+      buffer.get(digest);
+      if (buffer.getInt() != length) return null;
+      byte[] value = new byte[length];
+      buffer.get(value);
+      return crc(value) == crc ? new Record(digest, value, offset) : null;
+    }
+
+    List<Record> records()
+    {
+      List<Record> records = new ArrayList<Record>();
+      for (int slot = 0; slot < slots; slot++) {
+        int position = INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+        if (index.getLong(position) == 0 && index.getLong(position + 8) == 0) continue;
+        Record record = read(position);
+        if (record != null) records.add(record);
+      }
+      return records;
+    }
+
+    /**
+     * Appends the record to the segment and publishes it in the index. Called with the lock held
+     * after {@link #fits(int)} has been checked.
+     */
+    void append(Record record)
+    {
+      ByteBuffer key = ByteBuffer.wrap(record.digest);
+      long high = key.getLong(0);
+      long low = key.getLong(8) | 1; //a slot of zeros is free
+      int position = findSlot(high, low);
+      if (position < 0) return;
+      long tail = index.getLong(INDEX_TAIL);
+      ByteBuffer buffer = segment.duplicate();
+      buffer.position((int) tail);
+      buffer.put(record.digest);
+      buffer.putInt(record.value.length);
+      buffer.put(record.value);
+
+      //readers verify the record, they do not return a value while the slot is updated
+      boolean added = index.getLong(position) == 0 && index.getLong(position + 8) == 0;
+      index.putLong(position + 16, tail);
+      index.putInt(position + 24, record.value.length);
+      index.putInt(position + 28, crc(record.value));
+      index.putLong(position + 8, low);
+      index.putLong(position, high);
+      index.putLong(INDEX_TAIL, buffer.position());
+      if (added) index.putInt(INDEX_COUNT, index.getInt(INDEX_COUNT) + 1);
+    }
+
+    private static int crc(byte[] value)
+    {
+      CRC32 crc = new CRC32();
+      crc.update(value);
+      return (int) crc.getValue();
+    }
+  }
+
+}
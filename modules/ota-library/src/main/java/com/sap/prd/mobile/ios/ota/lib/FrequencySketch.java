@@ -0,0 +1,106 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Approximate access frequency of keys (count-min sketch). {@link RenderCache} uses it to decide
+ * whether a new entry is requested more often than the entry it would evict. All counters are
+ * halved periodically, so the frequency of keys which are no longer requested decays.<br/>
+ * Counting does not lock, concurrent updates may occasionally be lost which does not matter for an
+ * estimate.
+ */
+class FrequencySketch
+{
+
+  private static final int DEPTH = 4;
+  private static final int MAX_COUNT = 15;
+  private static final int[] SEEDS = { 0x97cb3127, 0xb2ad8d35, 0x6a09e667, 0x3c6ef372 };
+
+  private final AtomicIntegerArray table;
+  private final int width;
+  private final int sampleSize;
+  private final AtomicInteger additions = new AtomicInteger();
+
+  /**
+   * @param expectedEntries
+   *          number of entries the cache is expected to hold
+   */
+  FrequencySketch(int expectedEntries)
+  {
+    int width = Integer.highestOneBit(Math.max(64, Math.min(expectedEntries, 1 << 20)) - 1) << 1;
+    this.width = width;
+    this.table = new AtomicIntegerArray(DEPTH * width);
+    this.sampleSize = 10 * width;
+  }
+
+  /**
+   * Counts an access of <code>key</code>.
+   */
+  void increment(Object key)
+  {
+    int hash = spread(key.hashCode());
+    for (int i = 0; i < DEPTH; i++) {
+      int index = indexOf(hash, i);
+      int count = table.get(index);
+      if (count < MAX_COUNT) table.compareAndSet(index, count, count + 1);
+    }
+    if (additions.incrementAndGet() >= sampleSize) reset();
+  }
+
+  /**
+   * @return the estimated number of recent accesses of <code>key</code>
+   */
+  int frequency(Object key)
+  {
+    int hash = spread(key.hashCode());
+    int frequency = MAX_COUNT;
+    for (int i = 0; i < DEPTH; i++) {
+      frequency = Math.min(frequency, table.get(indexOf(hash, i)));
+    }
+    return frequency;
+  }
+
+  private synchronized void reset()
+  {
+    if (additions.get() < sampleSize) return; //already halved by another thread
+    for (int i = 0; i < table.length(); i++) {
+      table.set(i, table.get(i) >>> 1);
+    }
+    additions.set(additions.get() >>> 1);
+  }
+
+  private int indexOf(int hash, int row)
+  {
+    int h = hash * SEEDS[row];
+    h ^= h >>> 16;
+    return row * width + (h & (width - 1));
+  }
+
+  private static int spread(int hash)
+  {
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    return hash ^ (hash >>> 13);
+  }
+
+}
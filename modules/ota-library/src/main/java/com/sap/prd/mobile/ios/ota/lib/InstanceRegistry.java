@@ -0,0 +1,182 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Thread-safe registry of instances per key, e.g. of generators per template.<br/>
+ * Lookups of existing instances do not lock. An instance is created only once per key, even if
+ * several threads ask for a missing key at the same time; the other threads wait for the result.
+ * If a maximum size is given, the oldest keys are dropped when more instances are registered.
+ * 
+ * @param <V>
+ *          type of the instances
+ */
+public class InstanceRegistry<V>
+{
+
+  /**
+   * Creates the instance for a key.
+   */
+  public static interface Factory<V>
+  {
+    V create(String key);
+  }
+
+  private final Factory<V> factory;
+  private final int maxSize;
+  private final ConcurrentMap<String, Future<V>> instances = new ConcurrentHashMap<String, Future<V>>();
+  private final Queue<String> insertionOrder = new ConcurrentLinkedQueue<String>();
+
+  /**
+   * Creates an unbounded registry.
+   */
+  public InstanceRegistry(Factory<V> factory)
+  {
+    this(factory, 0);
+  }
+
+  /**
+   * @param factory
+   *          creates missing instances
+   * @param maxSize
+   *          maximum number of instances kept, 0 for unbounded
+   */
+  public InstanceRegistry(Factory<V> factory, int maxSize)
+  {
+    if (factory == null) throw new NullPointerException("factory");
+    if (maxSize < 0) throw new IllegalArgumentException("maxSize must not be negative: " + maxSize);
+    this.factory = factory;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Returns the instance for <code>key</code> and creates it if it does not exist yet.
+   * 
+   * @throws RuntimeException
+   *           thrown by the factory. Nothing is registered in that case.
+   */
+  public V get(String key)
+  {
+    Future<V> future = instances.get(key);
+    if (future == null) {
+      FutureTask<V> task = newTask(key);
+      future = instances.putIfAbsent(key, task);
+      if (future == null) {
+        task.run();
+        V instance = getResult(key, task);
+        registered(key); //only successfully created instances take part in the eviction order
+        return instance;
+      }
+    }
+    return getResult(key, future);
+  }
+
+  /**
+   * Creates a new instance for <code>key</code> and replaces the registered one. Threads which
+   * already got the previous instance keep using it.
+   * 
+   * @return the new instance
+   * @throws RuntimeException
+   *           thrown by the factory. The previous instance stays registered in that case.
+   */
+  public V replace(String key)
+  {
+    FutureTask<V> task = newTask(key);
+    task.run();
+    V instance = getResult(null, task);
+    if (instances.put(key, task) == null) registered(key);
+    return instance;
+  }
+
+  /**
+   * Removes the instance for <code>key</code>.
+   */
+  public void remove(String key)
+  {
+    if (instances.remove(key) != null) insertionOrder.remove(key);
+  }
+
+  /**
+   * Removes all instances.
+   */
+  public void clear()
+  {
+    instances.clear();
+    insertionOrder.clear();
+  }
+
+  /**
+   * @return the number of registered instances
+   */
+  public int size()
+  {
+    return instances.size();
+  }
+
+  private FutureTask<V> newTask(final String key)
+  {
+    return new FutureTask<V>(new Callable<V>() {
+      @Override
+      public V call()
+      {
+        return factory.create(key);
+      }
+    });
+  }
+
+  private void registered(String key)
+  {
+    if (maxSize == 0) return;
+    insertionOrder.add(key);
+    while (instances.size() > maxSize) {
+      String eldest = insertionOrder.poll();
+      if (eldest == null) break;
+      instances.remove(eldest);
+    }
+  }
+
+  private V getResult(String key, Future<V> future)
+  {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for instance '" + key + "'", e);
+    }
+    catch (ExecutionException e) {
+      if (key != null) instances.remove(key, future);
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IllegalStateException("Cannot create instance '" + key + "'", cause);
+    }
+  }
+
+}
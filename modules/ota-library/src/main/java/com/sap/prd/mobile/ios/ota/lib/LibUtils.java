@@ -24,11 +24,17 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.apache.commons.lang.StringUtils;
-import org.sonatype.plexus.components.cipher.Base64;
 
 public class LibUtils
 {
@@ -126,36 +132,171 @@ public class LibUtils
     }
   }
 
+  /**
+   * Encodes a string as URL path segment, see {@link Base64Url#encode(String)}.
+   */
   public static String encode(String string)
   {
-    if (string == null) {
-      return null;
+    return Base64Url.encode(string);
+  }
+
+  /**
+   * Decodes a string encoded with {@link #encode(String)} or by former versions (standard Base64,
+   * URL encoded), see {@link Base64Url#decode(String)}.
+   * 
+   * @throws IllegalArgumentException
+   *           if the string is not valid
+   */
+  public static String decode(String string)
+  {
+    return Base64Url.decode(string);
+  }
+
+  /**
+   * Like {@link #decode(String)}, but returns null instead of throwing if the string is not valid.
+   */
+  public static String decodeOrNull(String string)
+  {
+    return string == null ? null : Base64Url.decodeOrNull(string, 0, string.length());
+  }
+
+  /**
+   * First character of a segment holding all OTA parameters, see {@link #encodeParameters(Map)}. It
+   * does not occur in segments encoded with {@link #encode(String)}.
+   */
+  public static final char COMPACT_PREFIX = '.';
+
+  /** the parameters of a compact segment, their keys are implicit by position */
+  private static final String[] COMPACT_KEYS = { Constants.KEY_REFERER, Constants.KEY_TITLE,
+      Constants.KEY_BUNDLE_IDENTIFIER, Constants.KEY_BUNDLE_VERSION, Constants.KEY_IPA_CLASSIFIER,
+      Constants.KEY_OTA_CLASSIFIER };
+
+  /**
+   * Preset dictionary of fragments common in the parameters, the compressed data refers to them
+   * instead of repeating them. Deflate finds the fragments at the end with the shortest distances,
+   * hence the most frequent ones are last. Must never change, printed segments depend on it.
+   */
+  private static final byte[] COMPACT_DICTIONARY = ("-SNAPSHOT/maven-metadata.xml/nexus/content/groups/public/"
+        + "/content/repositories/snapshots//content/repositories/releases/-ota.htm.ipa.htmlcom.sap.http://https://")
+    .getBytes(Charset.forName("US-ASCII"));
+
+  /** decoded parameters are never larger, protects against decompression bombs */
+  private static final int MAX_COMPACT_SIZE = 8192;
+
+  /**
+   * @return true if <code>segment</code> has been encoded with {@link #encodeParameters(Map)}
+   */
+  public static boolean isCompact(String segment)
+  {
+    return segment != null && segment.length() > 1 && segment.charAt(0) == COMPACT_PREFIX;
+  }
+
+  /**
+   * Encodes the OTA parameters (Referer, title, bundleIdentifier, bundleVersion and the classifiers)
+   * into a single URL path segment, other parameters are ignored. The values are separated by NUL
+   * characters, compressed with raw deflate and a preset dictionary and encoded with the URL-safe
+   * Base64 alphabet without padding, prefixed with {@value #COMPACT_PREFIX}. In contrast to short
+   * tokens no state is required to decode it, see {@link #decodeParameters(String)}.
+   * 
+   * @return the segment or null if a value contains a NUL character
+   */
+  public static String encodeParameters(Map<String, String> params)
+  {
+    StringBuilder values = new StringBuilder();
+    int length = 0;
+    for (int i = 0; i < COMPACT_KEYS.length; i++) {
+      String value = params.get(COMPACT_KEYS[i]);
+      if (value == null) value = "";
+      if (value.indexOf('\0') >= 0) return null;
+      if (i > 0) values.append('\0');
+      values.append(value);
+      if (value.length() > 0) length = values.length(); //trailing empty values are omitted
     }
+    byte[] bytes;
     try {
-      byte[] bytes = string.getBytes("UTF-8");
-      byte[] base64Bytes = Base64.encodeBase64(bytes);
-      String base64String = new String(base64Bytes, "US-ASCII");
-      return URLEncoder.encode(base64String, "UTF-8");
+      bytes = values.substring(0, length).getBytes("UTF-8");
     }
     catch (UnsupportedEncodingException e) {
       throw new RuntimeException(e); //should never happen
     }
+
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    try {
+      deflater.setDictionary(COMPACT_DICTIONARY);
+      deflater.setInput(bytes);
+      deflater.finish();
+      byte[] buffer = new byte[bytes.length + 64];
+      int size = 0;
+      while (!deflater.finished()) {
+        if (size == buffer.length) buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+        size += deflater.deflate(buffer, size, buffer.length - size);
+      }
+      return COMPACT_PREFIX + Base64Url.encode(buffer, 0, size);
+    }
+    finally {
+      deflater.end();
+    }
   }
 
-  public static String decode(String string)
+  /**
+   * Decodes a segment encoded with {@link #encodeParameters(Map)}.
+   * 
+   * @return the non empty parameters
+   * @throws IllegalArgumentException
+   *           if the segment is not valid
+   */
+  public static Map<String, String> decodeParameters(String segment)
   {
-    if (string == null) {
-      return null;
-    }
+    Map<String, String> params = decodeParametersOrNull(segment);
+    if (params == null) throw new IllegalArgumentException("Invalid compact segment: " + segment);
+    return params;
+  }
+
+  /**
+   * Like {@link #decodeParameters(String)}, but returns null instead of throwing if the segment is
+   * not valid, e.g. for segments of untrusted request URIs.
+   */
+  public static Map<String, String> decodeParametersOrNull(String segment)
+  {
+    if (!isCompact(segment)) return null;
+    //one extra byte, raw inflate may need it to detect the end of the data
+    byte[] data = new byte[Base64Url.maxDecodedLength(segment.length() - 1) + 1];
+    int size = Base64Url.decode(segment, 1, segment.length(), data, 0);
+    if (size < 0) return null;
+
+    Inflater inflater = new Inflater(true);
     try {
-      String urlDecodedString = URLDecoder.decode(string, "UTF-8");
-      byte[] urlDecodedBytes = urlDecodedString.getBytes("US-ASCII");
-      byte[] decodedBase64Bytes = Base64.decodeBase64(urlDecodedBytes);
-      return new String(decodedBase64Bytes, "UTF-8");
+      inflater.setDictionary(COMPACT_DICTIONARY);
+      inflater.setInput(data, 0, size + 1);
+      byte[] buffer = new byte[MAX_COMPACT_SIZE];
+      int length = 0;
+      while (!inflater.finished()) {
+        if (length == buffer.length) return null; //too large
+        int n = inflater.inflate(buffer, length, buffer.length - length);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) return null; //truncated
+        length += n;
+      }
+
+      String values = new String(buffer, 0, length, "UTF-8");
+      Map<String, String> params = new HashMap<String, String>();
+      int start = 0;
+      for (int i = 0; i < COMPACT_KEYS.length && start <= values.length(); i++) {
+        int end = values.indexOf('\0', start);
+        if (end < 0) end = values.length();
+        if (end > start) params.put(COMPACT_KEYS[i], values.substring(start, end));
+        start = end + 1;
+      }
+      return params;
+    }
+    catch (DataFormatException e) {
+      return null;
     }
     catch (UnsupportedEncodingException e) {
       throw new RuntimeException(e); //should never happen
     }
+    finally {
+      inflater.end();
+    }
   }
 
   /**
@@ -174,4 +315,25 @@ public class LibUtils
     return map;
   }
 
+  /**
+   * @return the SHA-1 of the UTF-8 encoded string as lower case hex string
+   */
+  public static String sha1Hex(String string)
+  {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(string.getBytes("UTF-8"));
+      StringBuilder sb = new StringBuilder(2 * digest.length);
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e); //should never happen
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); //should never happen
+    }
+  }
+
 }
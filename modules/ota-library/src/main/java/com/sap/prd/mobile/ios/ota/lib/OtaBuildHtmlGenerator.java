@@ -92,25 +92,25 @@ public class OtaBuildHtmlGenerator extends VelocityBase<Parameters>
 
 
   static final String DEFAULT_TEMPLATE = "buildTemplate.html";
-  private static Map<String, OtaBuildHtmlGenerator> instances = new HashMap<String, OtaBuildHtmlGenerator>();
+  private static final InstanceRegistry<OtaBuildHtmlGenerator> instances = new InstanceRegistry<OtaBuildHtmlGenerator>(
+        new InstanceRegistry.Factory<OtaBuildHtmlGenerator>() {
+          @Override
+          public OtaBuildHtmlGenerator create(String template)
+          {
+            return new OtaBuildHtmlGenerator(template);
+          }
+        }, MAX_INSTANCES);
 
   public static OtaBuildHtmlGenerator getInstance() {
     return getInstance(null);
   }
   
-  public static synchronized OtaBuildHtmlGenerator getInstance(String template)
+  public static OtaBuildHtmlGenerator getInstance(String template)
   {
     if(StringUtils.isEmpty(template)) {
       template = DEFAULT_TEMPLATE;
     }
-    OtaBuildHtmlGenerator instance;
-    if (!instances.keySet().contains(template)) {
-      instance = new OtaBuildHtmlGenerator(template);
-      instances.put(template, instance);
-    } else {
-      instance = instances.get(template);
-    }
-    return instance;
+    return instances.get(template);
   }
 
   private OtaBuildHtmlGenerator(String template)
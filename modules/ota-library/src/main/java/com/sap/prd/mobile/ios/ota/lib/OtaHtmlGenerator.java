@@ -21,19 +21,26 @@ package com.sap.prd.mobile.ios.ota.lib;
 
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_IDENTIFIER;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_VERSION;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_HTML_QRCODE_INLINE;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_HTML_QRCODE_MODULES;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_HTML_QRCODE_SVG_URL;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_HTML_QRCODE_URL;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_IPA_CLASSIFIER;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_OTA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_PLIST_QRCODE_INLINE;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_PLIST_QRCODE_MODULES;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_PLIST_URL;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_QRCODE_FORMAT;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_TITLE;
 import static java.lang.String.format;
 import static org.apache.commons.lang.StringUtils.isEmpty;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
@@ -74,30 +81,110 @@ public class OtaHtmlGenerator extends VelocityBase<Parameters>
       super();
       URL ipaUrl = LibUtils.generateDirectIpaUrl(requestParams.get(KEY_REFERER), requestParams.get(KEY_IPA_CLASSIFIER),
             requestParams.get(KEY_OTA_CLASSIFIER));
-      if (initParams != null) {
-        mappings.putAll(initParams);
-      }
-      mappings.putAll(requestParams);
       mappings.put(Constants.KEY_IPA_URL, ipaUrl.toExternalForm());
       mappings.put(KEY_PLIST_URL, plistUrl.toExternalForm());
       mappings.put(KEY_HTML_QRCODE_URL, htmlServiceQrcodeUrl == null ? null : htmlServiceQrcodeUrl.toExternalForm());
+      mappings.put(KEY_HTML_QRCODE_SVG_URL, htmlServiceQrcodeUrl == null ? null :
+            htmlServiceQrcodeUrl.toExternalForm() + "&" + KEY_QRCODE_FORMAT + "=svg");
+      mappings.put(KEY_PLIST_QRCODE_INLINE, "");
+      mappings.put(KEY_HTML_QRCODE_INLINE, "");
+      mappings.put(KEY_PLIST_QRCODE_MODULES, "");
+      mappings.put(KEY_HTML_QRCODE_MODULES, "");
+      mappings.addDefaults(requestParams);
+      mappings.addDefaults(initParams);
+    }
+
+    /**
+     * Sets the QR codes embedded into the page, e.g. as data URIs. Without them the template falls
+     * back to the QR code URLs.
+     * 
+     * @param plistQrcode
+     *          the "direct install" QR code
+     * @param htmlQrcode
+     *          the QR code pointing to the install page
+     */
+    public void setInlineQrcodes(String plistQrcode, String htmlQrcode)
+    {
+      mappings.put(KEY_PLIST_QRCODE_INLINE, plistQrcode == null ? "" : plistQrcode);
+      mappings.put(KEY_HTML_QRCODE_INLINE, htmlQrcode == null ? "" : htmlQrcode);
+    }
+
+    /**
+     * Sets the modules of the QR codes which are drawn by the browser instead of loading an image.
+     * 
+     * @param plistQrcodeModules
+     *          the modules of the "direct install" QR code
+     * @param htmlQrcodeModules
+     *          the modules of the QR code pointing to the install page
+     */
+    public void setQrcodeModules(String plistQrcodeModules, String htmlQrcodeModules)
+    {
+      mappings.put(KEY_PLIST_QRCODE_MODULES, plistQrcodeModules == null ? "" : plistQrcodeModules);
+      mappings.put(KEY_HTML_QRCODE_MODULES, htmlQrcodeModules == null ? "" : htmlQrcodeModules);
     }
   }
 
   static final String DEFAULT_TEMPLATE = "template.html";
-  private static Map<String, OtaHtmlGenerator> instances = new HashMap<String, OtaHtmlGenerator>();
+
+  /**
+   * Maximum size in bytes of the rendered pages kept in the cache, see {@link #getCache()}.
+   */
+  public static final long CACHE_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * Time in milliseconds a rendered page is kept in the cache.
+   */
+  public static final long CACHE_TIME_TO_LIVE = 60 * 60 * 1000;
+  //chunks are rounded up to powers of two, bodies not fitting into the store are kept on the heap
+  private static final RenderCache cache = new RenderCache(CACHE_SIZE, 2048, CACHE_TIME_TO_LIVE,
+        new SlabStore(2 * CACHE_SIZE));
+  private static final SingleFlight<RenderCache.Key, ByteBuffer> flights =
+        new SingleFlight<RenderCache.Key, ByteBuffer>();
+
+  private static final InstanceRegistry<OtaHtmlGenerator> instances = new InstanceRegistry<OtaHtmlGenerator>(
+        new InstanceRegistry.Factory<OtaHtmlGenerator>() {
+          @Override
+          public OtaHtmlGenerator create(String template)
+          {
+            return new OtaHtmlGenerator(template);
+          }
+        }, MAX_INSTANCES);
 
   public static OtaHtmlGenerator getInstance()
   {
     return getInstance(null);
   }
 
-  public static synchronized OtaHtmlGenerator getInstance(String template)
+  public static OtaHtmlGenerator getInstance(String template)
   {
     return getInstance(template, false);
   }
 
-  public static synchronized OtaHtmlGenerator getInstance(String template, boolean forceNewInstance)
+  /**
+   * Returns the instance for <code>template</code> like {@link #getInstance(String)}. If the template
+   * is a file it is watched and the cached instance is replaced by a new one as soon as the file has
+   * been modified. Requests which already got the previous instance finish with the previous
+   * template.
+   * 
+   * @param template
+   *          resource name or file path of the template, default template if empty
+   * @return the current instance
+   */
+  public static OtaHtmlGenerator getReloadingInstance(String template)
+  {
+    final String key = isEmpty(template) ? DEFAULT_TEMPLATE : template;
+    OtaHtmlGenerator instance = getInstance(key);
+    watchTemplateFile(OtaHtmlGenerator.class.getName() + ":" + key, instance, new Runnable() {
+      @Override
+      public void run()
+      {
+        getInstance(key, true);
+      }
+    });
+    return instance;
+  }
+
+  public static OtaHtmlGenerator getInstance(String template, boolean forceNewInstance)
   {
     if (isEmpty(template)) {
       template = DEFAULT_TEMPLATE;
@@ -110,17 +197,11 @@ public class OtaHtmlGenerator extends VelocityBase<Parameters>
                     "must not be named '%s'. Current path: '%s'", DEFAULT_TEMPLATE, template));
     }
 
-    OtaHtmlGenerator instance;
-
-    if (forceNewInstance || !instances.keySet().contains(template)) {
-      instance = new OtaHtmlGenerator(template);
-      instances.put(template, instance);
-    }
-    else {
-      instance = instances.get(template);
+    if (forceNewInstance) {
+      //the cache is not cleared, keys contain the template hash, entries of the former content expire
+      return instances.replace(template);
     }
-
-    return instance;
+    return instances.get(template);
   }
 
   private OtaHtmlGenerator(String template)
@@ -128,6 +209,61 @@ public class OtaHtmlGenerator extends VelocityBase<Parameters>
     super(template);
   }
 
+  /**
+   * Returns the generated page from a cache if the same template content has already been rendered
+   * with the same values, e.g. the same App, init parameters and service URLs. Entries expire after
+   * {@link #CACHE_TIME_TO_LIVE}. The returned buffer is a copy, see
+   * {@link #generateSharedBytes(Parameters)}.
+   */
+  @Override
+  public ByteBuffer generateBytes(Parameters parameters) throws IOException
+  {
+    return generateBytes(parameters, cache, flights);
+  }
+
+  /**
+   * Like {@link #generateBytes(Parameters)}, but returns the cached buffer without copying it. The
+   * buffer is kept off-heap and only valid within a read section of the {@link SlabStore}, see
+   * {@link SlabStore#enter()}. It must not be modified.
+   * 
+   * @throws IllegalStateException
+   *           if the current thread is not in a read section
+   */
+  public ByteBuffer generateSharedBytes(Parameters parameters) throws IOException
+  {
+    return generateSharedBytes(parameters, cache, flights);
+  }
+
+  /**
+   * @return the cache of rendered pages, e.g. to read its hit and miss counters
+   */
+  public static RenderCache getCache()
+  {
+    return cache;
+  }
+
+  /**
+   * @return the concurrent renderings of pages, e.g. to read how many requests have been coalesced
+   */
+  public static SingleFlight<RenderCache.Key, ByteBuffer> getSingleFlight()
+  {
+    return flights;
+  }
+
+  /**
+   * Generates the URL of the HTML service like {@link #generateHtmlServiceUrl(URL, Map)}. If
+   * <code>compact</code> is true the parameters are packed into a single path segment instead, see
+   * {@link LibUtils#encodeParameters(Map)}. The URL has no query in that case. The service accepts
+   * both forms.
+   */
+  public static URL generateHtmlServiceUrl(URL htmlServiceUrl, Map<String, String> params, boolean compact)
+        throws MalformedURLException
+  {
+    String segment = compact ? LibUtils.encodeParameters(params) : null;
+    if (segment == null) return generateHtmlServiceUrl(htmlServiceUrl, params);
+    return new URL(htmlServiceUrl.toExternalForm() + "/" + segment);
+  }
+
   /**
    * Generates the URL for a specific request to the HTML service.
    * 
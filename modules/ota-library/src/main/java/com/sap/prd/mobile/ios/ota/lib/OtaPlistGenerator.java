@@ -32,10 +32,9 @@ import static org.apache.commons.lang.StringUtils.isEmpty;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.Parameters;
@@ -81,19 +80,67 @@ public class OtaPlistGenerator extends VelocityBase<Parameters>
   }
 
   private static final String DEFAULT_TEMPLATE = "template.plist";
-  private static Map<String, OtaPlistGenerator> instances = new HashMap<String, OtaPlistGenerator>();
 
-  public static synchronized OtaPlistGenerator getInstance()
+  /**
+   * Maximum size in bytes of the rendered PLISTs kept in the cache, see {@link #getCache()}.
+   */
+  public static final long CACHE_SIZE = 4 * 1024 * 1024;
+
+  /**
+   * Size in bytes of the segment file of a disk cache for the rendered PLISTs, see
+   * {@link RenderCache#setDiskCache(DiskCache)}.
+   */
+  public static final long DISK_CACHE_SIZE = 16 * 1024 * 1024;
+  public static final int DISK_CACHE_ENTRIES = 16384;
+  //chunks are rounded up to powers of two, bodies not fitting into the store are kept on the heap
+  private static final RenderCache cache = new RenderCache(CACHE_SIZE, 4096, 0, new SlabStore(2 * CACHE_SIZE));
+  private static final SingleFlight<RenderCache.Key, ByteBuffer> flights =
+        new SingleFlight<RenderCache.Key, ByteBuffer>();
+
+  private static final InstanceRegistry<OtaPlistGenerator> instances = new InstanceRegistry<OtaPlistGenerator>(
+        new InstanceRegistry.Factory<OtaPlistGenerator>() {
+          @Override
+          public OtaPlistGenerator create(String template)
+          {
+            return new OtaPlistGenerator(template);
+          }
+        }, MAX_INSTANCES);
+
+  public static OtaPlistGenerator getInstance()
   {
     return getInstance(null);
   }
 
-  public static synchronized OtaPlistGenerator getInstance(String template)
+  public static OtaPlistGenerator getInstance(String template)
   {
     return getInstance(template, false);
   }
   
-  public static synchronized OtaPlistGenerator getInstance(String template, boolean forceNewInstance)
+  /**
+   * Returns the instance for <code>template</code> like {@link #getInstance(String)}. If the template
+   * is a file it is watched and the cached instance is replaced by a new one as soon as the file has
+   * been modified. Requests which already got the previous instance finish with the previous
+   * template.
+   * 
+   * @param template
+   *          resource name or file path of the template, default template if empty
+   * @return the current instance
+   */
+  public static OtaPlistGenerator getReloadingInstance(String template)
+  {
+    final String key = isEmpty(template) ? DEFAULT_TEMPLATE : template;
+    OtaPlistGenerator instance = getInstance(key);
+    watchTemplateFile(OtaPlistGenerator.class.getName() + ":" + key, instance, new Runnable() {
+      @Override
+      public void run()
+      {
+        getInstance(key, true);
+      }
+    });
+    return instance;
+  }
+
+  public static OtaPlistGenerator getInstance(String template, boolean forceNewInstance)
   {
     if (isEmpty(template)) {
       template = DEFAULT_TEMPLATE;
@@ -106,17 +153,11 @@ public class OtaPlistGenerator extends VelocityBase<Parameters>
                     "must not be named '%s'. Current path: '%s'", DEFAULT_TEMPLATE, template));
     }
 
-    OtaPlistGenerator instance;
-
-    if (forceNewInstance || !instances.keySet().contains(template)) {
-      instance = new OtaPlistGenerator(template);
-      instances.put(template, instance);
-    }
-    else {
-      instance = instances.get(template);
+    if (forceNewInstance) {
+      //the cache is not cleared, keys contain the template hash, entries of the former content are evicted
+      return instances.replace(template);
     }
-
-    return instance;
+    return instances.get(template);
   }
   
   private OtaPlistGenerator(String template)
@@ -124,16 +165,44 @@ public class OtaPlistGenerator extends VelocityBase<Parameters>
     super(template);
   }
 
+  /**
+   * Returns the generated PLIST. Since it only depends on the template and the few values used in
+   * it, repeated requests for the same App are served from a cache. Entries rendered with a former
+   * content of the template are never returned. The returned buffer is a copy, see {@link #generateSharedBytes(Parameters)}.
+   */
   @Override
-  public synchronized String generate(Parameters parameters) throws IOException
+  public ByteBuffer generateBytes(Parameters parameters) throws IOException
   {
-    return super.generate(parameters);
+    return generateBytes(parameters, cache, flights);
   }
 
-  @Override
-  public synchronized void generate(PrintWriter writer, Parameters parameters) throws IOException
+  /**
+   * Like {@link #generateBytes(Parameters)}, but returns the cached buffer without copying it. The
+   * buffer is kept off-heap and only valid within a read section of the {@link SlabStore}, see
+   * {@link SlabStore#enter()}. It must not be modified.
+   * 
+   * @throws IllegalStateException
+   *           if the current thread is not in a read section
+   */
+  public ByteBuffer generateSharedBytes(Parameters parameters) throws IOException
   {
-    super.generate(writer, parameters);
+    return generateSharedBytes(parameters, cache, flights);
+  }
+
+  /**
+   * @return the cache of rendered PLISTs, e.g. to read its hit and miss counters
+   */
+  public static RenderCache getCache()
+  {
+    return cache;
+  }
+
+  /**
+   * @return the concurrent renderings of PLISTs, e.g. to read how many requests have been coalesced
+   */
+  public static SingleFlight<RenderCache.Key, ByteBuffer> getSingleFlight()
+  {
+    return flights;
   }
 
   /**
@@ -173,4 +242,40 @@ public class OtaPlistGenerator extends VelocityBase<Parameters>
     return new URL(urlString);
   }
 
+  /**
+   * Generates the URL for a specific request to the PLIST service like
+   * {@link #generatePlistRequestUrl(URL, Map)}. If <code>compact</code> is true the parameters are
+   * packed into a single path segment instead, see {@link LibUtils#encodeParameters(Map)}. The
+   * service resolves both forms.
+   */
+  public static URL generatePlistRequestUrl(URL plistServiceUrl, Map<String, String> params, boolean compact)
+        throws IOException
+  {
+    String segment = compact ? LibUtils.encodeParameters(params) : null;
+    if (segment == null) return generatePlistRequestUrl(plistServiceUrl, params);
+    if (plistServiceUrl == null) {
+      throw new NullPointerException("serviceUrl null");
+    }
+    return new URL(plistServiceUrl + "/" + segment);
+  }
+
+  /**
+   * Generates the URL for a specific request to the PLIST service like
+   * {@link #generatePlistRequestUrl(URL, Map)}. If <code>tokens</code> is not null the parameters are
+   * registered and the URL has a single short token segment instead. The service resolves both
+   * forms. If the token is not admitted (see {@link TokenRegistry#register(Map)}) the long form is
+   * returned.
+   */
+  public static URL generatePlistRequestUrl(URL plistServiceUrl, Map<String, String> params, TokenRegistry tokens)
+        throws IOException
+  {
+    if (tokens == null) return generatePlistRequestUrl(plistServiceUrl, params);
+    if (plistServiceUrl == null) {
+      throw new NullPointerException("serviceUrl null");
+    }
+    String token = tokens.register(params);
+    if (token == null) return generatePlistRequestUrl(plistServiceUrl, params);
+    return new URL(plistServiceUrl + "/" + token);
+  }
+
 }
@@ -0,0 +1,90 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Map of template parameters which looks up missing keys in default maps instead of copying them,
+ * e.g. in the request and init parameters. Values put into this map take precedence over the
+ * defaults, defaults added first take precedence over defaults added later.<br/>
+ * Iterating over the entries creates a merged copy, templates usually only call {@link #get(Object)}
+ * for the variables they reference.
+ */
+class ParameterMap extends AbstractMap<String, Object>
+{
+
+  private final Map<String, Object> values = new HashMap<String, Object>();
+  private final List<Map<String, ?>> defaults = new ArrayList<Map<String, ?>>(2);
+
+  /**
+   * Adds a map used for keys which have not been put into this map. The map is not copied.
+   */
+  void addDefaults(Map<String, ?> map)
+  {
+    if (map != null) defaults.add(map);
+  }
+
+  @Override
+  public Object get(Object key)
+  {
+    Object value = values.get(key);
+    if (value != null || values.containsKey(key)) return value;
+    for (Map<String, ?> map : defaults) {
+      value = map.get(key);
+      if (value != null || map.containsKey(key)) return value;
+    }
+    return null;
+  }
+
+  @Override
+  public boolean containsKey(Object key)
+  {
+    if (values.containsKey(key)) return true;
+    for (Map<String, ?> map : defaults) {
+      if (map.containsKey(key)) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public Object put(String key, Object value)
+  {
+    return values.put(key, value);
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet()
+  {
+    Map<String, Object> merged = new HashMap<String, Object>();
+    for (int i = defaults.size() - 1; i >= 0; i--) {
+      merged.putAll(defaults.get(i));
+    }
+    merged.putAll(values);
+    return Collections.unmodifiableMap(merged).entrySet();
+  }
+
+}
@@ -0,0 +1,444 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of rendered templates, bounded by the total size of the cached bytes. Entries can expire
+ * after a time to live.<br/>
+ * Lookups do not lock. When the cache is full a new entry is only admitted if it has been requested
+ * more often recently than the entries which would have to be evicted (TinyLFU), so a burst of
+ * one-time requests does not displace the frequently requested entries. Victims are the least
+ * frequently and then least recently used entries.<br/>
+ * Optionally a {@link DiskCache} is consulted on misses, admitted entries are written to it in the
+ * background, see {@link #setDiskCache(DiskCache)}.<br/>
+ * With a {@link SlabStore} the cached bytes are kept off-heap, buffers returned by
+ * {@link #get(Key)} must then only be read within a read section of the store (see
+ * {@link SlabStore#enter()}).
+ */
+public class RenderCache
+{
+
+  /**
+   * Key of a rendered template, e.g. the template and the values of its variables.
+   */
+  public static final class Key
+  {
+    private final Object[] parts;
+    private final int hash;
+
+    public Key(Object... parts)
+    {
+      this.parts = parts.clone();
+      this.hash = Arrays.hashCode(this.parts);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (this == obj) return true;
+      if (!(obj instanceof Key)) return false;
+      Key other = (Key) obj;
+      return hash == other.hash && Arrays.equals(parts, other.parts);
+    }
+
+    @Override
+    public String toString()
+    {
+      return Arrays.toString(parts);
+    }
+
+    Object[] getParts()
+    {
+      return parts;
+    }
+  }
+
+  private static final class Entry
+  {
+    /** the cached bytes, on the heap or allocated from the slab store */
+    final ByteBuffer body;
+    final int size;
+    /** System.nanoTime() after which the entry is expired, 0 if it does not expire */
+    final long expires;
+    volatile long lastAccess;
+
+    Entry(ByteBuffer body, long timeToLive)
+    {
+      this.body = body;
+      this.size = body.remaining();
+      this.lastAccess = System.nanoTime();
+      this.expires = timeToLive > 0 ? Math.max(1, lastAccess + TimeUnit.MILLISECONDS.toNanos(timeToLive)) : 0;
+    }
+
+    boolean isExpired(long now)
+    {
+      return expires != 0 && now - expires > 0;
+    }
+  }
+
+  private final long maxBytes;
+  private final long timeToLive;
+  private final SlabStore store;
+  private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+  private final FrequencySketch sketch;
+  private final AtomicLong weight = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong rejections = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+  private volatile DiskCache diskCache;
+
+  /**
+   * @param maxBytes
+   *          maximum total size of the cached bytes
+   * @param expectedEntries
+   *          number of entries expected to fit into the cache, used to size the frequency sketch
+   */
+  public RenderCache(long maxBytes, int expectedEntries)
+  {
+    this(maxBytes, expectedEntries, 0);
+  }
+
+  /**
+   * @param maxBytes
+   *          maximum total size of the cached bytes
+   * @param expectedEntries
+   *          number of entries expected to fit into the cache, used to size the frequency sketch
+   * @param timeToLive
+   *          default time in milliseconds after which an entry expires, 0 if entries do not expire
+   */
+  public RenderCache(long maxBytes, int expectedEntries, long timeToLive)
+  {
+    this(maxBytes, expectedEntries, timeToLive, null);
+  }
+
+  /**
+   * @param maxBytes
+   *          maximum total size of the cached bytes
+   * @param expectedEntries
+   *          number of entries expected to fit into the cache, used to size the frequency sketch
+   * @param timeToLive
+   *          default time in milliseconds after which an entry expires, 0 if entries do not expire
+   * @param store
+   *          store holding the cached bytes off-heap or null to keep them on the heap. Entries for
+   *          which the store has no free chunk are kept on the heap.
+   */
+  public RenderCache(long maxBytes, int expectedEntries, long timeToLive, SlabStore store)
+  {
+    if (maxBytes < 0) throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+    if (timeToLive < 0) throw new IllegalArgumentException("timeToLive must not be negative: " + timeToLive);
+    this.maxBytes = maxBytes;
+    this.timeToLive = timeToLive;
+    this.store = store;
+    this.sketch = new FrequencySketch(expectedEntries);
+  }
+
+  /**
+   * @return the cached bytes for <code>key</code> or null. The returned buffer shares the cached
+   *         bytes and must not be modified.
+   */
+  public ByteBuffer get(Key key)
+  {
+    sketch.increment(key);
+    Entry entry = entries.get(key);
+    long now = System.nanoTime();
+    if (entry != null && entry.isExpired(now)) {
+      remove(key, entry);
+      expirations.incrementAndGet();
+      entry = null;
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+      DiskCache disk = diskCache;
+      ByteBuffer value = disk == null ? null : disk.get(key);
+      if (value != null) put(key, value, timeToLive, false);
+      return value;
+    }
+    entry.lastAccess = now;
+    hits.incrementAndGet();
+    return entry.body.duplicate();
+  }
+
+  private synchronized void remove(Key key, Entry entry)
+  {
+    if (entries.remove(key, entry)) {
+      weight.addAndGet(-entry.size);
+      release(entry);
+    }
+  }
+
+  /**
+   * Returns the chunk of an entry which has been removed to the slab store.
+   */
+  private void release(Entry entry)
+  {
+    if (store != null && entry.body.isDirect()) store.free(entry.body);
+  }
+
+  private static ByteBuffer copyToHeap(ByteBuffer value)
+  {
+    byte[] bytes = new byte[value.remaining()];
+    value.duplicate().get(bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  /**
+   * Caches a copy of the remaining bytes of <code>value</code> with the default time to live if the
+   * admission policy accepts it. The position of <code>value</code> is not changed.
+   */
+  public void put(Key key, ByteBuffer value)
+  {
+    put(key, value, timeToLive);
+  }
+
+  /**
+   * Caches a copy of the remaining bytes of <code>value</code> if the admission policy accepts it.
+   * The position of <code>value</code> is not changed.
+   * 
+   * @param timeToLive
+   *          time in milliseconds after which the entry expires, 0 if it does not expire. Only
+   *          admitted entries which do not expire are written to the disk cache.
+   */
+  public void put(Key key, ByteBuffer value, long timeToLive)
+  {
+    put(key, value, timeToLive, true);
+  }
+
+  private void put(Key key, ByteBuffer value, long timeToLive, boolean writeThrough)
+  {
+    final int size = value.remaining();
+    if (size > maxBytes) {
+      rejections.incrementAndGet();
+      return;
+    }
+    ByteBuffer body = store == null ? copyToHeap(value) : null;
+
+    synchronized (this) {
+      Entry previous = entries.get(key);
+      long required = weight.get() + size - (previous == null ? 0 : previous.size) - maxBytes;
+      if (required > 0 && removeExpired()) {
+        previous = entries.get(key);
+        required = weight.get() + size - (previous == null ? 0 : previous.size) - maxBytes;
+      }
+      List<Map.Entry<Key, Entry>> victims = required > 0 ? selectVictims(key, required) : null;
+      if (required > 0 && victims == null) {
+        rejections.incrementAndGet();
+        return;
+      }
+      if (victims != null) {
+        for (Map.Entry<Key, Entry> victim : victims) {
+          entries.remove(victim.getKey());
+          weight.addAndGet(-victim.getValue().size);
+          release(victim.getValue());
+          evictions.incrementAndGet();
+        }
+      }
+      if (body == null) {
+        body = store.allocate(size);
+        if (body == null) body = copyToHeap(value);
+        else body.duplicate().put(value.duplicate());
+      }
+      previous = entries.put(key, new Entry(body, timeToLive));
+      weight.addAndGet(size - (previous == null ? 0 : previous.size));
+      if (previous != null) release(previous);
+    }
+    //outside of the lock and without waiting for the disk, one-time entries are not written
+    DiskCache disk = diskCache;
+    if (writeThrough && disk != null && timeToLive == 0) disk.putAsync(key, value);
+  }
+
+  /**
+   * Removes the expired entries before entries which are still valid are considered for eviction.
+   * Called with the lock held.
+   * 
+   * @return true if an entry has been removed
+   */
+  private boolean removeExpired()
+  {
+    boolean removed = false;
+    long now = System.nanoTime();
+    for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+      if (entry.getValue().isExpired(now)) {
+        remove(entry.getKey(), entry.getValue());
+        expirations.incrementAndGet();
+        removed = true;
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * @return the entries to evict to free <code>required</code> bytes or null if one of them is
+   *         requested at least as often as <code>candidate</code>
+   */
+  private List<Map.Entry<Key, Entry>> selectVictims(Key candidate, long required)
+  {
+    final Map<Key, Integer> frequencies = new HashMap<Key, Integer>();
+    List<Map.Entry<Key, Entry>> all = new ArrayList<Map.Entry<Key, Entry>>(entries.entrySet());
+    for (Map.Entry<Key, Entry> entry : all) {
+      frequencies.put(entry.getKey(), sketch.frequency(entry.getKey()));
+    }
+    Collections.sort(all, new Comparator<Map.Entry<Key, Entry>>() {
+      @Override
+      public int compare(Map.Entry<Key, Entry> e1, Map.Entry<Key, Entry> e2)
+      {
+        int result = frequencies.get(e1.getKey()).compareTo(frequencies.get(e2.getKey()));
+        if (result != 0) return result;
+        return Long.valueOf(e1.getValue().lastAccess).compareTo(e2.getValue().lastAccess);
+      }
+    });
+
+    int candidateFrequency = sketch.frequency(candidate);
+    List<Map.Entry<Key, Entry>> victims = new ArrayList<Map.Entry<Key, Entry>>();
+    long freed = 0;
+    for (Map.Entry<Key, Entry> entry : all) {
+      if (freed >= required) break;
+      if (entry.getKey().equals(candidate)) continue;
+      if (frequencies.get(entry.getKey()) >= candidateFrequency) return null;
+      victims.add(entry);
+      freed += entry.getValue().size;
+    }
+    return freed >= required ? victims : null;
+  }
+
+  /**
+   * Adds a tier on disk: misses are looked up there and admitted entries are written to it by the
+   * writer thread of the disk cache, see {@link DiskCache#putAsync(Key, ByteBuffer)}. Keys containing
+   * parts without a stable representation (see {@link DiskCache}) are kept in memory only.
+   * 
+   * @param diskCache
+   *          the disk cache or null to remove it
+   */
+  public void setDiskCache(DiskCache diskCache)
+  {
+    this.diskCache = diskCache;
+  }
+
+  public DiskCache getDiskCache()
+  {
+    return diskCache;
+  }
+
+  /**
+   * @return the store holding the cached bytes off-heap or null
+   */
+  public SlabStore getSlabStore()
+  {
+    return store;
+  }
+
+  /**
+   * Removes all entries from memory, e.g. after the template has been reloaded. The entries on disk
+   * are kept, keys of rendered templates contain the hash of the template content.
+   */
+  public synchronized void clear()
+  {
+    for (Entry entry : entries.values()) {
+      release(entry);
+    }
+    entries.clear();
+    weight.set(0);
+  }
+
+  /**
+   * @return the number of cached entries
+   */
+  public int size()
+  {
+    return entries.size();
+  }
+
+  /**
+   * @return the total size of the cached bytes
+   */
+  public long getWeight()
+  {
+    return weight.get();
+  }
+
+  public long getMaxBytes()
+  {
+    return maxBytes;
+  }
+
+  public long getHitCount()
+  {
+    return hits.get();
+  }
+
+  public long getMissCount()
+  {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of entries removed to make room for new entries
+   */
+  public long getEvictionCount()
+  {
+    return evictions.get();
+  }
+
+  /**
+   * @return the number of entries not cached because the cache was full and they were requested
+   *         less often than the cached entries
+   */
+  public long getRejectionCount()
+  {
+    return rejections.get();
+  }
+
+  /**
+   * @return the number of entries removed because their time to live has passed
+   */
+  public long getExpirationCount()
+  {
+    return expirations.get();
+  }
+
+  /**
+   * @return the default time to live in milliseconds, 0 if entries do not expire
+   */
+  public long getTimeToLive()
+  {
+    return timeToLive;
+  }
+
+}
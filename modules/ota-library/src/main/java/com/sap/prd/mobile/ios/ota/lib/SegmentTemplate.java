@@ -0,0 +1,269 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <code>TemplateEngine</code> for templates which only contain plain references like
+ * <code>$name</code>, <code>$!name</code>, <code>${name}</code> or <code>$!{name}</code>. The
+ * template is split once into literal segments and variable slots, merging just concatenates them.
+ * <br/>
+ * The output is the same Velocity would produce: a reference to a missing value is written as is,
+ * a quiet reference (<code>$!name</code>) is omitted. Templates using anything else (directives,
+ * comments, escapes, method calls, ...) are not compiled, see {@link #compile(String, String)}.
+ * <br/>
+ * The literal segments are also kept encoded, so the byte oriented methods only encode the values
+ * per call.
+ */
+public class SegmentTemplate implements TemplateEngine
+{
+
+  private static final Charset CHARSET = Charset.forName(VelocityBase.ENCODING);
+
+  private static final String[] DIRECTIVES = { "set", "if", "elseif", "else", "end", "foreach", "include", "parse",
+        "macro", "stop", "break", "define", "evaluate", "literal" };
+
+  private final String templateName;
+
+  /** literals.length == names.length + 1 */
+  private final String[] literals;
+  private final String[] names;
+  /** distinct names, each value is looked up once per merge */
+  private final String[] variables;
+  /** index into variables for each name */
+  private final int[] slots;
+  private final String[] references;
+  private final boolean[] quiet;
+  private final byte[][] encodedLiterals;
+  private final byte[][] encodedReferences;
+
+  private SegmentTemplate(String templateName, List<String> literals, List<String> names, List<String> references,
+        List<Boolean> quiet)
+  {
+    this.templateName = templateName;
+    this.literals = literals.toArray(new String[literals.size()]);
+    this.names = names.toArray(new String[names.size()]);
+    this.variables = new LinkedHashSet<String>(names).toArray(new String[0]);
+    Map<String, Integer> index = TemplateVariables.index(this.variables);
+    this.slots = new int[this.names.length];
+    for (int i = 0; i < this.slots.length; i++) {
+      this.slots[i] = index.get(this.names[i]);
+    }
+    this.references = references.toArray(new String[references.size()]);
+    this.quiet = new boolean[quiet.size()];
+    for (int i = 0; i < this.quiet.length; i++) {
+      this.quiet[i] = quiet.get(i);
+    }
+    this.encodedLiterals = encode(this.literals);
+    this.encodedReferences = encode(this.references);
+  }
+
+  private static byte[][] encode(String[] strings)
+  {
+    byte[][] result = new byte[strings.length][];
+    for (int i = 0; i < strings.length; i++) {
+      result[i] = strings[i].getBytes(CHARSET);
+    }
+    return result;
+  }
+
+  /**
+   * Splits the template source into literal segments and references.
+   * 
+   * @param templateName
+   * @param source
+   *          the template content
+   * @return the compiled template or <code>null</code> if the template uses anything beyond plain
+   *         references and has to be processed by Velocity
+   */
+  public static SegmentTemplate compile(String templateName, String source)
+  {
+    List<String> literals = new ArrayList<String>();
+    List<String> names = new ArrayList<String>();
+    List<String> references = new ArrayList<String>();
+    List<Boolean> quiet = new ArrayList<Boolean>();
+
+    final int length = source.length();
+    int literalStart = 0;
+    int i = 0;
+    while (i < length) {
+      char c = source.charAt(i);
+      if (c == '\\' && i + 1 < length && (source.charAt(i + 1) == '$' || source.charAt(i + 1) == '#')) {
+        return null; //escaping depends on the context
+      }
+      if (c == '#' && isDirective(source, i)) {
+        return null;
+      }
+      if (c != '$') {
+        i++;
+        continue;
+      }
+
+      int j = i + 1;
+      boolean isQuiet = j < length && source.charAt(j) == '!';
+      if (isQuiet) j++;
+      boolean braced = j < length && source.charAt(j) == '{';
+      if (braced) j++;
+      if (j >= length || !isIdentifierStart(source.charAt(j))) {
+        if (braced) return null;
+        i++; //'$' not starting a reference, e.g. jQuery's "$("
+        continue;
+      }
+      int nameStart = j;
+      while (j < length && isIdentifierPart(source.charAt(j))) {
+        j++;
+      }
+      int nameEnd = j;
+      if (braced) {
+        if (j >= length || source.charAt(j) != '}') return null;
+        j++;
+      }
+      else if (j < length) {
+        char next = source.charAt(j);
+        if (next == '-' || next == '[' || next == '(') return null;
+        if (next == '.' && j + 1 < length && isIdentifierStart(source.charAt(j + 1))) return null;
+      }
+
+      literals.add(source.substring(literalStart, i));
+      names.add(source.substring(nameStart, nameEnd));
+      references.add(source.substring(i, j));
+      quiet.add(isQuiet);
+      literalStart = j;
+      i = j;
+    }
+    literals.add(source.substring(literalStart));
+    return new SegmentTemplate(templateName, literals, names, references, quiet);
+  }
+
+  private static boolean isDirective(String source, int idx)
+  {
+    int j = idx + 1;
+    if (j >= source.length()) return false;
+    char next = source.charAt(j);
+    if (next == '#' || next == '*' || next == '{' || next == '[' || next == '@') return true;
+    if (!isIdentifierStart(next)) return false;
+    int start = j;
+    while (j < source.length() && isIdentifierPart(source.charAt(j))) {
+      j++;
+    }
+    String identifier = source.substring(start, j);
+    for (String directive : DIRECTIVES) {
+      if (identifier.startsWith(directive)) return true;
+    }
+    while (j < source.length() && Character.isWhitespace(source.charAt(j))) {
+      j++;
+    }
+    return j < source.length() && source.charAt(j) == '('; //macro call
+  }
+
+  private static boolean isIdentifierStart(char c)
+  {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+  }
+
+  private static boolean isIdentifierPart(char c)
+  {
+    return isIdentifierStart(c) || (c >= '0' && c <= '9');
+  }
+
+  @Override
+  public String getTemplateName()
+  {
+    return templateName;
+  }
+
+  @Override
+  public String[] getVariables()
+  {
+    return variables.clone();
+  }
+
+  @Override
+  public void merge(Map<String, Object> mappings, Writer writer) throws IOException
+  {
+    Object[] values = TemplateVariables.values(variables, mappings);
+    for (int i = 0; i < names.length; i++) {
+      writer.write(literals[i]);
+      Object value = values[slots[i]];
+      String string = value == null ? null : value.toString();
+      if (string != null) {
+        writer.write(string);
+      }
+      else if (!quiet[i]) {
+        writer.write(references[i]);
+      }
+    }
+    writer.write(literals[names.length]);
+  }
+
+  @Override
+  public void merge(Map<String, Object> mappings, OutputStream out) throws IOException
+  {
+    Object[] values = TemplateVariables.values(variables, mappings);
+    for (int i = 0; i < names.length; i++) {
+      out.write(encodedLiterals[i]);
+      byte[] value = encodeValue(values, i);
+      if (value != null) out.write(value);
+    }
+    out.write(encodedLiterals[names.length]);
+  }
+
+  @Override
+  public ByteBuffer merge(Map<String, Object> mappings) throws IOException
+  {
+    Object[] values = TemplateVariables.values(variables, mappings);
+    byte[][] encoded = new byte[names.length][];
+    int length = encodedLiterals[names.length].length;
+    for (int i = 0; i < names.length; i++) {
+      encoded[i] = encodeValue(values, i);
+      length += encodedLiterals[i].length + (encoded[i] == null ? 0 : encoded[i].length);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    for (int i = 0; i < names.length; i++) {
+      buffer.put(encodedLiterals[i]);
+      if (encoded[i] != null) buffer.put(encoded[i]);
+    }
+    buffer.put(encodedLiterals[names.length]);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * @return the encoded value of slot <code>i</code>, the encoded reference if the value is missing
+   *         or null for a missing quiet reference
+   */
+  private byte[] encodeValue(Object[] values, int i)
+  {
+    Object value = values[slots[i]];
+    String string = value == null ? null : value.toString();
+    if (string != null) return string.getBytes(CHARSET);
+    return quiet[i] ? null : encodedReferences[i];
+  }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls with equal keys: only the first caller executes the task, callers
+ * arriving while it is running wait for and share its result (or exception). Once the call has
+ * completed the key is released, results are not kept, use a {@link RenderCache} for that.
+ */
+public class SingleFlight<K, V>
+{
+
+  private final ConcurrentMap<K, FutureTask<V>> calls = new ConcurrentHashMap<K, FutureTask<V>>();
+  private final AtomicLong executions = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * Executes <code>task</code> in the calling thread unless a call with an equal key is already
+   * running, then the result of that call is returned.
+   * 
+   * @throws ExecutionException
+   *           if the task, or the task of the call which has been joined, has thrown an exception
+   * @throws InterruptedException
+   *           if interrupted while waiting for the call of another thread
+   */
+  public V call(K key, Callable<V> task) throws ExecutionException, InterruptedException
+  {
+    FutureTask<V> call = new FutureTask<V>(task);
+    FutureTask<V> running = calls.putIfAbsent(key, call);
+    if (running != null) {
+      coalesced.incrementAndGet();
+      return running.get();
+    }
+    executions.incrementAndGet();
+    try {
+      call.run();
+    }
+    finally {
+      calls.remove(key, call);
+    }
+    return call.get();
+  }
+
+  /**
+   * @return number of calls currently running
+   */
+  public int size()
+  {
+    return calls.size();
+  }
+
+  /**
+   * @return number of calls which executed their task
+   */
+  public long getExecutionCount()
+  {
+    return executions.get();
+  }
+
+  /**
+   * @return number of calls which shared the result of a running call instead of executing their
+   *         task
+   */
+  public long getCoalescedCount()
+  {
+    return coalesced.get();
+  }
+
+}
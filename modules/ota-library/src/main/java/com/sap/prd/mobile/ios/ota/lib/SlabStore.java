@@ -0,0 +1,323 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Off-heap storage for cached bodies, so that they do not add to the heap the garbage collector has
+ * to scan and copy. Memory is allocated as direct slabs which are divided into chunks of one size
+ * class (powers of two). A slab is assigned to a size class when it is needed and returned to the
+ * pool when all of its chunks are free again.<br/>
+ * A freed chunk may still be read, e.g. by a response sending the evicted body. Threads reading
+ * buffers of the store therefore enter a read section ({@link #enter()} and {@link #exit(long)}),
+ * freed chunks are only reused after all read sections which were active when they have been freed
+ * have been left (epoch based reclamation).
+ */
+public class SlabStore
+{
+
+  /**
+   * Size of the smallest chunks.
+   */
+  public static final int MIN_CHUNK_SIZE = 256;
+
+  /**
+   * Default size of a slab, also the size of the largest chunks.
+   */
+  public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+  private static final AtomicLong epoch = new AtomicLong();
+
+  /** number of threads in a read section, by the parity of the epoch they have entered */
+  private static final AtomicLongArray readers = new AtomicLongArray(2);
+
+  /** number of read sections the current thread is in */
+  private static final ThreadLocal<int[]> sections = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue()
+    {
+      return new int[1];
+    }
+  };
+
+  private static final class Slab
+  {
+    final ByteBuffer buffer;
+    int sizeClass = -1;
+    int chunks;
+    int freeChunks;
+
+    Slab(int size)
+    {
+      buffer = ByteBuffer.allocateDirect(size);
+    }
+  }
+
+  private static final class Chunk
+  {
+    final Slab slab;
+    final int offset;
+    long freed;
+
+    Chunk(Slab slab, int offset)
+    {
+      this.slab = slab;
+      this.offset = offset;
+    }
+  }
+
+  private final int slabSize;
+  private final int maxSlabs;
+  private final List<LinkedList<Chunk>> freeChunks = new ArrayList<LinkedList<Chunk>>();
+  private final LinkedList<Slab> freeSlabs = new LinkedList<Slab>();
+  private final Map<ByteBuffer, Chunk> allocated = new IdentityHashMap<ByteBuffer, Chunk>();
+  private final LinkedList<Chunk> retired = new LinkedList<Chunk>();
+  private int slabs;
+  private long usedBytes;
+
+  private final AtomicLong allocations = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   * @param maxBytes
+   *          maximum size of all slabs
+   */
+  public SlabStore(long maxBytes)
+  {
+    this(maxBytes, DEFAULT_SLAB_SIZE);
+  }
+
+  /**
+   * @param maxBytes
+   *          maximum size of all slabs
+   * @param slabSize
+   *          size of a slab, a power of two not smaller than {@link #MIN_CHUNK_SIZE}
+   */
+  public SlabStore(long maxBytes, int slabSize)
+  {
+    if (slabSize < MIN_CHUNK_SIZE || Integer.bitCount(slabSize) != 1) {
+      throw new IllegalArgumentException("Invalid slab size: " + slabSize);
+    }
+    if (maxBytes < 0) throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+    this.slabSize = slabSize;
+    this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, maxBytes / slabSize);
+    for (int size = MIN_CHUNK_SIZE; size <= slabSize; size <<= 1) {
+      freeChunks.add(new LinkedList<Chunk>());
+    }
+  }
+
+  /**
+   * Enters a read section. Buffers obtained from a store remain unchanged until the section is left,
+   * even if they are freed in the meantime.
+   * 
+   * @return the ticket to pass to {@link #exit(long)}
+   */
+  public static long enter()
+  {
+    while (true) {
+      long current = epoch.get();
+      readers.incrementAndGet((int) (current & 1));
+      if (epoch.get() == current) {
+        sections.get()[0]++;
+        return current;
+      }
+      readers.decrementAndGet((int) (current & 1));
+    }
+  }
+
+  /**
+   * Leaves the read section entered with <code>ticket</code>.
+   */
+  public static void exit(long ticket)
+  {
+    sections.get()[0]--;
+    readers.decrementAndGet((int) (ticket & 1));
+  }
+
+  /**
+   * @return true if the current thread is in a read section, see {@link #enter()}
+   */
+  public static boolean isInReadSection()
+  {
+    return sections.get()[0] > 0;
+  }
+
+  /**
+   * Advances the epoch if no thread is left in a read section of the previous epoch. A chunk freed in
+   * epoch <code>e</code> can be reused from epoch <code>e + 2</code> on.
+   * 
+   * @return the current epoch
+   */
+  private static long advance()
+  {
+    long current = epoch.get();
+    if (readers.get((int) (current - 1 & 1)) == 0) epoch.compareAndSet(current, current + 1);
+    return epoch.get();
+  }
+
+  /**
+   * Allocates a direct buffer with <code>length</code> remaining bytes.
+   * 
+   * @return the buffer or null if <code>length</code> is larger than a slab or no chunk is free
+   */
+  public synchronized ByteBuffer allocate(int length)
+  {
+    int sizeClass = getSizeClass(length);
+    if (sizeClass < 0) {
+      failures.incrementAndGet();
+      return null;
+    }
+    reclaim();
+    LinkedList<Chunk> free = freeChunks.get(sizeClass);
+    if (free.isEmpty() && !assignSlab(sizeClass)) {
+      failures.incrementAndGet();
+      return null;
+    }
+    Chunk chunk = free.removeFirst();
+    chunk.slab.freeChunks--;
+    usedBytes += MIN_CHUNK_SIZE << sizeClass;
+    ByteBuffer buffer = chunk.slab.buffer.duplicate();
+    buffer.position(chunk.offset);
+    buffer.limit(chunk.offset + length);
+    buffer = buffer.slice();
+    allocated.put(buffer, chunk);
+    allocations.incrementAndGet();
+    return buffer;
+  }
+
+  /**
+   * Frees a buffer returned by {@link #allocate(int)}. Its chunk is reused once the current read
+   * sections have been left.
+   */
+  public synchronized void free(ByteBuffer buffer)
+  {
+    Chunk chunk = allocated.remove(buffer);
+    if (chunk == null) throw new IllegalArgumentException("Buffer has not been allocated by this store");
+    chunk.freed = epoch.get();
+    retired.add(chunk);
+  }
+
+  /**
+   * @return the index of the smallest size class holding <code>length</code> bytes or -1
+   */
+  private int getSizeClass(int length)
+  {
+    if (length > slabSize) return -1;
+    int sizeClass = 0;
+    while (MIN_CHUNK_SIZE << sizeClass < length) {
+      sizeClass++;
+    }
+    return sizeClass;
+  }
+
+  private boolean assignSlab(int sizeClass)
+  {
+    Slab slab;
+    if (!freeSlabs.isEmpty()) {
+      slab = freeSlabs.removeFirst();
+    }
+    else if (slabs < maxSlabs) {
+      slab = new Slab(slabSize);
+      slabs++;
+    }
+    else {
+      return false;
+    }
+    int chunkSize = MIN_CHUNK_SIZE << sizeClass;
+    slab.sizeClass = sizeClass;
+    slab.chunks = slabSize / chunkSize;
+    slab.freeChunks = slab.chunks;
+    LinkedList<Chunk> free = freeChunks.get(sizeClass);
+    for (int offset = 0; offset < slabSize; offset += chunkSize) {
+      free.add(new Chunk(slab, offset));
+    }
+    return true;
+  }
+
+  /**
+   * Returns the retired chunks which cannot be read anymore to their free lists. Called with the
+   * lock held.
+   */
+  private void reclaim()
+  {
+    long current = advance();
+    while (!retired.isEmpty() && retired.getFirst().freed + 2 <= current) {
+      Chunk chunk = retired.removeFirst();
+      Slab slab = chunk.slab;
+      usedBytes -= MIN_CHUNK_SIZE << slab.sizeClass;
+      LinkedList<Chunk> free = freeChunks.get(slab.sizeClass);
+      if (++slab.freeChunks < slab.chunks) {
+        free.addFirst(chunk);
+        continue;
+      }
+      //the whole slab is free, it can be used for another size class
+      for (Iterator<Chunk> chunks = free.iterator(); chunks.hasNext();) {
+        if (chunks.next().slab == slab) chunks.remove();
+      }
+      slab.sizeClass = -1;
+      freeSlabs.add(slab);
+    }
+  }
+
+  /**
+   * @return the size of the allocated slabs
+   */
+  public synchronized long getCapacity()
+  {
+    return (long) slabs * slabSize;
+  }
+
+  public long getMaxBytes()
+  {
+    return (long) maxSlabs * slabSize;
+  }
+
+  /**
+   * @return the size of the chunks in use, including freed chunks which may still be read
+   */
+  public synchronized long getUsedBytes()
+  {
+    return usedBytes;
+  }
+
+  public long getAllocationCount()
+  {
+    return allocations.get();
+  }
+
+  /**
+   * @return the number of allocations which failed because the store was full or the requested
+   *         length was larger than a slab
+   */
+  public long getFailureCount()
+  {
+    return failures.get();
+  }
+
+}
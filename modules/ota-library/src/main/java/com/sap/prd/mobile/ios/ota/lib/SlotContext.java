@@ -0,0 +1,107 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.velocity.context.AbstractContext;
+
+/**
+ * Velocity context holding the values of the variables a template references in an array. The
+ * index of the slots is shared by all merges of the template, only the value array is created per
+ * merge. Variables created by the template itself which have no slot (e.g. by <code>#set</code>)
+ * are kept in a separate map.
+ */
+class SlotContext extends AbstractContext
+{
+
+  private final Map<String, Integer> slots;
+  private final Object[] values;
+  private Map<String, Object> locals;
+
+  /**
+   * @param slots
+   *          index of each variable in <code>values</code>, see
+   *          {@link TemplateVariables#index(String[])}
+   * @param values
+   *          the values, not copied
+   */
+  SlotContext(Map<String, Integer> slots, Object[] values)
+  {
+    this.slots = slots;
+    this.values = values;
+  }
+
+  @Override
+  public Object internalGet(String key)
+  {
+    Integer slot = slots.get(key);
+    if (slot != null) return values[slot];
+    return locals == null ? null : locals.get(key);
+  }
+
+  @Override
+  public Object internalPut(String key, Object value)
+  {
+    Integer slot = slots.get(key);
+    if (slot != null) {
+      Object previous = values[slot];
+      values[slot] = value;
+      return previous;
+    }
+    if (locals == null) locals = new HashMap<String, Object>();
+    return locals.put(key, value);
+  }
+
+  @Override
+  public boolean internalContainsKey(Object key)
+  {
+    Integer slot = slots.get(key);
+    if (slot != null) return values[slot] != null;
+    return locals != null && locals.containsKey(key);
+  }
+
+  @Override
+  public Object[] internalGetKeys()
+  {
+    List<Object> keys = new ArrayList<Object>();
+    for (Map.Entry<String, Integer> entry : slots.entrySet()) {
+      if (values[entry.getValue()] != null) keys.add(entry.getKey());
+    }
+    if (locals != null) keys.addAll(locals.keySet());
+    return keys.toArray();
+  }
+
+  @Override
+  public Object internalRemove(Object key)
+  {
+    Integer slot = slots.get(key);
+    if (slot != null) {
+      Object previous = values[slot];
+      values[slot] = null;
+      return previous;
+    }
+    return locals == null ? null : locals.remove(key);
+  }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * A loaded template which can be merged with key/value pairs. Implementations must be safe for
+ * concurrent use, a single instance is shared by all requests.<br/>
+ * The byte oriented methods write the output encoded with {@link VelocityBase#ENCODING}.
+ */
+public interface TemplateEngine
+{
+
+  /**
+   * @return the name of the template, e.g. the absolute path of a template file
+   */
+  public String getTemplateName();
+
+  /**
+   * @return the names of the variables referenced by the template, determined when the template is
+   *         loaded, or null if they cannot be determined statically. Only these keys of the
+   *         mappings are read when the template is merged.
+   */
+  public String[] getVariables();
+
+  /**
+   * Writes the template to <code>writer</code>, replacing the references with the values of
+   * <code>mappings</code>.
+   * 
+   * @param mappings
+   *          key/value pairs used in the template
+   * @param writer
+   * @throws IOException
+   */
+  public void merge(Map<String, Object> mappings, Writer writer) throws IOException;
+
+  /**
+   * Writes the encoded template to <code>out</code>. The stream is not closed.
+   * 
+   * @param mappings
+   *          key/value pairs used in the template
+   * @param out
+   * @throws IOException
+   */
+  public void merge(Map<String, Object> mappings, OutputStream out) throws IOException;
+
+  /**
+   * Returns the encoded template in a buffer whose remaining bytes are exactly the output, e.g. to
+   * send a <code>Content-Length</code> before the body.
+   * 
+   * @param mappings
+   *          key/value pairs used in the template
+   * @return the output
+   * @throws IOException
+   */
+  public ByteBuffer merge(Map<String, Object> mappings) throws IOException;
+
+}
@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.ASTStringLiteral;
+import org.apache.velocity.runtime.parser.node.Node;
+
+/**
+ * Finds the variables referenced by a template, so that only their values have to be passed when
+ * the template is merged.
+ */
+final class TemplateVariables
+{
+
+  /**
+   * Directives which can only use variables appearing in the template itself. Anything else (e.g.
+   * <code>#parse</code>, <code>#evaluate</code> or macro calls) may reference any variable.
+   */
+  private static final Set<String> CLOSED_DIRECTIVES = new HashSet<String>(Arrays.asList("foreach", "literal",
+        "stop", "break", "define"));
+
+  private TemplateVariables()
+  {
+  }
+
+  /**
+   * Collects the root names of all references in the parsed template, e.g. <code>name</code> for
+   * <code>$!{name.length()}</code>.
+   * 
+   * @return the names in the order of their first occurrence or null if the referenced variables
+   *         cannot be determined statically
+   */
+  static String[] find(Template template)
+  {
+    Object data = template.getData();
+    if (!(data instanceof Node)) return null;
+    Set<String> names = new LinkedHashSet<String>();
+    if (!collect((Node) data, names)) return null;
+    return names.toArray(new String[names.size()]);
+  }
+
+  private static boolean collect(Node node, Set<String> names)
+  {
+    if (node instanceof ASTReference) {
+      String root = ((ASTReference) node).getRootString();
+      if (root == null) return false;
+      names.add(root);
+    }
+    else if (node instanceof ASTDirective) {
+      if (!CLOSED_DIRECTIVES.contains(((ASTDirective) node).getDirectiveName())) return false;
+    }
+    else if (node instanceof ASTStringLiteral) {
+      String literal = node.literal();
+      if (literal == null || literal.indexOf('$') >= 0 || literal.indexOf('#') >= 0) return false; //interpolated when rendered
+    }
+    for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+      if (!collect(node.jjtGetChild(i), names)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return the slot of each variable
+   */
+  static Map<String, Integer> index(String[] variables)
+  {
+    Map<String, Integer> index = new HashMap<String, Integer>();
+    for (int i = 0; i < variables.length; i++) {
+      index.put(variables[i], i);
+    }
+    return Collections.unmodifiableMap(index);
+  }
+
+  /**
+   * @return the values of <code>variables</code> in <code>mappings</code>, one slot per variable
+   */
+  static Object[] values(String[] variables, Map<String, ?> mappings)
+  {
+    Object[] values = new Object[variables.length];
+    for (int i = 0; i < variables.length; i++) {
+      values[i] = mappings.get(variables[i]);
+    }
+    return values;
+  }
+
+}
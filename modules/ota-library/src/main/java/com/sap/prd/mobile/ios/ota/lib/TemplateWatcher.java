@@ -0,0 +1,149 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static java.util.logging.Level.SEVERE;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Watches template files and notifies a listener when a file has been modified. All files are
+ * checked by one background daemon thread, requests never touch the file system for that.<br/>
+ * The library targets Java 6, so the modification time and size are polled instead of using
+ * <code>java.nio.file.WatchService</code>.
+ */
+public class TemplateWatcher
+{
+
+  private static final Logger LOG = Logger.getLogger(TemplateWatcher.class.getSimpleName());
+
+  /**
+   * Interval in milliseconds between two checks of a file.
+   */
+  public static final long CHECK_INTERVAL = 1000;
+
+  private static final ConcurrentMap<String, Watch> WATCHES = new ConcurrentHashMap<String, Watch>();
+  private static ScheduledExecutorService executor;
+
+  private static class Watch implements Runnable
+  {
+    private final String key;
+    private final File file;
+    private final Runnable listener;
+    private long lastModified;
+    private long length;
+    private ScheduledFuture<?> future;
+
+    Watch(String key, File file, Runnable listener)
+    {
+      this.key = key;
+      this.file = file;
+      this.listener = listener;
+      this.lastModified = file.lastModified();
+      this.length = file.length();
+    }
+
+    @Override
+    public void run()
+    {
+      long currentLastModified = file.lastModified();
+      long currentLength = file.length();
+      if (currentLastModified == lastModified && currentLength == length) return;
+      lastModified = currentLastModified;
+      length = currentLength;
+      if (!file.isFile()) return; //deleted or being replaced, keep the current template
+      LOG.info("Template modified: " + file.getAbsolutePath());
+      try {
+        listener.run();
+      }
+      catch (RuntimeException e) {
+        LOG.log(SEVERE, "Cannot reload template " + file.getAbsolutePath() + " (" + key + ")", e);
+      }
+    }
+  }
+
+  /**
+   * Starts watching <code>file</code>. If <code>key</code> is already watched nothing happens, so
+   * this method can be called for every request.
+   * 
+   * @param key
+   *          identifies the watch, e.g. the generator and the template
+   * @param file
+   *          the file to watch
+   * @param listener
+   *          called by the watcher thread after the file has been modified
+   */
+  public static void watch(String key, File file, Runnable listener)
+  {
+    if (WATCHES.containsKey(key)) return;
+    Watch watch = new Watch(key, file, listener);
+    if (WATCHES.putIfAbsent(key, watch) != null) return;
+    synchronized (TemplateWatcher.class) {
+      if (executor == null) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r)
+          {
+            Thread thread = new Thread(r, "ota-template-watcher");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+      watch.future = executor.scheduleWithFixedDelay(watch, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stops watching the file registered with <code>key</code>.
+   */
+  public static void unwatch(String key)
+  {
+    Watch watch = WATCHES.remove(key);
+    if (watch == null) return;
+    synchronized (TemplateWatcher.class) {
+      if (watch.future != null) watch.future.cancel(false);
+    }
+  }
+
+  /**
+   * Stops watching all files and terminates the watcher thread, e.g. when the web application is
+   * stopped.
+   */
+  public static void shutdown()
+  {
+    synchronized (TemplateWatcher.class) {
+      WATCHES.clear();
+      if (executor != null) {
+        executor.shutdownNow();
+        executor = null;
+      }
+    }
+  }
+
+}
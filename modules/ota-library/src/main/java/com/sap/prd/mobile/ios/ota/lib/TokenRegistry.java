@@ -0,0 +1,688 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_IDENTIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_VERSION;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_IPA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_OTA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_TITLE;
+import static java.util.logging.Level.WARNING;
+import static org.apache.commons.lang.StringUtils.isEmpty;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Registry of the parameters of PLIST URLs under short tokens, see
+ * {@link OtaPlistGenerator#generatePlistRequestUrl(java.net.URL, Map, TokenRegistry)}. Instead of a
+ * Base64 encoded path segment per parameter the URL gets a single segment, which makes the URL and
+ * its QR code much smaller.<br/>
+ * A token is {@value #PREFIX} followed by the first {@value #TOKEN_LENGTH} characters of the URL-safe
+ * Base64 encoded SHA-1 of the long form segments, so the same parameters always get the same token,
+ * also in other processes. Should two parameter sets share a prefix the later one gets a longer
+ * token.<br/>
+ * Tokens are resolved with one lookup of an in-memory index. The registry is bounded: it holds a
+ * maximum number of tokens and admits a maximum number of new tokens per second, the URLs of further
+ * parameters keep their long form.<br/>
+ * If a journal file is given each new token is appended to it by a background thread as a line with
+ * the token and the long form segments, the file is read when the registry is opened. Several
+ * processes can share the journal: appends are done while holding a lock of the file, unknown tokens
+ * are looked up in the lines appended by other processes in the meantime, at most once per refresh
+ * interval and without waiting for the file. Invalid and duplicate lines are removed when the
+ * registry is opened.
+ */
+public class TokenRegistry
+{
+
+  private static final Logger LOG = Logger.getLogger(TokenRegistry.class.getSimpleName());
+
+  /** first character of a token, it does not occur in long form segments */
+  public static final char PREFIX = '~';
+
+  /** number of hash characters in a token (66 bits) */
+  public static final int TOKEN_LENGTH = 11;
+
+  /** maximum number of tokens, further parameters are not admitted */
+  public static final int DEFAULT_MAX_TOKENS = 100000;
+
+  /** maximum number of new tokens per second and process */
+  public static final int DEFAULT_MAX_REGISTRATIONS_PER_SECOND = 50;
+
+  /** minimum time in milliseconds between two reads of the journal for unknown tokens */
+  public static final long DEFAULT_REFRESH_INTERVAL = 1000;
+
+  /** new tokens waiting for the journal, further parameters are not admitted */
+  static final int MAX_PENDING = 1024;
+
+  /** unknown tokens remembered to skip reading the journal for them again */
+  static final int MAX_UNKNOWN = 4096;
+
+  private static final long LOCK_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+  /** first line of the journal with the generation, it is incremented by each compaction */
+  private static final String HEADER_PREFIX = "#tokens ";
+  private static final int HEADER_LENGTH = HEADER_PREFIX.length() + 20;
+
+  /** the parameters of a PLIST URL, in the order of the long form segments */
+  private static final String[] KEYS = { KEY_REFERER, KEY_TITLE, KEY_BUNDLE_IDENTIFIER, KEY_BUNDLE_VERSION,
+      KEY_IPA_CLASSIFIER, KEY_OTA_CLASSIFIER };
+
+  private final ConcurrentMap<String, Map<String, String>> index = new ConcurrentHashMap<String, Map<String, String>>();
+  /** registered tokens not yet appended to the journal */
+  private final ConcurrentMap<String, Map<String, String>> pending =
+        new ConcurrentHashMap<String, Map<String, String>>();
+  /** unknown tokens and the System.nanoTime() they have been looked up in the journal */
+  private final ConcurrentMap<String, Long> unknown = new ConcurrentHashMap<String, Long>();
+  private final int maxTokens;
+  private final int maxRegistrationsPerSecond;
+  private final long refreshInterval;
+  private final File journal;
+  private final ThreadPoolExecutor writer;
+  private volatile boolean closed;
+
+  /** guards the journal file, the position and the generation */
+  private final ReentrantLock journalLock = new ReentrantLock();
+  private RandomAccessFile file;
+  /** length of the journal part which has been read, a partially written line is not included */
+  private long position;
+  private long generation;
+  private volatile long lastRefresh;
+
+  private final AtomicLong admissionSecond = new AtomicLong();
+  private final AtomicInteger admissions = new AtomicInteger();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong registrations = new AtomicLong();
+  private final AtomicLong rejections = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  /**
+   * Creates a registry which is kept in memory only, its tokens are lost with a restart.
+   */
+  public TokenRegistry()
+  {
+    this.journal = null;
+    this.writer = null;
+    this.maxTokens = DEFAULT_MAX_TOKENS;
+    this.maxRegistrationsPerSecond = DEFAULT_MAX_REGISTRATIONS_PER_SECOND;
+    this.refreshInterval = 0;
+  }
+
+  /**
+   * Opens the registry with the tokens of <code>journal</code> and the default limits, the file is
+   * created if it does not exist.
+   */
+  public TokenRegistry(File journal) throws IOException
+  {
+    this(journal, DEFAULT_MAX_TOKENS, DEFAULT_MAX_REGISTRATIONS_PER_SECOND, DEFAULT_REFRESH_INTERVAL);
+  }
+
+  /**
+   * Opens the registry with the tokens of <code>journal</code>, the file is created if it does not
+   * exist.
+   * 
+   * @param maxTokens
+   *          maximum number of tokens, also those registered by other processes
+   * @param maxRegistrationsPerSecond
+   *          maximum number of new tokens per second registered by this process
+   * @param refreshInterval
+   *          minimum time in milliseconds between two reads of the journal for unknown tokens
+   */
+  public TokenRegistry(File journal, int maxTokens, int maxRegistrationsPerSecond, long refreshInterval)
+        throws IOException
+  {
+    File directory = journal.getAbsoluteFile().getParentFile();
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create journal directory " + directory.getAbsolutePath());
+    }
+    this.journal = journal;
+    this.maxTokens = maxTokens;
+    this.maxRegistrationsPerSecond = maxRegistrationsPerSecond;
+    this.refreshInterval = TimeUnit.MILLISECONDS.toNanos(refreshInterval);
+    this.lastRefresh = System.nanoTime() - this.refreshInterval;
+    file = new RandomAccessFile(journal, "rw");
+    journalLock.lock();
+    try {
+      FileLock lock = lock(false, LOCK_TIMEOUT);
+      if (lock == null) {
+        file.close();
+        throw new IOException("Token journal " + journal.getAbsolutePath() + " is locked");
+      }
+      try {
+        if (file.length() == 0) writeHeader(1);
+        int wasted = readJournal();
+        if (wasted > 0) compact(wasted);
+      }
+      finally {
+        lock.release();
+      }
+    }
+    finally {
+      journalLock.unlock();
+    }
+    this.writer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1),
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+              Thread thread = new Thread(runnable, "ota-tokens");
+              thread.setDaemon(true);
+              return thread;
+            }
+          }, new ThreadPoolExecutor.DiscardPolicy()); //a queued flush appends all pending tokens
+    this.writer.allowCoreThreadTimeOut(true);
+    LOG.info("Token registry opened with " + index.size() + " tokens from " + journal.getAbsolutePath());
+  }
+
+  /**
+   * @return true if the (still URL encoded) path segment is a token, it is never a valid long form
+   *         segment
+   */
+  public static boolean isToken(String segment)
+  {
+    return segment != null && (segment.length() > 1 && segment.charAt(0) == PREFIX
+          || segment.length() > 3 && segment.regionMatches(true, 0, "%7E", 0, 3));
+  }
+
+  /**
+   * Returns the token for the PLIST parameters in <code>params</code> and registers it if it is new.
+   * Other parameters are ignored. A new token is appended to the journal by a background thread, it
+   * can be resolved by this process right away.
+   * 
+   * @return the token or null if it is new and not admitted, because the registry is full or closed,
+   *         too many tokens have been registered within the last second or the journal is behind
+   */
+  public String register(Map<String, String> params)
+  {
+    Map<String, String> plistParams = toPlistParameters(params);
+    String hash = hash(toSegments(plistParams));
+    for (int length = TOKEN_LENGTH; length < hash.length() + 4; length += 4) {
+      String token = PREFIX + hash.substring(0, Math.min(length, hash.length()));
+      Map<String, String> registered = index.get(token);
+      if (registered == null) registered = add(token, plistParams);
+      if (registered == null) return null;
+      if (registered.equals(plistParams)) return token;
+    }
+    throw new IllegalStateException("SHA-1 collision for " + plistParams);
+  }
+
+  /**
+   * Resolves <code>token</code>. An unknown token is looked up in the journal unless this has been
+   * done within the refresh interval or another thread accesses the journal, the lookup never waits.
+   * 
+   * @param token
+   *          the token, its prefix may be URL encoded
+   * @return the PLIST parameters registered for <code>token</code> or null if it is unknown
+   */
+  public Map<String, String> resolve(String token)
+  {
+    if (!isToken(token)) return null;
+    if (token.charAt(0) != PREFIX) token = PREFIX + token.substring(3);
+    Map<String, String> params = index.get(token);
+    if (params == null && journal != null) {
+      long now = System.nanoTime();
+      Long unknownSince = unknown.get(token);
+      if (unknownSince == null || now - unknownSince >= refreshInterval) {
+        if (refresh(now)) params = index.get(token); //registered by another process in the meantime?
+        if (params == null) {
+          if (unknown.size() >= MAX_UNKNOWN) unknown.clear();
+          unknown.put(token, now);
+        }
+      }
+    }
+    (params == null ? misses : hits).incrementAndGet();
+    return params;
+  }
+
+  /**
+   * Appends the new tokens to the journal and waits for it, otherwise this is done by a background
+   * thread.
+   */
+  public void flush() throws IOException
+  {
+    if (journal == null) return;
+    journalLock.lock();
+    try {
+      if (pending.isEmpty()) return;
+      if (file == null) throw new IOException("Token registry " + journal.getAbsolutePath() + " is closed");
+      FileLock lock = lock(false, LOCK_TIMEOUT);
+      if (lock == null) throw new IOException("Token journal " + journal.getAbsolutePath() + " is locked");
+      try {
+        readJournal(); //drops the pending tokens appended by other processes
+        StringBuilder lines = new StringBuilder();
+        //the rest of a line whose append has been interrupted is skipped as an invalid line
+        if (file.length() > position) lines.append('\n');
+        List<String> tokens = new ArrayList<String>();
+        for (Map.Entry<String, Map<String, String>> entry : pending.entrySet()) {
+          appendLine(lines, entry.getKey(), entry.getValue());
+          tokens.add(entry.getKey());
+        }
+        if (tokens.isEmpty()) return;
+        file.seek(file.length());
+        file.write(lines.toString().getBytes("US-ASCII"));
+        file.getChannel().force(false); //the tokens may be printed as QR codes
+        position = file.length();
+        for (String token : tokens) {
+          pending.remove(token);
+        }
+      }
+      finally {
+        lock.release();
+      }
+    }
+    catch (IOException e) {
+      errors.incrementAndGet();
+      throw e;
+    }
+    finally {
+      journalLock.unlock();
+    }
+  }
+
+  /**
+   * Closes the journal after the new tokens have been appended. Tokens can still be resolved, new
+   * tokens cannot be registered anymore.
+   */
+  public void close() throws IOException
+  {
+    closed = true;
+    if (journal == null) return;
+    writer.shutdown();
+    journalLock.lock();
+    try {
+      if (file == null) return;
+      try {
+        flush();
+      }
+      finally {
+        file.close();
+        file = null;
+        pending.clear();
+      }
+    }
+    finally {
+      journalLock.unlock();
+    }
+  }
+
+  /**
+   * @return the journal file or null if the registry is kept in memory only
+   */
+  public File getJournal()
+  {
+    return journal;
+  }
+
+  /**
+   * @return the number of known tokens
+   */
+  public int size()
+  {
+    return index.size();
+  }
+
+  public int getMaxTokens()
+  {
+    return maxTokens;
+  }
+
+  public long getHitCount()
+  {
+    return hits.get();
+  }
+
+  public long getMissCount()
+  {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of tokens registered by this process
+   */
+  public long getRegistrationCount()
+  {
+    return registrations.get();
+  }
+
+  /**
+   * @return the number of new tokens not admitted, their URLs have the long form
+   */
+  public long getRejectionCount()
+  {
+    return rejections.get();
+  }
+
+  /**
+   * @return the number of failed journal accesses and skipped journal lines
+   */
+  public long getErrorCount()
+  {
+    return errors.get();
+  }
+
+  /**
+   * Registers <code>token</code> unless it has been registered in the meantime or is not admitted.
+   * 
+   * @return the parameters registered for <code>token</code> or null if it is not admitted
+   */
+  private Map<String, String> add(String token, Map<String, String> params)
+  {
+    if (closed || index.size() >= maxTokens || pending.size() >= MAX_PENDING || !admit()) {
+      rejections.incrementAndGet();
+      return null;
+    }
+    Map<String, String> registered = index.putIfAbsent(token, params);
+    if (registered != null) return registered;
+    registrations.incrementAndGet();
+    if (journal != null) {
+      pending.put(token, params);
+      writer.execute(new Runnable() {
+        @Override
+        public void run()
+        {
+          try {
+            flush();
+          }
+          catch (IOException e) {
+            //the tokens stay pending and are appended with the next new token
+            LOG.log(WARNING, "Cannot append to token journal " + journal.getAbsolutePath(), e);
+          }
+        }
+      });
+    }
+    return params;
+  }
+
+  /**
+   * @return true if less than the maximum number of new tokens have been admitted in the current
+   *         second
+   */
+  private boolean admit()
+  {
+    long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    long previous = admissionSecond.get();
+    if (previous != second && admissionSecond.compareAndSet(previous, second)) admissions.set(0);
+    return admissions.incrementAndGet() <= maxRegistrationsPerSecond;
+  }
+
+  /**
+   * Reads the lines appended by other processes unless the journal has been read within the refresh
+   * interval or is accessed by another thread or process. Does not wait.
+   * 
+   * @return true if the journal has been read
+   */
+  private boolean refresh(long now)
+  {
+    if (now - lastRefresh < refreshInterval || !journalLock.tryLock()) return false;
+    try {
+      lastRefresh = now;
+      if (file == null) return false;
+      FileLock lock = lock(true, 0);
+      if (lock == null) return false;
+      try {
+        readJournal();
+        return true;
+      }
+      finally {
+        lock.release();
+      }
+    }
+    catch (IOException e) {
+      errors.incrementAndGet();
+      LOG.log(WARNING, "Cannot read token journal " + journal.getAbsolutePath(), e);
+      return false;
+    }
+    finally {
+      journalLock.unlock();
+    }
+  }
+
+  /**
+   * Acquires a lock of the journal. Other instances in this process and other processes holding it
+   * are waited for <code>timeout</code> nanoseconds at most.
+   * 
+   * @return the lock or null if it has not been released in time
+   */
+  private FileLock lock(boolean shared, long timeout) throws IOException
+  {
+    long deadline = System.nanoTime() + timeout;
+    while (true) {
+      try {
+        //null if another process holds the lock
+        FileLock lock = file.getChannel().tryLock(0, Long.MAX_VALUE, shared);
+        if (lock != null) return lock;
+      }
+      catch (OverlappingFileLockException e) {
+        //held by another instance in this process
+      }
+      if (System.nanoTime() - deadline >= 0) return null;
+      try {
+        Thread.sleep(1);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Reads the complete lines appended to the journal since the last call, all lines if another
+   * process has compacted it in the meantime. Called with the journal lock and a lock of the file
+   * held.
+   * 
+   * @return the number of invalid and duplicate lines
+   */
+  private int readJournal() throws IOException
+  {
+    if (file == null) return 0;
+    long generation = readGeneration();
+    if (generation != this.generation || file.length() < position) {
+      //the tokens are kept, they are contained in the compacted journal as well
+      this.generation = generation;
+      position = 0;
+    }
+    long length = file.length();
+    if (length <= position) return 0;
+    byte[] bytes = new byte[(int) (length - position)];
+    file.seek(position);
+    file.readFully(bytes);
+    int wasted = 0;
+    int start = 0;
+    for (int i = 0; i < bytes.length; i++) {
+      if (bytes[i] != '\n') continue;
+      if (i > start && !readLine(new String(bytes, start, i - start, "US-ASCII"))) wasted++;
+      start = i + 1;
+    }
+    position += start;
+    return wasted;
+  }
+
+  /**
+   * @return false if the line is invalid or contains a token which is already known
+   */
+  private boolean readLine(String line)
+  {
+    if (line.startsWith(HEADER_PREFIX)) return true;
+    String[] parts = line.split(" ");
+    try {
+      Map<String, String> params = new LinkedHashMap<String, String>();
+      for (int i = 1; i < parts.length; i++) {
+        String keyValue = LibUtils.decode(parts[i]);
+        int idx = keyValue.indexOf('=');
+        if (idx > 0) params.put(keyValue.substring(0, idx), keyValue.substring(idx + 1));
+      }
+      params = toPlistParameters(params);
+      //the token must match the parameters, otherwise the line is corrupt
+      if (parts.length > 1 && parts[0].length() > TOKEN_LENGTH && parts[0].charAt(0) == PREFIX
+            && hash(toSegments(params)).startsWith(parts[0].substring(1))) {
+        String token = parts[0];
+        pending.remove(token); //appended by another process
+        Map<String, String> registered = index.putIfAbsent(token, params);
+        if (registered != null && !registered.equals(params)) {
+          LOG.warning("Token " + token + " has been registered for other parameters by another process");
+        }
+        return registered == null;
+      }
+    }
+    catch (IllegalArgumentException e) {
+      //not URL encoded
+    }
+    errors.incrementAndGet();
+    LOG.warning("Skipping invalid line in token journal " + journal.getAbsolutePath() + ": " + line);
+    return false;
+  }
+
+  /**
+   * @return the generation of the journal, 0 if it has no header
+   */
+  private long readGeneration() throws IOException
+  {
+    if (file.length() < HEADER_LENGTH) return 0;
+    byte[] bytes = new byte[HEADER_LENGTH];
+    file.seek(0);
+    file.readFully(bytes);
+    String header = new String(bytes, "US-ASCII");
+    if (!header.startsWith(HEADER_PREFIX) || header.charAt(HEADER_LENGTH - 1) != '\n') return 0;
+    try {
+      return Long.parseLong(header.substring(HEADER_PREFIX.length(), HEADER_LENGTH - 1));
+    }
+    catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private void writeHeader(long generation) throws IOException
+  {
+    file.seek(0);
+    file.write(header(generation).getBytes("US-ASCII"));
+    file.getChannel().force(false);
+    this.generation = generation;
+    position = HEADER_LENGTH;
+  }
+
+  private static String header(long generation)
+  {
+    return HEADER_PREFIX + String.format("%019d", generation) + "\n";
+  }
+
+  /**
+   * Rewrites the journal with the known tokens only. Called when the registry is opened, with the
+   * journal lock and the exclusive lock of the file held. Other processes read the journal again
+   * because of the new generation.
+   */
+  private void compact(int wasted) throws IOException
+  {
+    StringBuilder lines = new StringBuilder(header(generation + 1));
+    for (Map.Entry<String, Map<String, String>> entry : index.entrySet()) {
+      appendLine(lines, entry.getKey(), entry.getValue());
+    }
+    byte[] bytes = lines.toString().getBytes("US-ASCII");
+    file.seek(0);
+    file.write(bytes);
+    file.setLength(bytes.length);
+    file.getChannel().force(false);
+    generation++;
+    position = bytes.length;
+    LOG.info("Compacted token journal " + journal.getAbsolutePath() + ", removed " + wasted + " lines");
+  }
+
+  private static void appendLine(StringBuilder lines, String token, Map<String, String> params)
+  {
+    lines.append(token);
+    for (String segment : toSegments(params)) {
+      lines.append(' ').append(segment);
+    }
+    lines.append('\n');
+  }
+
+  /**
+   * @return the non empty PLIST parameters in the order of {@link #KEYS}, unmodifiable
+   */
+  private static Map<String, String> toPlistParameters(Map<String, String> params)
+  {
+    Map<String, String> result = new LinkedHashMap<String, String>();
+    for (String key : KEYS) {
+      String value = params.get(key);
+      if (!isEmpty(value)) result.put(key, value);
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * @return the long form path segments as encoded by former versions, the hashes and thereby the
+   *         tokens must not change, see {@link Base64Url#encodeStandard(String)}
+   */
+  private static String[] toSegments(Map<String, String> plistParams)
+  {
+    String[] segments = new String[plistParams.size()];
+    int i = 0;
+    for (Map.Entry<String, String> entry : plistParams.entrySet()) {
+      segments[i++] = Base64Url.encodeStandard(entry.getKey() + "=" + entry.getValue());
+    }
+    return segments;
+  }
+
+  /**
+   * @return the URL-safe Base64 encoded SHA-1 of the segments without padding (27 characters)
+   */
+  static String hash(String[] segments)
+  {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e); //should never happen
+    }
+    for (String segment : segments) {
+      for (int i = 0; i < segment.length(); i++) {
+        digest.update((byte) segment.charAt(i)); //ASCII
+      }
+      digest.update((byte) '/');
+    }
+    byte[] hash = digest.digest();
+    return Base64Url.encode(hash, 0, hash.length);
+  }
+
+}
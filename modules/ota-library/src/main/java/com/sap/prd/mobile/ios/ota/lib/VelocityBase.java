@@ -21,16 +21,32 @@ package com.sap.prd.mobile.ios.ota.lib;
 
 import static org.apache.velocity.util.StringUtils.nullTrim;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.context.Context;
 import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.runtime.RuntimeConstants;
 
@@ -38,56 +54,384 @@ import com.sap.prd.mobile.ios.ota.lib.VelocityBase.IParameters;
 
 /**
  * Base class for the Velocity based Generators Each generator has to provide an IParameters
- * implementation to provide the parameters used in the template.
+ * implementation to provide the parameters used in the template.<br/>
+ * Templates only containing plain references are compiled into a {@link SegmentTemplate}, all
+ * other templates are merged by Velocity.<br/>
+ * All generators share the <code>VelocityEngine</code>s (see {@link #getVelocityEngine(String)}).
  * 
  * @param <P>
  */
-public abstract class VelocityBase<P extends IParameters>
+public abstract class VelocityBase<P extends IParameters> implements TemplateEngine
 {
 
+  /**
+   * Encoding of the templates and of the generated bytes.
+   */
+  public static final String ENCODING = "UTF-8";
+
+  /**
+   * Maximum number of templates for which each generator keeps an instance.
+   */
+  public static final int MAX_INSTANCES = 32;
+
+  /**
+   * Key of the engine loading templates from the classpath.
+   */
+  private static final String CLASSPATH = "";
+
+  /**
+   * The engines by their file resource loader path. All classpath templates share one engine, custom
+   * template files share one engine per directory.
+   */
+  private static final ConcurrentMap<String, VelocityEngine> ENGINES = new ConcurrentHashMap<String, VelocityEngine>();
+
   protected final Template template;
   protected final String templateName;
+  private final File templateFile;
+  private final String[] variables;
+  private final Map<String, Integer> slots;
+  private final String templateHash;
+  private final TemplateEngine engine;
+  /** time the template has been loaded, in seconds as HTTP dates have no finer resolution */
+  private final long loaded = System.currentTimeMillis() / 1000 * 1000;
 
   protected VelocityBase(String templateName)
   {
     if (nullTrim(templateName) == null) throw new IllegalArgumentException("templateName not specified");
-    VelocityEngine ve = new VelocityEngine();
-    ve.setProperty(RuntimeConstants.RESOURCE_LOADER, "class,jar,file");
-    ve.setProperty("class.resource.loader.class", "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
-    ve.setProperty("jar.resource.loader.class", "org.apache.velocity.runtime.resource.loader.JarResourceLoader");
     File templateFile = new File(templateName);
     if (templateFile.isFile()) {
-      ve.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH, templateFile.getParent());
+      VelocityEngine ve = getVelocityEngine(templateFile.getAbsoluteFile().getParent());
       template = ve.getTemplate(templateFile.getName());
       this.templateName = template==null ? null : templateFile.getAbsolutePath();
+      this.templateFile = templateFile.getAbsoluteFile();
     }
     else {
-      template = ve.getTemplate(templateName);
+      template = getVelocityEngine(CLASSPATH).getTemplate(templateName);
       this.templateName = template==null ? null : templateName;
+      this.templateFile = null;
     }
     if(template == null) throw new ResourceNotFoundException("Neither file nor resource found for '"+templateName+"'");
+    variables = TemplateVariables.find(template);
+    slots = variables == null ? null : TemplateVariables.index(variables);
+    TemplateEngine segmentTemplate = null;
+    String source = readSource(templateFile, templateName, template.getEncoding());
+    if (source != null) {
+      segmentTemplate = SegmentTemplate.compile(this.templateName, source);
+    }
+    templateHash = source == null ? null : LibUtils.sha1Hex(source);
+    engine = segmentTemplate == null ? this : segmentTemplate;
+  }
+
+  /**
+   * Returns the shared engine for the specified file resource loader path. Engines are created and
+   * configured once, their resource caches are enabled so that instances for the same template share
+   * the parsed <code>Template</code>. Modified template files are still detected by Velocity's
+   * modification check.
+   * 
+   * @param fileResourceLoaderPath
+   *          the directory of the template file or {@link #CLASSPATH} for classpath resources
+   * @return the engine
+   */
+  static VelocityEngine getVelocityEngine(String fileResourceLoaderPath)
+  {
+    VelocityEngine ve = ENGINES.get(fileResourceLoaderPath);
+    if (ve == null) {
+      VelocityEngine newEngine = createVelocityEngine(fileResourceLoaderPath);
+      ve = ENGINES.putIfAbsent(fileResourceLoaderPath, newEngine);
+      if (ve == null) ve = newEngine;
+    }
+    return ve;
+  }
+
+  /**
+   * Drops the shared engine of the directory containing <code>templateFile</code>. The next instance
+   * parses the file again instead of taking the template from the cache of the engine, which only
+   * checks for modifications every few seconds.
+   */
+  static void discardVelocityEngine(File templateFile)
+  {
+    ENGINES.remove(templateFile.getAbsoluteFile().getParent());
+  }
+
+  private static VelocityEngine createVelocityEngine(String fileResourceLoaderPath)
+  {
+    VelocityEngine ve = new VelocityEngine();
+    ve.setProperty(RuntimeConstants.RESOURCE_LOADER, "class,jar,file");
+    ve.setProperty("class.resource.loader.class", "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
+    ve.setProperty("class.resource.loader.cache", "true");
+    ve.setProperty("jar.resource.loader.class", "org.apache.velocity.runtime.resource.loader.JarResourceLoader");
+    ve.setProperty("jar.resource.loader.cache", "true");
+    ve.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_CACHE, "true");
+    ve.setProperty(RuntimeConstants.INPUT_ENCODING, ENCODING);
+    if (!CLASSPATH.equals(fileResourceLoaderPath)) {
+      ve.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH, fileResourceLoaderPath);
+    }
+    ve.init();
+    return ve;
+  }
+
+  /**
+   * Reads the template content the same way Velocity's file and class resource loaders find it.
+   * 
+   * @return the content or null if it cannot be read
+   */
+  private static String readSource(File templateFile, String templateName, String encoding)
+  {
+    try {
+      InputStream is;
+      if (templateFile.isFile()) {
+        is = new FileInputStream(templateFile);
+      }
+      else {
+        String resourceName = templateName;
+        while (resourceName.startsWith("/")) {
+          resourceName = resourceName.substring(1);
+        }
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        is = loader == null ? null : loader.getResourceAsStream(resourceName);
+        if (is == null) is = VelocityBase.class.getClassLoader().getResourceAsStream(resourceName);
+        if (is == null) return null;
+      }
+      Reader reader = new InputStreamReader(is, encoding);
+      try {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) >= 0) {
+          sb.append(buffer, 0, read);
+        }
+        return sb.toString();
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the engine used by the <code>generate</code> methods, either a {@link SegmentTemplate}
+   *         or this Velocity based instance
+   */
+  TemplateEngine getEngine()
+  {
+    return engine;
   }
 
   public String generate(P parameters) throws IOException
   {
-    StringWriter swriter = new StringWriter();
-    PrintWriter writer = new PrintWriter(swriter);
-    generate(writer, parameters);
-    writer.flush();
-    writer.close();
-    return swriter.getBuffer().toString();
+    StringWriter writer = new StringWriter();
+    engine.merge(parameters.getMappings(), writer);
+    return writer.toString();
+  }
+
+  /**
+   * Writes the generated output encoded with {@link #ENCODING} to the stream. The stream is not
+   * closed.
+   */
+  public void generate(OutputStream out, P parameters) throws IOException
+  {
+    engine.merge(parameters.getMappings(), out);
+  }
+
+  /**
+   * Writes the generated output encoded with {@link #ENCODING} to the channel. The channel is not
+   * closed.
+   */
+  public void generate(WritableByteChannel channel, P parameters) throws IOException
+  {
+    ByteBuffer buffer = engine.merge(parameters.getMappings());
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Puts the generated output encoded with {@link #ENCODING} into <code>target</code>.
+   * 
+   * @throws java.nio.BufferOverflowException
+   *           if there is insufficient space in <code>target</code>
+   */
+  public void generate(ByteBuffer target, P parameters) throws IOException
+  {
+    target.put(engine.merge(parameters.getMappings()));
+  }
+
+  /**
+   * Returns the generated output encoded with {@link #ENCODING}. The remaining bytes of the
+   * returned buffer are exactly the output, its size can be used as <code>Content-Length</code>.
+   */
+  public ByteBuffer generateBytes(P parameters) throws IOException
+  {
+    return engine.merge(parameters.getMappings());
+  }
+
+  /**
+   * Like {@link #generateBytes(IParameters)}, but returns the output from <code>cache</code> if a
+   * template with the same content has already been rendered with the same values of the variables
+   * it references. Concurrent misses for the same output are rendered only once, the other callers
+   * wait for the result via <code>flights</code>. The returned buffer is a copy owned by the caller.
+   */
+  protected ByteBuffer generateBytes(P parameters, RenderCache cache,
+        SingleFlight<RenderCache.Key, ByteBuffer> flights) throws IOException
+  {
+    long ticket = SlabStore.enter();
+    try {
+      ByteBuffer shared = generateSharedBytes(parameters, cache, flights);
+      ByteBuffer copy = ByteBuffer.allocate(shared.remaining());
+      copy.put(shared.duplicate()).flip();
+      return copy;
+    }
+    finally {
+      SlabStore.exit(ticket);
+    }
   }
 
-  public synchronized void generate(PrintWriter writer, P parameters) throws IOException
+  /**
+   * Like {@link #generateBytes(IParameters, RenderCache, SingleFlight)}, but returns the cached buffer
+   * itself. It must not be modified and, if the cache keeps its entries in a {@link SlabStore}, it must
+   * only be read within the read section of the current thread.
+   * 
+   * @throws IllegalStateException
+   *           if the cache has a {@link SlabStore} and the current thread is not in a read section
+   */
+  protected ByteBuffer generateSharedBytes(final P parameters, final RenderCache cache,
+        SingleFlight<RenderCache.Key, ByteBuffer> flights) throws IOException
   {
-    VelocityContext context = new VelocityContext();
-    Map<String, Object> mappings = parameters.getMappings();
-    for (String key : mappings.keySet()) {
-      context.put(key, mappings.get(key));
+    if (cache.getSlabStore() != null && !SlabStore.isInReadSection()) {
+      throw new IllegalStateException("Shared output must be read within a read section of the SlabStore");
+    }
+    final RenderCache.Key key = getKey(parameters);
+    if (key == null) return generateBytes(parameters); //output may depend on any parameter
+    ByteBuffer bytes = cache.get(key);
+    if (bytes != null) return bytes;
+    try {
+      return flights.call(key, new Callable<ByteBuffer>() {
+        @Override
+        public ByteBuffer call() throws IOException
+        {
+          ByteBuffer bytes = generateBytes(parameters);
+          cache.put(key, bytes);
+          return bytes;
+        }
+      });
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the output of a concurrent request");
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * @return the key identifying the output for <code>parameters</code>: the template and the values
+   *         of the variables it references, null if they cannot be determined
+   */
+  private RenderCache.Key getKey(P parameters)
+  {
+    String[] variables = engine.getVariables();
+    if (variables == null) return null;
+    Object[] values = TemplateVariables.values(variables, parameters.getMappings());
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null) values[i] = values[i].toString();
+    }
+    //a modified template has a different hash, entries rendered with the previous content are never returned
+    return new RenderCache.Key(templateHash == null ? engine : templateHash, new RenderCache.Key(values));
+  }
+
+  /**
+   * Returns a hash identifying the output for <code>parameters</code> without rendering it, e.g. to
+   * derive an <code>ETag</code>. Equal hashes mean equal output, also in other processes using the
+   * same template content.
+   * 
+   * @return the SHA-1 of the template content and the values of the variables it references (hex) or
+   *         null if the output may depend on any parameter
+   */
+  public String getOutputHash(P parameters)
+  {
+    if (templateHash == null) return null;
+    RenderCache.Key key = getKey(parameters);
+    byte[] digest = key == null ? null : DiskCache.digest(key);
+    if (digest == null) return null;
+    StringBuilder sb = new StringBuilder(2 * digest.length);
+    for (byte b : digest) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return the time the template has been loaded (milliseconds, truncated to full seconds). Output
+   *         rendered for the same parameters has not changed since then.
+   */
+  public long getLastModified()
+  {
+    return loaded;
+  }
+
+  /**
+   * Merges the template with the specified parameters. The parsed template is shared by all
+   * callers and never modified during a merge, hence no lock is required and concurrent requests are
+   * rendered in parallel.
+   */
+  public void generate(PrintWriter writer, P parameters) throws IOException
+  {
+    engine.merge(parameters.getMappings(), writer);
+  }
+
+  /**
+   * Merges the Velocity template. Each call uses its own context which only holds the values of the
+   * variables referenced by the template. If they cannot be determined (e.g. the template uses
+   * <code>#parse</code> or macros) all mappings are copied into a <code>VelocityContext</code>.
+   */
+  @Override
+  public void merge(Map<String, Object> mappings, Writer writer) throws IOException
+  {
+    Context context;
+    if (variables == null) {
+      context = new VelocityContext(new HashMap<String, Object>(mappings));
+    }
+    else {
+      context = new SlotContext(slots, TemplateVariables.values(variables, mappings));
     }
     template.merge(context, writer);
   }
 
+  @Override
+  public void merge(Map<String, Object> mappings, OutputStream out) throws IOException
+  {
+    Writer writer = new OutputStreamWriter(out, ENCODING);
+    merge(mappings, writer);
+    writer.flush();
+  }
+
+  @Override
+  public ByteBuffer merge(Map<String, Object> mappings) throws IOException
+  {
+    ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream();
+    merge(mappings, out);
+    return out.toByteBuffer();
+  }
+
+  /**
+   * Gives access to the internal buffer to avoid the copy of <code>toByteArray()</code>.
+   */
+  private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream
+  {
+    ByteBuffer toByteBuffer()
+    {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+  }
+
   static interface IParameters
   {
     /**
@@ -100,11 +444,15 @@ public abstract class VelocityBase<P extends IParameters>
 
   static class Parameters implements IParameters
   {
-    protected final Map<String, Object> mappings;
+    /**
+     * The values of the template. Defaults can be added without copying them, see
+     * {@link ParameterMap#addDefaults(Map)}.
+     */
+    protected final ParameterMap mappings;
 
     protected Parameters()
     {
-      this.mappings = new HashMap<String, Object>();
+      this.mappings = new ParameterMap();
     }
 
     @Override
@@ -115,9 +463,53 @@ public abstract class VelocityBase<P extends IParameters>
 
   }
   
+  @Override
   public String getTemplateName()
   {
     return templateName;
   }
 
+  @Override
+  public String[] getVariables()
+  {
+    return variables == null ? null : variables.clone();
+  }
+
+  /**
+   * @return SHA-1 of the template content (hex) or null if the content cannot be read
+   */
+  public String getTemplateHash()
+  {
+    return templateHash;
+  }
+
+  /**
+   * @return the template file or null if the template is a classpath resource
+   */
+  public File getTemplateFile()
+  {
+    return templateFile;
+  }
+
+  /**
+   * Watches the file of <code>instance</code> (if it is a file) and calls <code>reload</code> when it
+   * has been modified.
+   * 
+   * @param key
+   *          identifies the instance, e.g. the generator class and the configured template
+   */
+  static void watchTemplateFile(String key, VelocityBase<?> instance, final Runnable reload)
+  {
+    final File file = instance.getTemplateFile();
+    if (file == null) return;
+    TemplateWatcher.watch(key, file, new Runnable() {
+      @Override
+      public void run()
+      {
+        discardVelocityEngine(file);
+        reload.run();
+      }
+    });
+  }
+
 }
@@ -0,0 +1,173 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+import org.sonatype.plexus.components.cipher.Base64;
+
+/**
+ * Compares {@link Base64Url} with the former encoding of URL segments, plexus Base64 followed by
+ * URLEncoder as done by {@link LibUtils#encode(String)} and {@link LibUtils#decode(String)} before.
+ * This is not a unit test, run it after <code>mvn test-compile</code> in this module with
+ * 
+ * <pre>
+ * java -cp target/test-classes:target/classes:&lt;plexus-cipher jar&gt; \
+ *   com.sap.prd.mobile.ios.ota.lib.Base64UrlBenchmark [iterations]
+ * </pre>
+ * 
+ * For each operation it prints the best time of several rounds and the bytes allocated per
+ * operation, if the JVM can measure them.
+ */
+public class Base64UrlBenchmark
+{
+
+  private static final String SEGMENT = "Referer=https://nexus.example.com/content/repositories/snapshots/"
+        + "com/sap/ota/MyApp/1.0.4-SNAPSHOT/MyApp-1.0.4-20121010.101010-1-Release-iphoneos-ota.htm";
+
+  private static final String PREFIX = "/ota-service/PLIST/";
+
+  private static final int ROUNDS = 5;
+
+  private static volatile Object sink;
+
+  private abstract static class Operation
+  {
+    final String name;
+
+    Operation(String name)
+    {
+      this.name = name;
+    }
+
+    abstract Object run() throws Exception;
+  }
+
+  /**
+   * {@link LibUtils#encode(String)} before {@link Base64Url}.
+   */
+  static String formerEncode(String string) throws UnsupportedEncodingException
+  {
+    byte[] bytes = string.getBytes("UTF-8");
+    byte[] base64Bytes = Base64.encodeBase64(bytes);
+    String base64String = new String(base64Bytes, "US-ASCII");
+    return URLEncoder.encode(base64String, "UTF-8");
+  }
+
+  /**
+   * {@link LibUtils#decode(String)} before {@link Base64Url}.
+   */
+  static String formerDecode(String string) throws UnsupportedEncodingException
+  {
+    String urlDecodedString = URLDecoder.decode(string, "UTF-8");
+    byte[] urlDecodedBytes = urlDecodedString.getBytes("US-ASCII");
+    byte[] decodedBase64Bytes = Base64.decodeBase64(urlDecodedBytes);
+    return new String(decodedBase64Bytes, "UTF-8");
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    final String former = PREFIX + formerEncode(SEGMENT);
+    final String current = PREFIX + Base64Url.encode(SEGMENT);
+    final int start = PREFIX.length();
+    final byte[] out = new byte[Base64Url.maxDecodedLength(current.length() - start)];
+    if (!SEGMENT.equals(formerDecode(former.substring(start)))
+          || !SEGMENT.equals(Base64Url.decode(former, start, former.length()))
+          || !SEGMENT.equals(Base64Url.decode(current, start, current.length()))) {
+      throw new IllegalStateException("Encodings do not round-trip");
+    }
+
+    Operation[] operations = {
+      new Operation("encode, former") {
+        @Override
+        Object run() throws Exception
+        {
+          return formerEncode(SEGMENT);
+        }
+      },
+      new Operation("encode") {
+        @Override
+        Object run()
+        {
+          return Base64Url.encode(SEGMENT);
+        }
+      },
+      new Operation("decode to String, former") {
+        @Override
+        Object run() throws Exception
+        {
+          return formerDecode(former.substring(start));
+        }
+      },
+      new Operation("decode to String") {
+        @Override
+        Object run()
+        {
+          return Base64Url.decode(current, start, current.length());
+        }
+      },
+      new Operation("decode former format to String") {
+        @Override
+        Object run()
+        {
+          return Base64Url.decode(former, start, former.length());
+        }
+      },
+      new Operation("decode into byte[]") {
+        @Override
+        Object run()
+        {
+          //the buffer, not the boxed length, which would be allocated
+          return Base64Url.decode(current, start, current.length(), out, 0) < 0 ? null : out;
+        }
+      }
+    };
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean
+          ? (com.sun.management.ThreadMXBean) threads : null;
+    long thread = Thread.currentThread().getId();
+    System.out.println(String.format("Java %s, %d characters, %d iterations, best of %d rounds",
+          System.getProperty("java.version"), SEGMENT.length(), iterations, ROUNDS));
+    for (Operation operation : operations) {
+      double bestNanos = Double.MAX_VALUE;
+      double bytes = -1;
+      for (int round = 0; round < ROUNDS; round++) {
+        long allocated = allocations == null ? 0 : allocations.getThreadAllocatedBytes(thread);
+        long started = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+          sink = operation.run();
+        }
+        double nanos = (double) (System.nanoTime() - started) / iterations;
+        if (allocations != null) {
+          bytes = (double) (allocations.getThreadAllocatedBytes(thread) - allocated) / iterations;
+        }
+        bestNanos = Math.min(bestNanos, nanos);
+      }
+      System.out.println(String.format("%-32s %8.0f ns/op %8s", operation.name, bestNanos,
+            bytes < 0 ? "" : String.format("%.0f B/op", bytes)));
+    }
+  }
+}
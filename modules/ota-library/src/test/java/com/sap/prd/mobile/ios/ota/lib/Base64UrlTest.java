@@ -0,0 +1,115 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class Base64UrlTest
+{
+
+  private static final String UNICODE = "title=Myü€𝄞";
+
+  @Test
+  public void testEncode() throws Exception
+  {
+    assertNull(Base64Url.encode(null));
+    assertEquals("", Base64Url.encode(""));
+    assertEquals("YQ", Base64Url.encode("a"));
+    assertEquals("YWI", Base64Url.encode("ab"));
+    assertEquals("YWJj", Base64Url.encode("abc"));
+    assertEquals("Pj4-fn5-", Base64Url.encode(">>>~~~"));
+    assertEquals("aT4_fg", Base64Url.encode("i>?~"));
+    byte[] bytes = UNICODE.getBytes("UTF-8");
+    assertEquals(Base64Url.encode(bytes, 0, bytes.length), Base64Url.encode(UNICODE));
+    assertEquals("-_8", Base64Url.encode(new byte[] { 0, (byte) 0xfb, (byte) 0xff, 0 }, 1, 2));
+    assertEquals(Base64Url.encode("?"), Base64Url.encode("\ud800")); //unpaired surrogate
+  }
+
+  @Test
+  public void testEncodeStandard()
+  {
+    assertNull(Base64Url.encodeStandard(null));
+    assertEquals("", Base64Url.encodeStandard(""));
+    assertEquals("YQ%3D%3D", Base64Url.encodeStandard("a"));
+    assertEquals("YWI%3D", Base64Url.encodeStandard("ab"));
+    assertEquals("YWJj", Base64Url.encodeStandard("abc"));
+    assertEquals("Pj4%2Bfn5%2B", Base64Url.encodeStandard(">>>~~~"));
+    assertEquals("aT4%2Ffg%3D%3D", Base64Url.encodeStandard("i>?~"));
+  }
+
+  @Test
+  public void testDecode()
+  {
+    assertNull(Base64Url.decode(null));
+    String[] strings = { "", "a", "ab", "abc", ">>>~~~", "i>?~", UNICODE,
+        "http://test.sap.com:8080/xyz?abc=xyz%2F%3Dkkk" };
+    for (String string : strings) {
+      assertEquals(string, Base64Url.decode(Base64Url.encode(string)));
+      assertEquals(string, Base64Url.decode(Base64Url.encodeStandard(string)));
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    assertEquals(sb.toString(), Base64Url.decode(Base64Url.encode(sb.toString())));
+  }
+
+  @Test
+  public void testDecodeFormerFormats()
+  {
+    assertEquals("ab", Base64Url.decode("YWI="));
+    assertEquals("a", Base64Url.decode("YQ%3d%3d"));
+    assertEquals(">>>~~~", Base64Url.decode("Pj4+fn5+"));
+    assertEquals("i>?~", Base64Url.decode("aT4/fg=="));
+    assertEquals("i>?~", Base64Url.decode("aT4%2Ffg%3D%3D"));
+  }
+
+  @Test
+  public void testDecodeRange() throws Exception
+  {
+    String uri = "/ota-service/PLIST/YWJj/aT4%2Ffg%3D%3D";
+    byte[] out = new byte[Base64Url.maxDecodedLength(uri.length())];
+    assertEquals(3, Base64Url.decode(uri, 19, 23, out, 0));
+    assertEquals(4, Base64Url.decode(uri, 24, uri.length(), out, 3));
+    assertEquals("abci>?~", new String(out, 0, 7, "US-ASCII"));
+    assertEquals("abc", Base64Url.decode(uri, 19, 23));
+  }
+
+  @Test
+  public void testDecodeInvalid()
+  {
+    String[] invalid = { "YW%", "YW%2", "YW%zzJj", "YW$J", "YW J", "YW.J", "YWüJ", "YW%C3%BCJ" };
+    for (String string : invalid) {
+      assertEquals(-1, Base64Url.decode(string, 0, string.length(), new byte[16], 0));
+      try {
+        Base64Url.decode(string);
+        fail("Decoded " + string);
+      }
+      catch (IllegalArgumentException e) {
+        //expected
+      }
+    }
+  }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_IDENTIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_VERSION;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_TITLE;
+import static com.sap.prd.mobile.ios.ota.lib.LibUtils.buildMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.Parameters;
+
+/**
+ * Renders with many threads in parallel on the same generator instance and checks that every
+ * thread gets the output for its own parameters and that no lock serializes the renderings.
+ */
+public class ConcurrentGenerationTest
+{
+
+  private final static int RENDERINGS_PER_THREAD = 500;
+
+  @Test
+  public void testConcurrentPlistGeneration() throws Exception
+  {
+    int threads = Runtime.getRuntime().availableProcessors() * 4;
+    assertEquals(threads * RENDERINGS_PER_THREAD, render(OtaPlistGenerator.getInstance(), threads));
+  }
+
+  /**
+   * Every renderer waits within the template for all others. This only completes if the renderings
+   * of a generator instance are not serialized by a lock.
+   */
+  @Test
+  public void testRenderersInFlightTogether() throws Exception
+  {
+    final int threads = 4;
+    final CyclicBarrier inFlight = new CyclicBarrier(threads);
+    final OtaPlistGenerator generator = OtaPlistGenerator.getInstance();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int t = 0; t < threads; t++) {
+        final String title = "InFlight-" + t;
+        results.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() throws Exception
+          {
+            Parameters parameters = new Parameters(buildMap(KEY_REFERER, "http://hostname:8080/path/" + title
+                  + ".htm", KEY_TITLE, title, KEY_BUNDLE_IDENTIFIER, "com.sap." + title, KEY_BUNDLE_VERSION, "1.0"));
+            parameters.getMappings().put(KEY_TITLE, new Object() {
+              private boolean waited;
+
+              @Override
+              public String toString()
+              {
+                if (!waited) {
+                  waited = true;
+                  try {
+                    inFlight.await(10, TimeUnit.SECONDS);
+                  }
+                  catch (Exception e) {
+                    throw new IllegalStateException("The renderings are serialized", e);
+                  }
+                }
+                return title;
+              }
+            });
+            return generator.generate(parameters);
+          }
+        }));
+      }
+      for (int t = 0; t < threads; t++) {
+        assertTrue(results.get(t).get().contains("<string>InFlight-" + t + "</string>"));
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  private int render(final OtaPlistGenerator generator, int threads) throws Exception
+  {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final CountDownLatch startSignal = new CountDownLatch(1);
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      for (int t = 0; t < threads; t++) {
+        final int threadNo = t;
+        results.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception
+          {
+            startSignal.await();
+            for (int i = 0; i < RENDERINGS_PER_THREAD; i++) {
+              String title = "App-" + threadNo + "-" + i;
+              String generated = generator.generate(new Parameters(buildMap(
+                    KEY_REFERER, "http://hostname:8080/path/" + title + ".htm", KEY_TITLE, title,
+                    KEY_BUNDLE_IDENTIFIER, "com.sap." + title, KEY_BUNDLE_VERSION, "1." + i)));
+              assertTrue(generated.contains("<string>" + title + "</string>"));
+              assertTrue(generated.contains("<string>com.sap." + title + "</string>"));
+              assertTrue(generated.contains("<string>1." + i + "</string>"));
+              assertTrue(generated.contains("<string>http://hostname:8080/path/" + title + ".ipa</string>"));
+            }
+            return RENDERINGS_PER_THREAD;
+          }
+        }));
+      }
+      startSignal.countDown();
+      int count = 0;
+      for (Future<Integer> result : results) {
+        count += result.get();
+      }
+      return count;
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.RenderCache.Key;
+
+public class DiskCacheTest
+{
+
+  private final File directory = new File("./target/diskcache").getAbsoluteFile();
+  private final List<DiskCache> caches = new ArrayList<DiskCache>();
+
+  @After
+  public void tearDown() throws Exception
+  {
+    for (DiskCache cache : caches) {
+      cache.close();
+    }
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+  }
+
+  private DiskCache open(long segmentSize, int maxEntries) throws Exception
+  {
+    DiskCache cache = new DiskCache(directory, "test", segmentSize, maxEntries);
+    caches.add(cache);
+    return cache;
+  }
+
+  private static ByteBuffer value(String value)
+  {
+    return ByteBuffer.wrap(value.getBytes());
+  }
+
+  private static String toString(ByteBuffer value)
+  {
+    return value == null ? null : new String(value.array(), value.arrayOffset() + value.position(),
+          value.remaining());
+  }
+
+  @Test
+  public void testPutAndGet() throws Exception
+  {
+    DiskCache cache = open(4096, 16);
+    Key key = new Key("template", new Key("MyApp", null, 1));
+    assertNull(cache.get(key));
+    cache.put(key, value("first"));
+    assertEquals("first", toString(cache.get(new Key("template", new Key("MyApp", null, 1)))));
+    assertNull(cache.get(new Key("template", new Key("MyApp", null, 2))));
+    cache.put(key, value("second"));
+    assertEquals("second", toString(cache.get(key)));
+    assertEquals(1, cache.size());
+    assertEquals(2, cache.getWriteCount());
+    assertEquals(2, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void testSurvivesRestart() throws Exception
+  {
+    DiskCache cache = open(4096, 16);
+    cache.put(new Key("key"), value("value"));
+    cache.close();
+    assertEquals("value", toString(open(4096, 16).get(new Key("key"))));
+  }
+
+  @Test
+  public void testSharedBetweenInstances() throws Exception
+  {
+    DiskCache first = open(4096, 16);
+    DiskCache second = open(4096, 16);
+    first.put(new Key("key"), value("value"));
+    assertEquals("value", toString(second.get(new Key("key"))));
+  }
+
+  @Test
+  public void testUnstableKeyNotStored() throws Exception
+  {
+    DiskCache cache = open(4096, 16);
+    Key key = new Key(new Object(), "value");
+    cache.put(key, value("value"));
+    assertNull(cache.get(key));
+    assertEquals(0, cache.size());
+    //strings are length prefixed, parts cannot be shifted into each other
+    assertFalse(Arrays.equals(DiskCache.digest(new Key("a, b")), DiskCache.digest(new Key("a", "b"))));
+  }
+
+  @Test
+  public void testCompaction() throws Exception
+  {
+    DiskCache cache = open(4096, 16);
+    DiskCache other = open(4096, 16);
+    for (int i = 0; i < 100; i++) {
+      cache.put(new Key(i), ByteBuffer.wrap(new byte[100]));
+    }
+    assertTrue(cache.getCompactionCount() > 0);
+    assertNotNull(cache.get(new Key(99)));
+    assertNull(cache.get(new Key(0)));
+    //the other instance switches to the new generation
+    assertNotNull(other.get(new Key(99)));
+    assertEquals(other.size(), cache.size());
+
+    int indexFiles = 0;
+    for (String file : directory.list()) {
+      if (file.endsWith(".idx")) indexFiles++;
+    }
+    assertEquals(1, indexFiles);
+  }
+
+  @Test
+  public void testCorruptedRecordIsMiss() throws Exception
+  {
+    DiskCache cache = open(4096, 16);
+    cache.put(new Key("key"), value("value"));
+    File segment = null;
+    for (File file : directory.listFiles()) {
+      if (file.getName().endsWith(".seg")) segment = file;
+    }
+    RandomAccessFile access = new RandomAccessFile(segment, "rw");
+    try {
+      access.seek(8 + 24); //first byte of the value behind the segment and record headers
+      access.write('X');
+    }
+    finally {
+      access.close();
+    }
+    assertNull(cache.get(new Key("key")));
+  }
+
+  @Test
+  public void testPutAsync() throws Exception
+  {
+    DiskCache cache = open(4096, 16);
+    ByteBuffer value = value("value");
+    assertTrue(cache.putAsync(new Key("key"), value));
+    value.put(0, (byte) 'X'); //the queued value is a copy
+    cache.flush();
+    assertEquals("value", toString(cache.get(new Key("key"))));
+    assertFalse(cache.putAsync(new Key("large"), ByteBuffer.wrap(new byte[4096])));
+    assertEquals(0, cache.getDroppedWriteCount());
+  }
+
+  @Test
+  public void testRenderCacheTier() throws Exception
+  {
+    DiskCache disk = open(4096, 16);
+    RenderCache first = new RenderCache(1000, 10);
+    first.setDiskCache(disk);
+    first.put(new Key("key"), value("value"));
+    disk.flush();
+
+    RenderCache second = new RenderCache(1000, 10);
+    second.setDiskCache(disk);
+    assertEquals("value", toString(second.get(new Key("key"))));
+    assertEquals(1, second.size());
+
+    first.put(new Key("expiring"), value("value"), 1000);
+    disk.flush();
+    assertNull(second.get(new Key("expiring")));
+
+    //entries the memory tier rejects are not written either
+    RenderCache small = new RenderCache(3, 10);
+    small.setDiskCache(disk);
+    small.put(new Key("rejected"), value("value"));
+    disk.flush();
+    assertEquals(1, small.getRejectionCount());
+    assertNull(second.get(new Key("rejected")));
+  }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class InstanceRegistryTest
+{
+
+  private static class CountingFactory implements InstanceRegistry.Factory<Object>
+  {
+    final AtomicInteger created = new AtomicInteger();
+
+    @Override
+    public Object create(String key)
+    {
+      created.incrementAndGet();
+      if ("fail".equals(key)) throw new IllegalArgumentException(key);
+      return new Object();
+    }
+  }
+
+  @Test
+  public void testCreateOnce() throws Exception
+  {
+    final CountingFactory factory = new CountingFactory();
+    final InstanceRegistry<Object> registry = new InstanceRegistry<Object>(factory);
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Object>> results = new ArrayList<Future<Object>>();
+      for (int i = 0; i < 64; i++) {
+        results.add(executor.submit(new Callable<Object>() {
+          @Override
+          public Object call() throws Exception
+          {
+            start.await();
+            return registry.get("key");
+          }
+        }));
+      }
+      start.countDown();
+      Object instance = results.get(0).get();
+      for (Future<Object> result : results) {
+        assertSame(instance, result.get());
+      }
+      assertEquals(1, factory.created.get());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testReplace()
+  {
+    InstanceRegistry<Object> registry = new InstanceRegistry<Object>(new CountingFactory());
+    Object first = registry.get("key");
+    Object second = registry.replace("key");
+    assertNotSame(first, second);
+    assertSame(second, registry.get("key"));
+  }
+
+  @Test
+  public void testFailedCreationNotRegistered()
+  {
+    CountingFactory factory = new CountingFactory();
+    InstanceRegistry<Object> registry = new InstanceRegistry<Object>(factory);
+    for (int i = 1; i <= 2; i++) {
+      try {
+        registry.get("fail");
+        fail("IllegalArgumentException expected");
+      }
+      catch (IllegalArgumentException e) {
+        assertEquals(i, factory.created.get());
+      }
+    }
+    assertEquals(0, registry.size());
+  }
+
+  @Test
+  public void testBounded()
+  {
+    InstanceRegistry<Object> registry = new InstanceRegistry<Object>(new CountingFactory(), 2);
+    Object a = registry.get("a");
+    registry.get("b");
+    registry.get("c");
+    assertEquals(2, registry.size());
+    assertNotSame(a, registry.get("a")); //oldest key was dropped
+  }
+
+  @Test
+  public void testBoundedAfterFailure()
+  {
+    final AtomicInteger calls = new AtomicInteger();
+    InstanceRegistry<Object> registry = new InstanceRegistry<Object>(new InstanceRegistry.Factory<Object>() {
+      @Override
+      public Object create(String key)
+      {
+        if ("flaky".equals(key) && calls.incrementAndGet() == 1) throw new IllegalArgumentException(key);
+        return new Object();
+      }
+    }, 2);
+    try {
+      registry.get("flaky");
+      fail("IllegalArgumentException expected");
+    }
+    catch (IllegalArgumentException e) {
+      //expected
+    }
+    Object a = registry.get("a");
+    Object flaky = registry.get("flaky");
+    registry.get("b");
+    assertEquals(2, registry.size());
+    assertSame(flaky, registry.get("flaky")); //the failed attempt does not count as older entry
+    assertNotSame(a, registry.get("a"));
+  }
+
+  @Test
+  public void testBoundedAfterRemove()
+  {
+    InstanceRegistry<Object> registry = new InstanceRegistry<Object>(new CountingFactory(), 2);
+    registry.get("a");
+    Object b = registry.get("b");
+    registry.remove("a");
+    Object a = registry.get("a");
+    registry.get("c");
+    assertEquals(2, registry.size());
+    assertSame(a, registry.get("a")); //re-created after b, so b is the oldest
+    assertNotSame(b, registry.get("b"));
+  }
+
+}
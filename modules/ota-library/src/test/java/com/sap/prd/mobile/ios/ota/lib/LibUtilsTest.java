@@ -21,10 +21,13 @@ package com.sap.prd.mobile.ios.ota.lib;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
 
 import org.junit.Test;
 
@@ -171,4 +174,47 @@ public class LibUtilsTest
     }
   }
 
+  @Test
+  public void testEncodeDecodeParameters() throws Exception
+  {
+    Map<String, String> params = LibUtils.buildMap(Constants.KEY_REFERER,
+          "https://nexus:8081/nexus/content/repositories/releases/com/sap/MyApp/1.0/MyApp-1.0-ota.htm",
+          Constants.KEY_TITLE, "My App \u2713", Constants.KEY_BUNDLE_IDENTIFIER, "com.sap.MyApp",
+          Constants.KEY_BUNDLE_VERSION, "1.0");
+    String segment = LibUtils.encodeParameters(params);
+    assertTrue(segment, segment.matches("\\.[A-Za-z0-9_-]+"));
+    assertTrue(LibUtils.isCompact(segment));
+    assertEquals(params, LibUtils.decodeParameters(segment));
+    URL longForm = OtaPlistGenerator.generatePlistRequestUrl(new URL("http://ota-server/PLIST"), params);
+    assertTrue(segment.length() < longForm.getPath().length() / 2);
+
+    params.put(Constants.KEY_OTA_CLASSIFIER, "ota");
+    params.put("custom", "ignored");
+    Map<String, String> decoded = LibUtils.decodeParameters(LibUtils.encodeParameters(params));
+    assertEquals("ota", decoded.get(Constants.KEY_OTA_CLASSIFIER));
+    assertNull(decoded.get(Constants.KEY_IPA_CLASSIFIER));
+    assertNull(decoded.get("custom"));
+    assertEquals(5, decoded.size());
+
+    params.put(Constants.KEY_TITLE, "a\0b");
+    assertNull(LibUtils.encodeParameters(params));
+  }
+
+  @Test
+  public void testDecodeInvalidParameters()
+  {
+    String segment = LibUtils.encodeParameters(LibUtils.buildMap(Constants.KEY_TITLE, "MyApp"));
+    String[] invalid = { "", ".", "abc", ".abc$", ".AAAA", segment.substring(0, segment.length() - 2) };
+    for (String string : invalid) {
+      assertNull(string, LibUtils.decodeParametersOrNull(string));
+      try {
+        LibUtils.decodeParameters(string);
+        fail("Decoded " + string);
+      }
+      catch (IllegalArgumentException e) {
+        //expected
+      }
+    }
+  }
+
 }
@@ -24,9 +24,11 @@ import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_VERSION;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_IPA_CLASSIFIER;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_OTA_CLASSIFIER;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REMOVE_OUTER_FRAME;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_TITLE;
 import static com.sap.prd.mobile.ios.ota.lib.LibUtils.buildMap;
 import static com.sap.prd.mobile.ios.ota.lib.TestUtils.assertContains;
+import static com.sap.prd.mobile.ios.ota.lib.TestUtils.decode;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -35,6 +37,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -186,4 +189,40 @@ public class OtaHtmlGeneratorTest
           OtaHtmlGenerator.getInstance(new File("./doesnotexist.htm").getAbsolutePath()).template.getName());
   }
 
+  @Test
+  public void testCachedBytes() throws IOException
+  {
+    URL plistURL = OtaPlistGenerator.generatePlistRequestUrl(new URL(plistServiceUrl), paramMap);
+    Map<String, String> requestParams = buildMap(KEY_REFERER, referer, KEY_TITLE, "cached" + title,
+          KEY_BUNDLE_IDENTIFIER, bundleIdentifier);
+    OtaHtmlGenerator generator = OtaHtmlGenerator.getInstance();
+    RenderCache cache = OtaHtmlGenerator.getCache();
+    long hits = cache.getHitCount();
+    long misses = cache.getMissCount();
+
+    ByteBuffer first = generator.generateBytes(new Parameters(plistURL, null, requestParams, initParams));
+    ByteBuffer second = generator.generateBytes(new Parameters(plistURL, null, requestParams, initParams));
+    assertEquals(first, second);
+    assertEquals(hits + 1, cache.getHitCount());
+    assertEquals(misses + 1, cache.getMissCount());
+
+    //init parameters used by the template are part of the key
+    ByteBuffer other = generator.generateBytes(new Parameters(plistURL, null, requestParams,
+          buildMap(KEY_REMOVE_OUTER_FRAME, "cachedFrame")));
+    assertEquals(misses + 2, cache.getMissCount());
+    assertContains("\"cachedFrame\"", decode(other));
+
+    //reloading the unchanged template keeps the cached pages
+    OtaHtmlGenerator.getInstance(null, true).generateBytes(new Parameters(plistURL, null, requestParams, initParams));
+    assertEquals(misses + 2, cache.getMissCount());
+  }
+
+  @Test
+  public void testTemplateHash()
+  {
+    OtaHtmlGenerator generator = OtaHtmlGenerator.getInstance();
+    assertEquals(40, generator.getTemplateHash().length());
+    assertEquals(generator.getTemplateHash(), OtaHtmlGenerator.getInstance(null, true).getTemplateHash());
+  }
+
 }
@@ -23,10 +23,13 @@ import static com.sap.prd.mobile.ios.ota.lib.Constants.*;
 import static com.sap.prd.mobile.ios.ota.lib.LibUtils.buildMap;
 import static com.sap.prd.mobile.ios.ota.lib.TestUtils.*;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 
 import org.apache.commons.lang.StringUtils;
 import org.junit.Test;
@@ -135,4 +138,61 @@ public class OtaPlistGeneratorTest
 
   }
 
+  @Test
+  public void testCachedBytes() throws IOException
+  {
+    Parameters parameters = new Parameters(buildMap(KEY_REFERER, referer, KEY_TITLE, "cached" + title,
+          KEY_BUNDLE_IDENTIFIER, bundleIdentifier, KEY_BUNDLE_VERSION, bundleVersion));
+    OtaPlistGenerator generator = OtaPlistGenerator.getInstance();
+    RenderCache cache = OtaPlistGenerator.getCache();
+    long hits = cache.getHitCount();
+
+    ByteBuffer first = generator.generateBytes(parameters);
+    ByteBuffer second = generator.generateBytes(parameters);
+    assertEquals(first, second);
+    assertEquals(generator.generate(parameters), decode(second));
+    assertEquals(hits + 1, cache.getHitCount());
+    //the public output is a heap copy, valid outside of a read section and not shared with the cache
+    assertFalse(second.isDirect());
+    second.put(0, (byte) 0);
+    assertEquals(first, generator.generateBytes(parameters));
+
+    try {
+      generator.generateSharedBytes(parameters);
+      fail("IllegalStateException expected");
+    }
+    catch (IllegalStateException e) {
+      //expected
+    }
+    long ticket = SlabStore.enter();
+    try {
+      assertEquals(first, generator.generateSharedBytes(parameters));
+    }
+    finally {
+      SlabStore.exit(ticket);
+    }
+
+    //reloading the unchanged template keeps the entries of all templates
+    int size = cache.size();
+    OtaPlistGenerator.getInstance(null, true).generateBytes(parameters);
+    assertEquals(size, cache.size());
+    assertEquals(hits + 4, cache.getHitCount());
+  }
+
+  @Test
+  public void testOutputHash() throws IOException
+  {
+    OtaPlistGenerator generator = OtaPlistGenerator.getInstance();
+    Parameters parameters = new Parameters(buildMap(KEY_REFERER, referer, KEY_TITLE, title,
+          KEY_BUNDLE_IDENTIFIER, bundleIdentifier, KEY_BUNDLE_VERSION, bundleVersion));
+    String hash = generator.getOutputHash(parameters);
+    assertEquals(40, hash.length());
+    assertEquals(hash, generator.getOutputHash(new Parameters(buildMap(KEY_REFERER, referer, KEY_TITLE, title,
+          KEY_BUNDLE_IDENTIFIER, bundleIdentifier, KEY_BUNDLE_VERSION, bundleVersion))));
+    assertFalse(hash.equals(generator.getOutputHash(new Parameters(buildMap(KEY_REFERER, referer,
+          KEY_TITLE, title, KEY_BUNDLE_IDENTIFIER, bundleIdentifier, KEY_BUNDLE_VERSION, "2.0")))));
+    assertEquals(0, generator.getLastModified() % 1000);
+    assertTrue(generator.getLastModified() <= System.currentTimeMillis());
+  }
+
 }
@@ -0,0 +1,72 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static com.sap.prd.mobile.ios.ota.lib.LibUtils.buildMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ParameterMapTest
+{
+
+  @Test
+  public void testPrecedence()
+  {
+    ParameterMap map = new ParameterMap();
+    map.put("a", "value");
+    map.put("b", null);
+    map.addDefaults(buildMap("a", "request", "b", "request", "c", "request"));
+    map.addDefaults(buildMap("c", "init", "d", "init"));
+    map.addDefaults(null);
+
+    assertEquals("value", map.get("a"));
+    assertNull(map.get("b"));
+    assertTrue(map.containsKey("b"));
+    assertEquals("request", map.get("c"));
+    assertEquals("init", map.get("d"));
+    assertNull(map.get("e"));
+    assertFalse(map.containsKey("e"));
+
+    Map<String, Object> expected = new HashMap<String, Object>();
+    expected.put("a", "value");
+    expected.put("b", null);
+    expected.put("c", "request");
+    expected.put("d", "init");
+    assertEquals(expected, new HashMap<String, Object>(map));
+  }
+
+  @Test
+  public void testDefaultsNotCopied()
+  {
+    ParameterMap map = new ParameterMap();
+    Map<String, String> defaults = new HashMap<String, String>();
+    map.addDefaults(defaults);
+    defaults.put("a", "A");
+    assertEquals("A", map.get("a"));
+  }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.RenderCache.Key;
+
+public class RenderCacheTest
+{
+
+  private static ByteBuffer bytes(int size)
+  {
+    return ByteBuffer.wrap(new byte[size]);
+  }
+
+  @Test
+  public void testHitAndMiss()
+  {
+    RenderCache cache = new RenderCache(1000, 10);
+    Key key = new Key("template", new Key("a", null));
+    assertNull(cache.get(key));
+    ByteBuffer value = ByteBuffer.wrap("value".getBytes());
+    cache.put(key, value);
+    assertEquals(0, value.position());
+    assertEquals(value, cache.get(new Key("template", new Key("a", null))));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(5, cache.getWeight());
+  }
+
+  @Test
+  public void testSizeBound()
+  {
+    RenderCache cache = new RenderCache(100, 10);
+    cache.put(new Key("too large"), bytes(101));
+    assertEquals(0, cache.size());
+    assertEquals(1, cache.getRejectionCount());
+
+    for (int i = 0; i < 4; i++) {
+      cache.put(new Key(i), bytes(25));
+    }
+    assertEquals(100, cache.getWeight());
+    assertEquals(4, cache.size());
+  }
+
+  @Test
+  public void testFrequentEntryAdmitted()
+  {
+    RenderCache cache = new RenderCache(100, 10);
+    for (int i = 0; i < 4; i++) {
+      cache.get(new Key(i));
+      cache.put(new Key(i), bytes(25));
+    }
+    cache.get(new Key(0)); //0 is used more often than 1, 2 and 3
+
+    Key rare = new Key("rare");
+    cache.get(rare);
+    cache.put(rare, bytes(25)); //as frequent as the cached entries
+    assertNull(cache.get(rare));
+    assertEquals(1, cache.getRejectionCount());
+
+    Key frequent = new Key("frequent");
+    for (int i = 0; i < 3; i++) {
+      cache.get(frequent);
+    }
+    cache.put(frequent, bytes(50));
+    assertNotNull(cache.get(frequent));
+    assertNotNull(cache.get(new Key(0)));
+    assertEquals(2, cache.getEvictionCount());
+    assertEquals(100, cache.getWeight());
+  }
+
+  @Test
+  public void testClear()
+  {
+    RenderCache cache = new RenderCache(100, 10);
+    cache.put(new Key("a"), bytes(10));
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getWeight());
+  }
+
+  @Test
+  public void testTimeToLive() throws InterruptedException
+  {
+    RenderCache cache = new RenderCache(100, 10, 1);
+    cache.put(new Key("expiring"), bytes(10));
+    cache.put(new Key("permanent"), bytes(10), 0);
+    Thread.sleep(10);
+    assertNull(cache.get(new Key("expiring")));
+    assertNotNull(cache.get(new Key("permanent")));
+    assertEquals(1, cache.getExpirationCount());
+    assertEquals(10, cache.getWeight());
+  }
+
+  @Test
+  public void testExpiredEntriesMakeRoom() throws InterruptedException
+  {
+    RenderCache cache = new RenderCache(100, 10, 1);
+    cache.put(new Key("expiring"), bytes(100));
+    Thread.sleep(10);
+    cache.put(new Key("new"), bytes(100));
+    assertNotNull(cache.get(new Key("new")));
+    assertEquals(0, cache.getEvictionCount());
+    assertEquals(1, cache.getExpirationCount());
+  }
+
+  @Test
+  public void testSlabStore()
+  {
+    RenderCache cache = new RenderCache(5000, 10, 0, new SlabStore(1024, 1024));
+    cache.put(new Key("small"), ByteBuffer.wrap("value".getBytes()));
+    ByteBuffer value = cache.get(new Key("small"));
+    assertTrue(value.isDirect());
+    assertEquals(ByteBuffer.wrap("value".getBytes()), value);
+
+    //larger than a slab, kept on the heap
+    cache.put(new Key("large"), bytes(2000));
+    assertFalse(cache.get(new Key("large")).isDirect());
+    assertEquals(2005, cache.getWeight());
+
+    cache.clear();
+    assertEquals(0, cache.size());
+  }
+
+}
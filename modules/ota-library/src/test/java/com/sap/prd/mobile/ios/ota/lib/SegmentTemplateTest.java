@@ -0,0 +1,156 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_IDENTIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_VERSION;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_TITLE;
+import static com.sap.prd.mobile.ios.ota.lib.LibUtils.buildMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SegmentTemplateTest
+{
+
+  @Test
+  public void testReferences() throws IOException
+  {
+    Map<String, Object> mappings = new HashMap<String, Object>();
+    mappings.put("a", "A");
+    assertEquals("xAy", merge("x$a$!{b}y", mappings));
+    assertEquals("A.", merge("$a.", mappings));
+    assertEquals("A $b ${b} ", merge("${a} $b ${b} $!b", mappings));
+    assertEquals("$(document) $ 1 #e6e6e6; A", merge("$(document) $ 1 #e6e6e6; $!{a}", mappings));
+    assertEquals("no references", merge("no references", mappings));
+    assertEquals("", merge("", mappings));
+  }
+
+  @Test
+  public void testVelocityFeaturesNotCompiled()
+  {
+    assertNull(SegmentTemplate.compile("t", "#set($a = 1)$a"));
+    assertNull(SegmentTemplate.compile("t", "#if($a)x#end"));
+    assertNull(SegmentTemplate.compile("t", "#{if}($a)x#{end}"));
+    assertNull(SegmentTemplate.compile("t", "#foreach($a in $b)x#end"));
+    assertNull(SegmentTemplate.compile("t", "## comment"));
+    assertNull(SegmentTemplate.compile("t", "#* comment *#"));
+    assertNull(SegmentTemplate.compile("t", "#[[ unparsed ]]#"));
+    assertNull(SegmentTemplate.compile("t", "#myMacro ()"));
+    assertNull(SegmentTemplate.compile("t", "\\$a"));
+    assertNull(SegmentTemplate.compile("t", "$a.toUpperCase()"));
+    assertNull(SegmentTemplate.compile("t", "$a.length"));
+    assertNull(SegmentTemplate.compile("t", "${a.length}"));
+    assertNull(SegmentTemplate.compile("t", "$a[0]"));
+  }
+
+  @Test
+  public void testBundledTemplatesAreCompiled()
+  {
+    assertTrue(OtaPlistGenerator.getInstance().getEngine() instanceof SegmentTemplate);
+    assertTrue(OtaHtmlGenerator.getInstance().getEngine() instanceof SegmentTemplate);
+    assertTrue(OtaBuildHtmlGenerator.getInstance().getEngine() instanceof SegmentTemplate);
+  }
+
+  @Test
+  public void testSameOutputAsVelocity() throws IOException
+  {
+    Map<String, String> params = buildMap(KEY_REFERER, "http://hostname:8080/path/MyApp.htm", KEY_TITLE, "MyApp",
+          KEY_BUNDLE_IDENTIFIER, "com.sap.xyz.MyApp", KEY_BUNDLE_VERSION, "1.0.2");
+
+    OtaPlistGenerator plistGenerator = OtaPlistGenerator.getInstance();
+    assertSameOutput(plistGenerator, new OtaPlistGenerator.Parameters(params).getMappings());
+
+    OtaHtmlGenerator htmlGenerator = OtaHtmlGenerator.getInstance();
+    URL plistUrl = OtaPlistGenerator.generatePlistRequestUrl(new URL("http://ota-server:8080/OTAService/PLIST"), params);
+    assertSameOutput(htmlGenerator, new OtaHtmlGenerator.Parameters(plistUrl, null, params, null).getMappings());
+
+    OtaBuildHtmlGenerator buildGenerator = OtaBuildHtmlGenerator.getInstance();
+    assertSameOutput(buildGenerator, new OtaBuildHtmlGenerator.Parameters(new URL("http://ota-server:8080/HTML"),
+          "MyApp", "com.sap.xyz.MyApp", "1.0.2", null, null, null).getMappings());
+  }
+
+  @Test
+  public void testByteOutput() throws IOException
+  {
+    OtaPlistGenerator generator = OtaPlistGenerator.getInstance();
+    OtaPlistGenerator.Parameters parameters = new OtaPlistGenerator.Parameters(buildMap(
+          KEY_REFERER, "http://hostname:8080/path/MyApp.htm", KEY_TITLE, "My\u00c4pp \u65e5\u672c",
+          KEY_BUNDLE_IDENTIFIER, "com.sap.xyz.MyApp", KEY_BUNDLE_VERSION, "1.0.2"));
+    byte[] expected = generator.generate(parameters).getBytes(VelocityBase.ENCODING);
+
+    assertTrue(Arrays.equals(expected, toArray(generator.generateBytes(parameters))));
+    assertTrue(Arrays.equals(expected, toArray(generator.merge(parameters.getMappings()))));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    generator.generate(out, parameters);
+    assertTrue(Arrays.equals(expected, out.toByteArray()));
+
+    out = new ByteArrayOutputStream();
+    generator.generate(Channels.newChannel(out), parameters);
+    assertTrue(Arrays.equals(expected, out.toByteArray()));
+
+    ByteBuffer target = ByteBuffer.allocate(expected.length + 10);
+    generator.generate(target, parameters);
+    target.flip();
+    assertTrue(Arrays.equals(expected, toArray(target)));
+  }
+
+  private byte[] toArray(ByteBuffer buffer)
+  {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  private void assertSameOutput(VelocityBase<?> generator, Map<String, Object> mappings) throws IOException
+  {
+    StringWriter velocity = new StringWriter();
+    generator.merge(mappings, velocity);
+    StringWriter segments = new StringWriter();
+    generator.getEngine().merge(mappings, segments);
+    assertNotNull(generator.getEngine());
+    assertEquals(velocity.toString(), segments.toString());
+  }
+
+  private String merge(String template, Map<String, Object> mappings) throws IOException
+  {
+    SegmentTemplate segmentTemplate = SegmentTemplate.compile("t", template);
+    assertNotNull(segmentTemplate);
+    StringWriter writer = new StringWriter();
+    segmentTemplate.merge(mappings, writer);
+    return writer.toString();
+  }
+
+}
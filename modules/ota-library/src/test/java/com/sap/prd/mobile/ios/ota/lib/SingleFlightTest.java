@@ -0,0 +1,124 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class SingleFlightTest
+{
+
+  @Test
+  public void testCoalesced() throws Exception
+  {
+    final SingleFlight<String, Integer> flights = new SingleFlight<String, Integer>();
+    final AtomicInteger executions = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Callable<Integer> blocking = new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception
+      {
+        started.countDown();
+        release.await();
+        return executions.incrementAndGet();
+      }
+    };
+    final AtomicReference<Integer> joined = new AtomicReference<Integer>();
+    Thread leader = new Thread() {
+      @Override
+      public void run()
+      {
+        try {
+          flights.call("key", blocking);
+        }
+        catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    Thread follower = new Thread() {
+      @Override
+      public void run()
+      {
+        try {
+          joined.set(flights.call("key", blocking));
+        }
+        catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    leader.start();
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    follower.start();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (flights.getCoalescedCount() < 1 && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    assertEquals(1, flights.size());
+
+    release.countDown();
+    leader.join(10000);
+    follower.join(10000);
+    assertEquals(Integer.valueOf(1), joined.get());
+    assertEquals(1, executions.get());
+    assertEquals(1, flights.getExecutionCount());
+    assertEquals(1, flights.getCoalescedCount());
+    assertEquals(0, flights.size());
+
+    //the result is not kept after the call has completed
+    assertEquals(Integer.valueOf(2), flights.call("key", blocking));
+    assertEquals(2, flights.getExecutionCount());
+  }
+
+  @Test
+  public void testException() throws Exception
+  {
+    SingleFlight<String, String> flights = new SingleFlight<String, String>();
+    final IOException exception = new IOException("failed");
+    try {
+      flights.call("key", new Callable<String>() {
+        @Override
+        public String call() throws Exception
+        {
+          throw exception;
+        }
+      });
+      fail("ExecutionException expected");
+    }
+    catch (ExecutionException e) {
+      assertSame(exception, e.getCause());
+    }
+    assertEquals(0, flights.size());
+  }
+
+}
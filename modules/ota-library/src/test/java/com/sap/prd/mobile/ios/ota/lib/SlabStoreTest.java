@@ -0,0 +1,125 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class SlabStoreTest
+{
+
+  /**
+   * Allocates until the chunks freed before have been reclaimed, this takes two epochs.
+   */
+  private static ByteBuffer allocate(SlabStore store, int length)
+  {
+    ByteBuffer buffer = null;
+    for (int i = 0; i < 3 && buffer == null; i++) {
+      buffer = store.allocate(length);
+    }
+    return buffer;
+  }
+
+  @Test
+  public void testAllocate()
+  {
+    SlabStore store = new SlabStore(4096, 1024);
+    ByteBuffer buffer = store.allocate(100);
+    assertTrue(buffer.isDirect());
+    assertEquals(0, buffer.position());
+    assertEquals(100, buffer.remaining());
+    assertEquals(1024, store.getCapacity());
+    assertEquals(SlabStore.MIN_CHUNK_SIZE, store.getUsedBytes());
+
+    assertNull(store.allocate(1025));
+    assertEquals(1, store.getFailureCount());
+    assertEquals(1, store.getAllocationCount());
+  }
+
+  @Test
+  public void testFull()
+  {
+    SlabStore store = new SlabStore(1024, 1024);
+    for (int i = 0; i < 4; i++) {
+      assertNotNull(store.allocate(SlabStore.MIN_CHUNK_SIZE));
+    }
+    assertNull(store.allocate(1));
+    assertNull(store.allocate(1024));
+  }
+
+  @Test
+  public void testNotReusedInReadSection()
+  {
+    SlabStore store = new SlabStore(1024, 1024);
+    ByteBuffer buffer = store.allocate(1024);
+    buffer.put(0, (byte) 1);
+
+    long ticket = SlabStore.enter();
+    try {
+      store.free(buffer);
+      for (int i = 0; i < 5; i++) {
+        assertNull(store.allocate(1024));
+      }
+      assertEquals(1, buffer.get(0));
+    }
+    finally {
+      SlabStore.exit(ticket);
+    }
+    assertNotNull(allocate(store, 1024));
+  }
+
+  @Test
+  public void testIsInReadSection()
+  {
+    assertFalse(SlabStore.isInReadSection());
+    long outer = SlabStore.enter();
+    long inner = SlabStore.enter();
+    assertTrue(SlabStore.isInReadSection());
+    SlabStore.exit(inner);
+    assertTrue(SlabStore.isInReadSection());
+    SlabStore.exit(outer);
+    assertFalse(SlabStore.isInReadSection());
+  }
+
+  @Test
+  public void testSlabReassigned()
+  {
+    SlabStore store = new SlabStore(1024, 1024);
+    ByteBuffer small = store.allocate(300);
+    assertNull(store.allocate(1024));
+    store.free(small);
+    assertNotNull(allocate(store, 1024));
+    assertEquals(1024, store.getUsedBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testFreeForeignBuffer()
+  {
+    new SlabStore(1024, 1024).free(ByteBuffer.allocateDirect(10));
+  }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_IDENTIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_TITLE;
+import static com.sap.prd.mobile.ios.ota.lib.LibUtils.buildMap;
+import static com.sap.prd.mobile.ios.ota.lib.TestUtils.assertContains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.Parameters;
+
+public class TemplateVariablesTest
+{
+
+  private static final String DIRECTIVE_TEMPLATE = new File("./src/test/resources/directiveTemplate.plist")
+    .getAbsolutePath();
+  private static final String PARSE_TEMPLATE = new File("./src/test/resources/parseTemplate.plist").getAbsolutePath();
+
+  private final static Map<String, String> paramMap = buildMap(KEY_REFERER, "http://hostname:8080/path/MyApp.htm",
+        KEY_TITLE, "MyApp", KEY_BUNDLE_IDENTIFIER, "com.sap.xyz.MyApp");
+
+  @Test
+  public void testVariables() throws IOException
+  {
+    OtaPlistGenerator generator = OtaPlistGenerator.getInstance(DIRECTIVE_TEMPLATE);
+    assertSame(generator, generator.getEngine()); //not a segment template
+    assertEquals(Arrays.asList("greeting", "title", "bundleIdentifier", "i"), Arrays.asList(generator.getVariables()));
+
+    String generated = generator.generate(new Parameters(paramMap));
+    assertContains("<title>Install MyApp</title>", generated);
+    assertContains("<id>com.sap.xyz.MyApp</id>", generated);
+    assertContains("123", generated);
+  }
+
+  @Test
+  public void testUnknownVariables() throws IOException
+  {
+    OtaPlistGenerator generator = OtaPlistGenerator.getInstance(PARSE_TEMPLATE);
+    assertNull(generator.getVariables());
+    assertContains("MyApp", generator.generate(new Parameters(paramMap)));
+  }
+
+  @Test
+  public void testSegmentTemplateVariables()
+  {
+    SegmentTemplate template = SegmentTemplate.compile("test", "$a $!b ${a} $!{c}");
+    assertEquals(Arrays.asList("a", "b", "c"), Arrays.asList(template.getVariables()));
+  }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_TITLE;
+import static com.sap.prd.mobile.ios.ota.lib.LibUtils.buildMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.Parameters;
+
+public class TemplateWatcherTest
+{
+
+  private final static Map<String, String> paramMap = buildMap(
+        KEY_REFERER, "http://hostname:8080/path/MyApp.htm", KEY_TITLE, "MyApp");
+
+  private final File templateFile = new File("./target/watcher/watched.plist").getAbsoluteFile();
+
+  @After
+  public void tearDown()
+  {
+    TemplateWatcher.shutdown();
+    templateFile.delete();
+  }
+
+  @Test
+  public void testReloadOnModification() throws Exception
+  {
+    write(templateFile, "first $title");
+    OtaPlistGenerator first = OtaPlistGenerator.getReloadingInstance(templateFile.getPath());
+    assertSame(first, OtaPlistGenerator.getReloadingInstance(templateFile.getPath()));
+    assertEquals("first MyApp", first.generate(new Parameters(paramMap)));
+
+    write(templateFile, "second $title");
+    templateFile.setLastModified(templateFile.lastModified() + 2000);
+
+    OtaPlistGenerator second = first;
+    long timeout = System.currentTimeMillis() + 10 * TemplateWatcher.CHECK_INTERVAL;
+    while (second == first && System.currentTimeMillis() < timeout) {
+      Thread.sleep(50);
+      second = OtaPlistGenerator.getReloadingInstance(templateFile.getPath());
+    }
+    assertNotSame(first, second);
+    assertEquals("second MyApp", second.generate(new Parameters(paramMap)));
+    assertEquals("first MyApp", first.generate(new Parameters(paramMap))); //in-flight requests keep the old template
+    assertSame(second, OtaPlistGenerator.getInstance(templateFile.getPath()));
+  }
+
+  private static void write(File file, String content) throws IOException
+  {
+    file.getParentFile().mkdirs();
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      writer.write(content);
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+}
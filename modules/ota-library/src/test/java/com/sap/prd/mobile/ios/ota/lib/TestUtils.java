@@ -23,6 +23,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,6 +38,16 @@ public class TestUtils
     }
   }
   
+  /**
+   * Decodes the remaining bytes of a generated output, which may be held off-heap.
+   */
+  public static String decode(ByteBuffer bytes) throws UnsupportedEncodingException
+  {
+    byte[] array = new byte[bytes.remaining()];
+    bytes.duplicate().get(array);
+    return new String(array, "UTF-8");
+  }
+
   public static void assertOtaLink(CharSequence s, String plistURL, String bundleIdentifier)
   {
     Pattern checkOtaLinkPattern = Pattern.compile("href='itms-services:///\\?action=download-manifest&url=([^']+)'>Install Over-The-Air</a>");
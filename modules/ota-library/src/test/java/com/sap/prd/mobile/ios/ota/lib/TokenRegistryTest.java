@@ -0,0 +1,231 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_IDENTIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_VERSION;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_IPA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_TITLE;
+import static com.sap.prd.mobile.ios.ota.lib.LibUtils.buildMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TokenRegistryTest
+{
+
+  private final File journal = new File("./target/tokens/test.journal").getAbsoluteFile();
+  private final List<TokenRegistry> registries = new ArrayList<TokenRegistry>();
+
+  @After
+  public void tearDown() throws Exception
+  {
+    for (TokenRegistry registry : registries) {
+      registry.close();
+    }
+    journal.delete();
+  }
+
+  private TokenRegistry open() throws Exception
+  {
+    return open(0);
+  }
+
+  private TokenRegistry open(long refreshInterval) throws Exception
+  {
+    TokenRegistry registry = new TokenRegistry(journal, TokenRegistry.DEFAULT_MAX_TOKENS,
+          TokenRegistry.DEFAULT_MAX_REGISTRATIONS_PER_SECOND, refreshInterval);
+    registries.add(registry);
+    return registry;
+  }
+
+  private static Map<String, String> params(String version)
+  {
+    return buildMap(KEY_REFERER, "http://hostname:8080/path/MyApp.htm", KEY_TITLE, "MyApp",
+          KEY_BUNDLE_IDENTIFIER, "com.sap.xyz.MyApp", KEY_BUNDLE_VERSION, version);
+  }
+
+  @Test
+  public void testRegisterAndResolve() throws Exception
+  {
+    TokenRegistry registry = new TokenRegistry();
+    String token = registry.register(params("1.0"));
+    assertEquals(1 + TokenRegistry.TOKEN_LENGTH, token.length());
+    assertTrue(TokenRegistry.isToken(token));
+    assertTrue(token.matches("~[A-Za-z0-9_-]+"));
+    assertEquals(token, registry.register(params("1.0")));
+    assertFalse(token.equals(registry.register(params("1.1"))));
+    assertEquals(2, registry.getRegistrationCount());
+
+    assertEquals(params("1.0"), registry.resolve(token));
+    assertEquals(params("1.0"), registry.resolve("%7E" + token.substring(1)));
+    assertNull(registry.resolve("~unknown"));
+    assertEquals(2, registry.getHitCount());
+    assertEquals(1, registry.getMissCount());
+  }
+
+  @Test
+  public void testOnlyPlistParameters() throws Exception
+  {
+    TokenRegistry registry = new TokenRegistry();
+    Map<String, String> params = params("1.0");
+    String token = registry.register(params);
+    params.put("custom", "value");
+    params.put(KEY_IPA_CLASSIFIER, "");
+    assertEquals(token, registry.register(params));
+    params.put(KEY_IPA_CLASSIFIER, "ipaClassifier");
+    String classified = registry.register(params);
+    assertFalse(token.equals(classified));
+    assertEquals("ipaClassifier", registry.resolve(classified).get(KEY_IPA_CLASSIFIER));
+    assertNull(registry.resolve(classified).get("custom"));
+  }
+
+  @Test
+  public void testIsToken()
+  {
+    assertFalse(TokenRegistry.isToken(null));
+    assertFalse(TokenRegistry.isToken("~"));
+    assertFalse(TokenRegistry.isToken(LibUtils.encode("title=~MyApp")));
+    assertTrue(TokenRegistry.isToken("~abc"));
+    assertTrue(TokenRegistry.isToken("%7eabc"));
+  }
+
+  @Test
+  public void testJournal() throws Exception
+  {
+    TokenRegistry registry = open();
+    String token = registry.register(params("1.0"));
+    registry.close();
+
+    registry = open();
+    assertEquals(1, registry.size());
+    assertEquals(params("1.0"), registry.resolve(token));
+    assertEquals(token, registry.register(params("1.0")));
+    assertEquals(0, registry.getRegistrationCount());
+  }
+
+  @Test
+  public void testSharedJournal() throws Exception
+  {
+    TokenRegistry first = open();
+    TokenRegistry second = open();
+    String token = first.register(params("1.0"));
+    first.flush();
+    assertEquals(params("1.0"), second.resolve(token));
+    assertEquals(token, second.register(params("1.0")));
+    assertEquals(0, second.getRegistrationCount());
+  }
+
+  @Test
+  public void testInvalidLines() throws Exception
+  {
+    TokenRegistry registry = open();
+    String token = registry.register(params("1.0"));
+    FileOutputStream out = new FileOutputStream(journal, true);
+    out.write("~AAAAAAAAAAA dGl0bGU9eA%3D%3D\ngarbage\n~interrupted".getBytes("US-ASCII"));
+    out.close();
+
+    String next = registry.register(params("1.1"));
+    registry.flush();
+    assertEquals(params("1.1"), registry.resolve(next));
+    assertEquals(2, registry.getErrorCount());
+
+    //the invalid lines are removed
+    long length = journal.length();
+    TokenRegistry reopened = open();
+    assertEquals(params("1.0"), reopened.resolve(token));
+    assertEquals(params("1.1"), reopened.resolve(next));
+    assertEquals(2, reopened.size());
+    assertEquals(3, reopened.getErrorCount());
+    assertTrue(journal.length() < length);
+    assertEquals(0, open().getErrorCount());
+
+    //the first instance reads the compacted journal again
+    String third = reopened.register(params("1.2"));
+    reopened.flush();
+    assertEquals(params("1.2"), registry.resolve(third));
+    assertEquals(2, registry.getErrorCount());
+  }
+
+  @Test
+  public void testAdmission() throws Exception
+  {
+    TokenRegistry registry = new TokenRegistry(journal, 2, 100, 0);
+    registries.add(registry);
+    String token = registry.register(params("1.0"));
+    assertTrue(TokenRegistry.isToken(registry.register(params("1.1"))));
+    assertNull(registry.register(params("1.2")));
+    assertEquals(token, registry.register(params("1.0")));
+    assertEquals(1, registry.getRejectionCount());
+    assertEquals(2, registry.size());
+
+    TokenRegistry limited = new TokenRegistry(new File(journal.getPath() + ".limited"), 100, 1, 0);
+    registries.add(limited);
+    for (int i = 0; i < 3; i++) {
+      limited.register(params("2." + i));
+    }
+    //at most one second may have begun meanwhile
+    assertTrue(limited.getRejectionCount() >= 1);
+    limited.close();
+    new File(journal.getPath() + ".limited").delete();
+  }
+
+  @Test
+  public void testRefreshInterval() throws Exception
+  {
+    TokenRegistry first = open();
+    TokenRegistry second = open(60000);
+    assertNull(second.resolve("~AAAAAAAAAAA"));
+    String token = first.register(params("1.0"));
+    first.flush();
+    //the journal has just been read
+    assertNull(second.resolve(token));
+    assertEquals(2, second.getMissCount());
+  }
+
+  @Test
+  public void testPlistRequestUrl() throws Exception
+  {
+    TokenRegistry registry = new TokenRegistry();
+    URL service = new URL("http://ota-server:8080/ota-service/PLIST");
+    URL url = OtaPlistGenerator.generatePlistRequestUrl(service, params("1.0"), registry);
+    assertEquals(service + "/" + registry.register(params("1.0")), url.toExternalForm());
+    String longForm = OtaPlistGenerator.generatePlistRequestUrl(service, params("1.0")).toExternalForm();
+    assertEquals(longForm, OtaPlistGenerator.generatePlistRequestUrl(service, params("1.0"), null).toExternalForm());
+
+    registry = open();
+    registry.close();
+    assertEquals(longForm,
+          OtaPlistGenerator.generatePlistRequestUrl(service, params("1.0"), registry).toExternalForm());
+  }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.RuntimeConstants;
+
+/**
+ * Measures the cost of creating generator instances: the cold start of the first instance of each
+ * generator, the time per further instance and the heap retained per instance. With the argument
+ * <code>former</code> every instance creates and initializes its own VelocityEngine and parses the
+ * template, as VelocityBase did before the engines have been shared. Run each variant in a fresh JVM
+ * after <code>mvn test-compile</code> in this module with
+ * 
+ * <pre>
+ * java -cp target/test-classes:target/classes:&lt;dependencies&gt; \
+ *   com.sap.prd.mobile.ios.ota.lib.VelocityBaseBenchmark [former|current] [instances]
+ * </pre>
+ * 
+ * The heap is read after <code>System.gc()</code>, which is only a hint, so the heap figures are
+ * approximations.
+ */
+public class VelocityBaseBenchmark
+{
+
+  private static final String[] TEMPLATES = { OtaHtmlGenerator.DEFAULT_TEMPLATE,
+        OtaBuildHtmlGenerator.DEFAULT_TEMPLATE, "template.plist" };
+
+  /**
+   * The former VelocityBase constructor: an own engine per instance.
+   */
+  static Template formerTemplate(String templateName)
+  {
+    VelocityEngine ve = new VelocityEngine();
+    ve.setProperty(RuntimeConstants.RESOURCE_LOADER, "class,jar,file");
+    ve.setProperty("class.resource.loader.class",
+          "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
+    ve.setProperty("jar.resource.loader.class", "org.apache.velocity.runtime.resource.loader.JarResourceLoader");
+    return ve.getTemplate(templateName);
+  }
+
+  static Object create(boolean former, int index)
+  {
+    if (former) return formerTemplate(TEMPLATES[index]);
+    switch (index) {
+    case 0:
+      return OtaHtmlGenerator.getInstance(null, true);
+    case 1:
+      return OtaBuildHtmlGenerator.getInstance();
+    default:
+      return OtaPlistGenerator.getInstance(null, true);
+    }
+  }
+
+  private static long usedHeap()
+  {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  public static void main(String[] args)
+  {
+    final boolean former = args.length > 0 && args[0].equals("former");
+    final int instances = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+    System.out.println(String.format("%s, Java %s, %d instances, %d ms since JVM start",
+          former ? "former" : "current", System.getProperty("java.version"), instances,
+          System.currentTimeMillis() - jvmStart));
+
+    for (int index = 0; index < TEMPLATES.length; index++) {
+      long started = System.nanoTime();
+      create(former, index);
+      System.out.println(String.format("cold start %-20s %8.1f ms", TEMPLATES[index],
+            (System.nanoTime() - started) / 1e6));
+    }
+
+    long usedBefore = usedHeap();
+    Object[] keep = new Object[instances];
+    long started = System.nanoTime();
+    for (int i = 0; i < instances; i++) {
+      keep[i] = create(former, 0);
+    }
+    long nanos = System.nanoTime() - started;
+    long usedAfter = usedHeap();
+    System.out.println(String.format("per instance %-18s %8.3f ms %8d bytes", TEMPLATES[0],
+          nanos / 1e6 / instances, (usedAfter - usedBefore) / instances));
+    if (keep[instances - 1] == null) throw new IllegalStateException();
+  }
+}
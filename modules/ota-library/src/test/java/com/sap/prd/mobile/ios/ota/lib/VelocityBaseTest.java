@@ -0,0 +1,61 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+
+import org.junit.Test;
+
+public class VelocityBaseTest
+{
+
+  private static final String ALTERNATIVE_TEMPLATE = new File("./src/test/resources/alternativeTemplate.html")
+    .getAbsolutePath();
+
+  @Test
+  public void testEngineShared()
+  {
+    assertSame(VelocityBase.getVelocityEngine(""), VelocityBase.getVelocityEngine(""));
+    assertSame(OtaHtmlGenerator.getInstance(null, true).template, OtaHtmlGenerator.getInstance(null, true).template);
+    assertSame(OtaHtmlGenerator.getInstance(ALTERNATIVE_TEMPLATE, true).template,
+          OtaHtmlGenerator.getInstance(ALTERNATIVE_TEMPLATE, true).template);
+  }
+
+  /**
+   * Instances share the parsed template of the shared engine. The heap and time per instance are
+   * measured by {@link VelocityBaseBenchmark}.
+   */
+  @Test
+  public void testInstanceCreation()
+  {
+    final int instances = 200;
+    OtaHtmlGenerator[] keep = new OtaHtmlGenerator[instances];
+    for (int i = 0; i < instances; i++) {
+      keep[i] = OtaHtmlGenerator.getInstance(null, true);
+    }
+    for (OtaHtmlGenerator generator : keep) {
+      assertSame(keep[0].template, generator.template);
+    }
+    assertSame(OtaPlistGenerator.getInstance(null, true).template, OtaPlistGenerator.getInstance(null, true).template);
+  }
+
+}
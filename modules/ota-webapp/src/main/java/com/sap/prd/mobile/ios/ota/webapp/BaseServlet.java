@@ -19,9 +19,12 @@
  */
 package com.sap.prd.mobile.ios.ota.webapp;
 
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_COMPACT_URLS;
 import static java.lang.String.format;
+import static org.apache.commons.lang.StringUtils.equalsIgnoreCase;
 import static org.apache.commons.lang.StringUtils.isEmpty;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Collections;
@@ -34,6 +37,9 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.lang.StringUtils;
 
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sap.prd.mobile.ios.ota.lib.TokenRegistry;
+
 @SuppressWarnings("serial")
 public abstract class BaseServlet extends HttpServlet
 {
@@ -52,6 +58,38 @@ public abstract class BaseServlet extends HttpServlet
     return this.getServletContext().getInitParameterNames();
   }
   
+  /**
+   * Returns the <code>Cache-Control</code> header configured with the init parameter
+   * <code>key</code>, <code>defaultValue</code> if it is not configured. A blank value means that no
+   * header is sent.
+   */
+  protected String getCacheControl(String key, String defaultValue)
+  {
+    String cacheControl = getInitParameter(key);
+    return cacheControl == null ? defaultValue : cacheControl;
+  }
+
+  /**
+   * @return true if the URLs of the services are generated with a single compact segment, see
+   *         {@link com.sap.prd.mobile.ios.ota.lib.LibUtils#encodeParameters(Map)}
+   */
+  protected boolean isCompactUrls()
+  {
+    return equalsIgnoreCase(getInitParameter(KEY_COMPACT_URLS), "true");
+  }
+
+  /**
+   * Generates the URL of the PLIST service for <code>params</code> in the configured form: a short
+   * token if {@link WarmUpListener#TOKEN_JOURNAL_KEY} is set, a compact segment if
+   * {@link #isCompactUrls()}, otherwise the long form. The service accepts all forms.
+   */
+  protected URL generatePlistUrl(URL plistServiceUrl, Map<String, String> params) throws IOException
+  {
+    TokenRegistry tokens = Utils.getTokenRegistry();
+    if (tokens != null) return OtaPlistGenerator.generatePlistRequestUrl(plistServiceUrl, params, tokens);
+    return OtaPlistGenerator.generatePlistRequestUrl(plistServiceUrl, params, isCompactUrls());
+  }
+
   /**
    * Returns an unmodifiable map containing all init parameters. 
    * @return
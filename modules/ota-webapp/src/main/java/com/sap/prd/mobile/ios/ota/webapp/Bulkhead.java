@@ -0,0 +1,145 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs CPU intensive work on a fixed number of threads with a bounded queue, so that it cannot
+ * occupy all container threads and processors. Work which does not fit into the queue is rejected
+ * immediately with a {@link RejectedExecutionException} instead of waiting. The threads are daemon
+ * threads and terminate when they have been idle for a minute.
+ */
+public class Bulkhead
+{
+
+  private final String name;
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * @param name
+   *          prefix of the thread names
+   * @param threads
+   *          the number of threads doing the work
+   * @param queueCapacity
+   *          the number of tasks which may wait for a thread
+   */
+  public Bulkhead(final String name, int threads, int queueCapacity)
+  {
+    this.name = name;
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+              Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Runs <code>task</code> on one of the threads and waits for its result.
+   * 
+   * @throws RejectedExecutionException
+   *           if all threads are busy and the queue is full
+   * @throws ExecutionException
+   *           if <code>task</code> failed, the cause is the exception thrown by <code>task</code>
+   */
+  public <T> T call(Callable<T> task) throws ExecutionException, InterruptedException
+  {
+    Future<T> future;
+    try {
+      future = executor.submit(task);
+    }
+    catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      throw e;
+    }
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      future.cancel(true);
+      throw e;
+    }
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public int getThreads()
+  {
+    return executor.getMaximumPoolSize();
+  }
+
+  public int getActiveCount()
+  {
+    return executor.getActiveCount();
+  }
+
+  public int getQueueSize()
+  {
+    return executor.getQueue().size();
+  }
+
+  public int getQueueCapacity()
+  {
+    return executor.getQueue().size() + executor.getQueue().remainingCapacity();
+  }
+
+  public long getCompletedCount()
+  {
+    return executor.getCompletedTaskCount();
+  }
+
+  /**
+   * @return the number of tasks rejected because all threads were busy and the queue was full
+   */
+  public long getRejectedCount()
+  {
+    return rejected.get();
+  }
+
+  /**
+   * @return the share of the threads and queue slots in use, 1 means new work is rejected
+   */
+  public double getSaturation()
+  {
+    return (double) (getActiveCount() + getQueueSize()) / (getThreads() + getQueueCapacity());
+  }
+
+}
@@ -20,29 +20,45 @@
 package com.sap.prd.mobile.ios.ota.webapp;
 
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_ACTION;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_CACHE_CONTROL_HTML;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_CACHE_CONTROL_QRCODE;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_INLINE_QRCODES;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_ITMS_REDIRECT;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_QRCODE;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REMOVE_OUTER_FRAME;
 import static com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator.generateHtmlServiceUrl;
 import static com.sap.prd.mobile.ios.ota.webapp.OtaPlistService.PLIST_SERVICE_SERVLET_NAME;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.DEFAULT_CACHE_CONTROL;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.QR_CACHE_CONTROL;
 import static com.sap.prd.mobile.ios.ota.webapp.Utils.QR_OFF_COLOR;
 import static com.sap.prd.mobile.ios.ota.webapp.Utils.QR_OFF_COLOR_DEFAULT;
 import static com.sap.prd.mobile.ios.ota.webapp.Utils.QR_ON_COLOR;
 import static com.sap.prd.mobile.ios.ota.webapp.Utils.QR_ON_COLOR_DEFAULT;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.getCompactParameters;
 import static com.sap.prd.mobile.ios.ota.webapp.Utils.getMatrixToImageConfig;
 import static com.sap.prd.mobile.ios.ota.webapp.Utils.getParametersAndReferer;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.getQRCodeDataUri;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.getQRCodeModules;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.getQRCodeOptions;
 import static com.sap.prd.mobile.ios.ota.webapp.Utils.getRequestInfosForLog;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.isHead;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.isNotModified;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.sendBody;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.sendNotModified;
 import static com.sap.prd.mobile.ios.ota.webapp.Utils.sendQRCode;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.setValidators;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.toETag;
 import static java.lang.String.format;
 import static java.util.logging.Level.SEVERE;
 import static org.apache.commons.lang.StringUtils.equalsIgnoreCase;
 
-import java.awt.Dimension;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -54,7 +70,8 @@ import org.apache.commons.lang.StringUtils;
 import com.sap.prd.mobile.ios.ota.lib.Constants;
 import com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator;
 import com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator.Parameters;
-import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sap.prd.mobile.ios.ota.lib.SlabStore;
+import com.sap.prd.mobile.ios.ota.lib.VelocityBase;
 
 @SuppressWarnings("serial")
 public class OtaHtmlService extends BaseServlet
@@ -66,12 +83,28 @@ public class OtaHtmlService extends BaseServlet
 
   public static final String HTML_TEMPLATE_PATH_KEY = "htmlTemplatePath";
 
+  /**
+   * Value of the <code>inlineQrcodes</code> init parameter to let the browser draw the QR codes from
+   * their modules instead of embedding images.
+   */
+  public static final String INLINE_QRCODES_CANVAS = "canvas";
+
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
   {
     doPost(request, response);
   }
 
+  /**
+   * Sends the headers of the page without rendering it.
+   */
+  @Override
+  protected void doHead(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+        IOException
+  {
+    doPost(request, response);
+  }
+
   @Override
   protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
   {
@@ -79,7 +112,22 @@ public class OtaHtmlService extends BaseServlet
 
     try {
 
-      Map<String, String> params = getParametersAndReferer(request, response, true);
+      Map<String, String> compactParams;
+      try {
+        compactParams = getCompactParameters(request);
+      }
+      catch (IllegalArgumentException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        return;
+      }
+      //a compact URL contains the referer, it is also valid without the header
+      Map<String, String> params = getParametersAndReferer(request, response,
+            compactParams == null || compactParams.get(KEY_REFERER) == null);
+      if (compactParams != null) params.putAll(compactParams);
+      //a Referer taken from the header must be part of the key of shared caches
+      final boolean refererFromHeader = request.getParameter(KEY_REFERER) == null
+            && (compactParams == null || compactParams.get(KEY_REFERER) == null);
+      if (refererFromHeader) response.addHeader("Vary", KEY_REFERER);
 
       LOG.info(format("GET request from '%s' with referer '%s', action:qrcode and parameters %s",
             request.getRemoteAddr(), params.get(KEY_REFERER), params));
@@ -88,28 +136,81 @@ public class OtaHtmlService extends BaseServlet
       if (StringUtils.equals(action, KEY_QRCODE)) {
 
         URL htmlServiceUrl = equalsIgnoreCase(params.get(KEY_REMOVE_OUTER_FRAME), "true") ?
-              generateHtmlServiceUrl(getHtmlServiceBaseUrl(request), params) :
+              generateHtmlServiceUrl(getHtmlServiceBaseUrl(request), params, isCompactUrls()) :
               new URL(params.get(KEY_REFERER));
 
         LOG.fine("Sending QRCode for " + htmlServiceUrl.toString());
         sendQRCode(request, response, htmlServiceUrl.toString(), getMatrixToImageConfig(request),
-              new Dimension(400, 400));
+              getQRCodeOptions(request), getCacheControl(KEY_CACHE_CONTROL_QRCODE, QR_CACHE_CONTROL));
 
       }
       else {
 
-        URL plistUrl = OtaPlistGenerator.generatePlistRequestUrl(getPlistServiceBaseUrl(request), params);
+        URL plistUrl = generatePlistUrl(getPlistServiceBaseUrl(request), params);
         URL htmlServiceQrcodeUrl = generateHtmlServiceQRCodeUrl(request, params);
 
         String htmlTemplatePath = getInitParameter(HTML_TEMPLATE_PATH_KEY);
         final boolean DEBUG = equalsIgnoreCase(getInitParameter(Constants.KEY_DEBUG), "true");
 
-        response.setContentType("text/html");
-        PrintWriter writer = response.getWriter();
-        OtaHtmlGenerator generator = OtaHtmlGenerator.getInstance(htmlTemplatePath, DEBUG);
+        OtaHtmlGenerator generator = DEBUG ? OtaHtmlGenerator.getReloadingInstance(htmlTemplatePath)
+              : OtaHtmlGenerator.getInstance(htmlTemplatePath);
         LOG.finer("Using HTML Template: " + generator.getTemplateName() + " (configured: " + htmlTemplatePath + ")");
-        generator.generate(writer, new Parameters(plistUrl, htmlServiceQrcodeUrl, params, getInitParameters()));
-        writer.flush();
+        Parameters parameters = new Parameters(plistUrl, htmlServiceQrcodeUrl, params, getInitParameters());
+        final String inlineQrcodes = getInitParameter(KEY_INLINE_QRCODES);
+        final boolean inline = equalsIgnoreCase(inlineQrcodes, "true")
+              || equalsIgnoreCase(inlineQrcodes, INLINE_QRCODES_CANVAS);
+        //same contents as the QR codes sent for $plistUrl?action=qrcode and $htmlQrcodeUrl
+        String plistQrcodeContents = plistUrl.toExternalForm() + "?" + KEY_ACTION + "=" + KEY_ITMS_REDIRECT;
+        String htmlQrcodeContents = new URL(params.get(KEY_REFERER)).toExternalForm();
+
+        //validators from the inputs of the page, the inline QR codes are derived from their contents
+        String outputHash = generator.getOutputHash(parameters);
+        String etag = outputHash == null ? null : inline ? toETag(outputHash, inlineQrcodes.toLowerCase(),
+              plistQrcodeContents, htmlQrcodeContents) : toETag(outputHash);
+        //the load time of the template does not cover a different Referer header, only the ETag does
+        long lastModified = refererFromHeader ? 0 : generator.getLastModified();
+        final String cacheControl = getCacheControl(KEY_CACHE_CONTROL_HTML, DEFAULT_CACHE_CONTROL);
+        if (isNotModified(request, etag, lastModified)) {
+          sendNotModified(response, etag, lastModified, cacheControl);
+          return;
+        }
+        response.setContentType("text/html");
+        response.setCharacterEncoding(VelocityBase.ENCODING);
+        if (isHead(request)) {
+          setValidators(response, etag, lastModified, cacheControl);
+          return;
+        }
+
+        if (inline) {
+          try {
+            if (equalsIgnoreCase(inlineQrcodes, INLINE_QRCODES_CANVAS)) {
+              parameters.setQrcodeModules(getQRCodeModules(plistQrcodeContents),
+                    getQRCodeModules(htmlQrcodeContents));
+            }
+            else {
+              parameters.setInlineQrcodes(
+                    getQRCodeDataUri(plistQrcodeContents, null, QRCodeOptions.DEFAULT, QREncoder.FORMAT_SVG),
+                    getQRCodeDataUri(htmlQrcodeContents, null, QRCodeOptions.DEFAULT, QREncoder.FORMAT_SVG));
+            }
+          }
+          catch (RejectedExecutionException e) {
+            //the page is still usable, the template falls back to the QR code URLs. It must not be
+            //validated as the complete page.
+            LOG.fine("QR code generation is saturated, sending the page without inline QR codes");
+            etag = null;
+            lastModified = 0;
+          }
+        }
+        //the inline QR codes are encoded before, the read section only spans the lookup and the sending
+        long ticket = SlabStore.enter();
+        try {
+          ByteBuffer html = generator.generateSharedBytes(parameters);
+          setValidators(response, etag, lastModified, cacheControl);
+          sendBody(response, html);
+        }
+        finally {
+          SlabStore.exit(ticket);
+        }
       }
 
     }
@@ -133,8 +234,8 @@ public class OtaHtmlService extends BaseServlet
   private URL generateHtmlServiceQRCodeUrl(HttpServletRequest request, Map<String, String> params)
         throws MalformedURLException
   {
-    URL htmlServiceUrl = generateHtmlServiceUrl(getHtmlServiceBaseUrl(request), params);
-    return new URL(htmlServiceUrl.toExternalForm() + "&" +
+    URL htmlServiceUrl = generateHtmlServiceUrl(getHtmlServiceBaseUrl(request), params, isCompactUrls());
+    return new URL(htmlServiceUrl.toExternalForm() + (htmlServiceUrl.getQuery() == null ? "?" : "&") +
           KEY_ACTION + "=" + KEY_QRCODE + "&" +
           QR_ON_COLOR + "=" + QR_ON_COLOR_DEFAULT + "&" +
           QR_OFF_COLOR + "=" + QR_OFF_COLOR_DEFAULT);
@@ -19,29 +19,30 @@
  */
 package com.sap.prd.mobile.ios.ota.webapp;
 
-import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_ACTION;
-import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_IDENTIFIER;
-import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_VERSION;
-import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_IPA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_CACHE_CONTROL_ITMS_REDIRECT;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_CACHE_CONTROL_PLIST;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_CACHE_CONTROL_QRCODE;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_ITMS_REDIRECT;
-import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_OTA_CLASSIFIER;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_QRCODE;
-import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
-import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_TITLE;
-import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.generatePlistRequestUrl;
-import static com.sap.prd.mobile.ios.ota.webapp.Utils.extractSlashedEncodedParametersFromUri;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.DEFAULT_CACHE_CONTROL;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.QR_CACHE_CONTROL;
 import static com.sap.prd.mobile.ios.ota.webapp.Utils.getMatrixToImageConfig;
-import static com.sap.prd.mobile.ios.ota.webapp.Utils.getParametersAndReferer;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.getQRCodeOptions;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.isHead;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.isNotModified;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.sendBody;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.sendNotModified;
 import static com.sap.prd.mobile.ios.ota.webapp.Utils.sendQRCode;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.setValidators;
+import static com.sap.prd.mobile.ios.ota.webapp.Utils.toETag;
 import static java.lang.String.format;
 import static java.util.logging.Level.SEVERE;
 import static org.apache.commons.lang.StringUtils.equalsIgnoreCase;
 
-import java.awt.Dimension;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -54,6 +55,8 @@ import org.apache.commons.lang.StringUtils;
 import com.sap.prd.mobile.ios.ota.lib.Constants;
 import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
 import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.Parameters;
+import com.sap.prd.mobile.ios.ota.lib.SlabStore;
+import com.sap.prd.mobile.ios.ota.lib.VelocityBase;
 
 @SuppressWarnings("serial")
 public class OtaPlistService extends BaseServlet
@@ -71,41 +74,42 @@ public class OtaPlistService extends BaseServlet
   {
 
     try {
-      Map<String, String> params = getParametersAndReferer(request, response, false);
-
-      Map<String, String> slashedParams = extractSlashedEncodedParametersFromUri(request,
-            getPlistServletMappingUrlPattern(request));
-      dubParameters(KEY_REFERER, params, slashedParams, false);
-      dubParameters(KEY_TITLE, params, slashedParams, true);
-      dubParameters(KEY_BUNDLE_IDENTIFIER, params, slashedParams, true);
-      dubParameters(KEY_BUNDLE_VERSION, params, slashedParams, true);
-      dubParameters(KEY_IPA_CLASSIFIER, params, slashedParams, true);
-      dubParameters(KEY_OTA_CLASSIFIER, params, slashedParams, true);
-      dubParameters(KEY_ACTION, params, slashedParams, true);
+      PlistRequest plistRequest = new PlistRequest();
+      if (!plistRequest.parse(request, getPlistServletMappingUrlPattern(request))) {
+        response.sendError(plistRequest.getStatus(), plistRequest.getError());
+        return;
+      }
+      if (!plistRequest.addRequestParameters(request)) {
+        response.sendError(plistRequest.getStatus(), plistRequest.getError());
+        return;
+      }
+      Map<String, String> params = plistRequest.toMap();
 
       LOG.info(String.format("GET request from '%s' with referer '%s' and parameters %s",
-            request.getRemoteAddr(), params.get(KEY_REFERER), params));
+            request.getRemoteAddr(), plistRequest.getReferer(), plistRequest));
       
-      if (params.get(KEY_REFERER) == null) {
+      if (plistRequest.getReferer() == null) {
         response.sendError(400, "Referer required");
         return;
       }
 
-      final String action = params.get(KEY_ACTION);
+      final String action = plistRequest.getAction();
       if (StringUtils.equals(action, KEY_QRCODE)) {
 
-        String plistUrl = generatePlistRequestUrl(getPlistServiceBaseUrl(request), params).toExternalForm();
+        String plistUrl = generatePlistUrl(getPlistServiceBaseUrl(request), params).toExternalForm();
         String data = plistUrl + "?action=itmsRedirect";
         LOG.fine("Sending QRCode for " + data);
-        sendQRCode(request, response, data, getMatrixToImageConfig(request), new Dimension(400, 400));
+        sendQRCode(request, response, data, getMatrixToImageConfig(request), getQRCodeOptions(request),
+              getCacheControl(KEY_CACHE_CONTROL_QRCODE, QR_CACHE_CONTROL));
 
       }
       else if (StringUtils.equals(action, KEY_ITMS_REDIRECT)) {
 
-        URL plistUrl = generatePlistRequestUrl(getPlistServiceBaseUrl(request), params);
+        URL plistUrl = generatePlistUrl(getPlistServiceBaseUrl(request), params);
 
         String itmsServiceLink = "itms-services:///?action=download-manifest&url=" + plistUrl.toExternalForm();
         LOG.fine("Sending ItmsServiceRedirect for " + itmsServiceLink);
+        setValidators(response, null, 0, getCacheControl(KEY_CACHE_CONTROL_ITMS_REDIRECT, DEFAULT_CACHE_CONTROL));
         response.sendRedirect(itmsServiceLink);
 
       }
@@ -113,19 +117,51 @@ public class OtaPlistService extends BaseServlet
         String plistTemplatePath = getInitParameter(PLIST_TEMPLATE_PATH_KEY);
         final boolean DEBUG = equalsIgnoreCase(getInitParameter(Constants.KEY_DEBUG), "true");
         
+        OtaPlistGenerator generator = DEBUG ? OtaPlistGenerator.getReloadingInstance(plistTemplatePath)
+              : OtaPlistGenerator.getInstance(plistTemplatePath);
+        Parameters parameters = new Parameters(params);
+        String outputHash = generator.getOutputHash(parameters);
+        String etag = outputHash == null ? null : toETag(outputHash);
+        long lastModified = generator.getLastModified();
+        String cacheControl = getCacheControl(KEY_CACHE_CONTROL_PLIST, DEFAULT_CACHE_CONTROL);
+        if (isNotModified(request, etag, lastModified)) {
+          sendNotModified(response, etag, lastModified, cacheControl);
+          return;
+        }
         response.setContentType("application/xml");
-        PrintWriter writer = response.getWriter();
-        OtaPlistGenerator.getInstance(plistTemplatePath, DEBUG).generate(writer, new Parameters(params));
-        writer.flush();
+        response.setCharacterEncoding(VelocityBase.ENCODING);
+        setValidators(response, etag, lastModified, cacheControl);
+        if (isHead(request)) {
+          return;
+        }
+        //only the lookup and the sending keep the cached PLIST from being reused
+        long ticket = SlabStore.enter();
+        try {
+          ByteBuffer plist = generator.generateSharedBytes(parameters);
+          sendBody(response, plist);
+        }
+        finally {
+          SlabStore.exit(ticket);
+        }
       }
 
     }
     catch (Exception e) {
-      LOG.log(SEVERE, format("Exception while processing GET request from '%s' (%s)",
+      LOG.log(SEVERE, format("Exception while processing %s request from '%s' (%s)", request.getMethod(),
             request.getRemoteAddr(), Utils.getRequestInfosForLog(request)), e);
     }
   }
 
+  /**
+   * Sends the headers of the PLIST, QR code or redirect without the body.
+   */
+  @Override
+  protected void doHead(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+        IOException
+  {
+    doGet(request, response);
+  }
+
   private URL getPlistServiceBaseUrl(HttpServletRequest request) throws MalformedURLException
   {
     return getServiceBaseUrl(request, PLIST_SERVICE_SERVLET_NAME);
@@ -136,31 +172,4 @@ public class OtaPlistService extends BaseServlet
     return Utils.getServletMappingUrlPattern(request, PLIST_SERVICE_SERVLET_NAME);
   }
 
-  /**
-   * Updates the requestParams Map for the specified KEY if needed.<br/>
-   * requestParams and extractedUriParams might contain values for the specified key.<br/>
-   * If requestParamLeading is true it is checked if the request parameter value is null, if yes the
-   * according uri Parameter is set.<br/>
-   * If requestParamLeading is false it is checked if the uri parameter value is not null, if it is
-   * not null the according uri Parameter is set.<br/>
-   * 
-   * @param KEY
-   * @param requestParams
-   * @param extractParametersFromUri
-   * @param requestParamLeading
-   */
-  private void dubParameters(final String KEY, Map<String, String> requestParams,
-        Map<String, String> slashSeparatedParams,
-        boolean requestParamLeading)
-  {
-    final String slashValue = slashSeparatedParams == null ? null : slashSeparatedParams.get(KEY);
-    final String reqValue = requestParams == null ? null : requestParams.get(KEY);
-    if (requestParamLeading) {
-      if (reqValue == null) requestParams.put(KEY, slashValue);
-    }
-    else {
-      if (slashValue != null) requestParams.put(KEY, slashValue);
-    }
-  }
-
 }
@@ -0,0 +1,321 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_ACTION;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_IDENTIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_VERSION;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_IPA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_OTA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_TITLE;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sap.prd.mobile.ios.ota.lib.Base64Url;
+import com.sap.prd.mobile.ios.ota.lib.LibUtils;
+import com.sap.prd.mobile.ios.ota.lib.TokenRegistry;
+
+/**
+ * The parameters of a request to the PLIST service, one field per parameter. The request URI is
+ * parsed in a single pass over the offsets of its path segments after the servlet path: segments in
+ * the long form (one Base64 encoded "key=value" per segment) are decoded into a buffer of the
+ * current thread, only the values of the known parameters become strings. Short tokens and compact
+ * segments are resolved as well. Malformed URIs are reported by the status of {@link #parse}, no
+ * exception is thrown.
+ */
+public class PlistRequest
+{
+
+  /** the parameters, their index is the index of the field */
+  private static final String[] KEYS = { KEY_REFERER, KEY_TITLE, KEY_BUNDLE_IDENTIFIER, KEY_BUNDLE_VERSION,
+      KEY_IPA_CLASSIFIER, KEY_OTA_CLASSIFIER, KEY_ACTION };
+
+  private static final int REFERER = 0;
+  private static final int TITLE = 1;
+  private static final int BUNDLE_IDENTIFIER = 2;
+  private static final int BUNDLE_VERSION = 3;
+  private static final int IPA_CLASSIFIER = 4;
+  private static final int OTA_CLASSIFIER = 5;
+  private static final int ACTION = 6;
+
+  private static final byte[][] KEY_BYTES = new byte[KEYS.length][];
+
+  static {
+    for (int i = 0; i < KEYS.length; i++) {
+      KEY_BYTES[i] = KEYS[i].getBytes(Charset.forName("US-ASCII"));
+    }
+  }
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** larger buffers are not kept by the threads */
+  private static final int MAX_BUFFER_SIZE = 4096;
+
+  private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue()
+    {
+      return new byte[512];
+    }
+  };
+
+  private final String[] values = new String[KEYS.length];
+  private int status = HttpServletResponse.SC_OK;
+  private String error;
+
+  /**
+   * Parses the path segments of the request URI after the servlet path, see
+   * {@link #parse(CharSequence, String, String)}.
+   */
+  public boolean parse(HttpServletRequest request, String servletPath)
+  {
+    return parse(request.getRequestURI(), request.getContextPath(), servletPath);
+  }
+
+  /**
+   * Parses the path segments of <code>uri</code> after <code>contextPath</code> and
+   * <code>servletPath</code>. A later segment overwrites the parameters of an earlier one, segments
+   * of other parameters or without '=' are ignored. If the URI is not valid the status is set to
+   * <code>400</code>, for an unknown token to <code>404</code>.
+   * 
+   * @return true if the URI is valid, otherwise see {@link #getStatus()} and {@link #getError()}
+   */
+  public boolean parse(CharSequence uri, String contextPath, String servletPath)
+  {
+    int pos = 0;
+    if (!regionMatches(uri, pos, contextPath)) {
+      return fail(HttpServletResponse.SC_NOT_FOUND, "URI does not start with the context path " + contextPath);
+    }
+    pos += contextPath.length();
+    if (!regionMatches(uri, pos, servletPath)) {
+      return fail(HttpServletResponse.SC_NOT_FOUND, "URI does not start with the servlet path " + servletPath);
+    }
+    pos += servletPath.length();
+
+    int length = uri.length();
+    while (pos < length) {
+      if (uri.charAt(pos) == '/') {
+        pos++;
+        continue;
+      }
+      int end = pos + 1;
+      while (end < length && uri.charAt(end) != '/') {
+        end++;
+      }
+      if (!parseSegment(uri, pos, end)) return false;
+      pos = end;
+    }
+    return true;
+  }
+
+  private boolean parseSegment(CharSequence uri, int start, int end)
+  {
+    char first = uri.charAt(start);
+    if (first == TokenRegistry.PREFIX || first == '%') {
+      String segment = uri.subSequence(start, end).toString();
+      if (TokenRegistry.isToken(segment)) {
+        TokenRegistry tokens = Utils.getTokenRegistry();
+        Map<String, String> params = tokens == null ? null : tokens.resolve(segment);
+        if (params == null) return fail(HttpServletResponse.SC_NOT_FOUND, "Unknown token " + segment);
+        setAll(params);
+        return true;
+      }
+    }
+    else if (first == LibUtils.COMPACT_PREFIX) {
+      String segment = uri.subSequence(start, end).toString();
+      Map<String, String> params = LibUtils.decodeParametersOrNull(segment);
+      if (params == null) return fail(HttpServletResponse.SC_BAD_REQUEST, "Invalid compact segment " + segment);
+      setAll(params);
+      return true;
+    }
+
+    byte[] buffer = getBuffer(Base64Url.maxDecodedLength(end - start));
+    int size = Base64Url.decode(uri, start, end, buffer, 0);
+    if (size < 0) {
+      return fail(HttpServletResponse.SC_BAD_REQUEST, "Invalid segment " + uri.subSequence(start, end));
+    }
+    int idx = 0;
+    while (idx < size && buffer[idx] != '=') {
+      idx++;
+    }
+    if (idx == size) return true;
+    int field = getField(buffer, idx);
+    if (field >= 0) values[field] = new String(buffer, idx + 1, size - idx - 1, UTF_8);
+    return true;
+  }
+
+  /**
+   * @return the index of the field of the key in the first <code>length</code> bytes of
+   *         <code>buffer</code> or -1 if it is not a known parameter
+   */
+  private static int getField(byte[] buffer, int length)
+  {
+    for (int field = 0; field < KEY_BYTES.length; field++) {
+      byte[] key = KEY_BYTES[field];
+      if (key.length != length) continue;
+      int i = 0;
+      while (i < length && key[i] == buffer[i]) {
+        i++;
+      }
+      if (i == length) return field;
+    }
+    return -1;
+  }
+
+  private static boolean regionMatches(CharSequence chars, int offset, String prefix)
+  {
+    if (chars.length() - offset < prefix.length()) return false;
+    for (int i = 0; i < prefix.length(); i++) {
+      if (chars.charAt(offset + i) != prefix.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  private static byte[] getBuffer(int size)
+  {
+    byte[] buffer = BUFFER.get();
+    if (buffer.length < size) {
+      buffer = new byte[size];
+      if (size <= MAX_BUFFER_SIZE) BUFFER.set(buffer);
+    }
+    return buffer;
+  }
+
+  private boolean fail(int status, String error)
+  {
+    this.status = status;
+    this.error = error;
+    return false;
+  }
+
+  private void setAll(Map<String, String> params)
+  {
+    for (int i = 0; i < KEYS.length; i++) {
+      String value = params.get(KEYS[i]);
+      if (value != null) values[i] = value;
+    }
+  }
+
+  /**
+   * Adds the request parameters. They take precedence over the parameters of the URI, except the
+   * Referer: the request parameter or header is only used if the URI has none, see
+   * {@link Utils#getReferer(HttpServletRequest)}. Parameters given more than once are ignored. A
+   * Referer request parameter which is not valid sets the status to <code>400</code>.
+   * 
+   * @return true if the parameters are valid, otherwise see {@link #getStatus()} and
+   *         {@link #getError()}
+   */
+  public boolean addRequestParameters(HttpServletRequest request)
+  {
+    Map<String, String[]> requestParams = request.getParameterMap();
+    for (int i = REFERER + 1; i < KEYS.length; i++) {
+      String[] requestValues = requestParams == null ? null : requestParams.get(KEYS[i]);
+      if (requestValues != null && requestValues.length == 1) values[i] = requestValues[0];
+    }
+    if (values[REFERER] != null) return true;
+    String referer = request.getParameter(KEY_REFERER);
+    if (referer == null) {
+      values[REFERER] = request.getHeader(KEY_REFERER);
+      return true;
+    }
+    values[REFERER] = Utils.decodeReferer(referer);
+    if (values[REFERER] == null) {
+      return fail(HttpServletResponse.SC_BAD_REQUEST, "Referer neither an URL nor Base64 encoded: " + referer);
+    }
+    return true;
+  }
+
+  /**
+   * @return the HTTP status of the request, <code>200</code> unless {@link #parse} failed
+   */
+  public int getStatus()
+  {
+    return status;
+  }
+
+  /**
+   * @return the reason why {@link #parse} failed or null
+   */
+  public String getError()
+  {
+    return error;
+  }
+
+  public String getReferer()
+  {
+    return values[REFERER];
+  }
+
+  public String getTitle()
+  {
+    return values[TITLE];
+  }
+
+  public String getBundleIdentifier()
+  {
+    return values[BUNDLE_IDENTIFIER];
+  }
+
+  public String getBundleVersion()
+  {
+    return values[BUNDLE_VERSION];
+  }
+
+  public String getIpaClassifier()
+  {
+    return values[IPA_CLASSIFIER];
+  }
+
+  public String getOtaClassifier()
+  {
+    return values[OTA_CLASSIFIER];
+  }
+
+  public String getAction()
+  {
+    return values[ACTION];
+  }
+
+  /**
+   * @return the parameters which are set, e.g. for
+   *         {@link com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.Parameters}
+   */
+  public Map<String, String> toMap()
+  {
+    Map<String, String> map = new HashMap<String, String>();
+    for (int i = 0; i < KEYS.length; i++) {
+      if (values[i] != null) map.put(KEYS[i], values[i]);
+    }
+    return map;
+  }
+
+  @Override
+  public String toString()
+  {
+    return toMap().toString();
+  }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * Writes a <code>BitMatrix</code> as indexed PNG with one bit per pixel and a two colour palette.
+ * Unlike <code>MatrixToImageWriter</code> no <code>BufferedImage</code> is created and neither
+ * <code>java.awt</code> nor ImageIO are used. The scanlines are compressed one by one with a
+ * <code>Deflater</code> which is reused per thread.
+ */
+public class PngEncoder
+{
+
+  private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+  private static final byte[] IHDR = { 'I', 'H', 'D', 'R' };
+  private static final byte[] PLTE = { 'P', 'L', 'T', 'E' };
+  private static final byte[] TRNS = { 't', 'R', 'N', 'S' };
+  private static final byte[] IDAT = { 'I', 'D', 'A', 'T' };
+  private static final byte[] IEND = { 'I', 'E', 'N', 'D' };
+
+  private static final byte BIT_DEPTH = 1;
+  private static final byte COLOR_TYPE_INDEXED = 3;
+  private static final byte FILTER_NONE = 0;
+
+  private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+    @Override
+    protected Deflater initialValue()
+    {
+      return new Deflater(Deflater.BEST_COMPRESSION);
+    }
+  };
+
+  /**
+   * Writes <code>matrix</code> as PNG to <code>out</code>. The stream is not closed.
+   * 
+   * @param onColor
+   *          ARGB colour of the set bits
+   * @param offColor
+   *          ARGB colour of the unset bits
+   */
+  public static void write(BitMatrix matrix, int onColor, int offColor, OutputStream out) throws IOException
+  {
+    write(matrix, 1, 0, onColor, offColor, out);
+  }
+
+  /**
+   * Writes <code>matrix</code> as PNG to <code>out</code> with <code>moduleSize</code> pixels per cell
+   * and a border of <code>quietZone</code> cells. The stream is not closed.
+   * 
+   * @param onColor
+   *          ARGB colour of the set bits
+   * @param offColor
+   *          ARGB colour of the unset bits
+   */
+  public static void write(BitMatrix matrix, int moduleSize, int quietZone, int onColor, int offColor,
+        OutputStream out) throws IOException
+  {
+    if (moduleSize < 1) throw new IllegalArgumentException("moduleSize must be positive: " + moduleSize);
+    if (quietZone < 0) throw new IllegalArgumentException("quietZone must not be negative: " + quietZone);
+    final int width = (matrix.getWidth() + 2 * quietZone) * moduleSize;
+    final int height = (matrix.getHeight() + 2 * quietZone) * moduleSize;
+
+    out.write(SIGNATURE);
+
+    byte[] header = new byte[13];
+    putInt(header, 0, width);
+    putInt(header, 4, height);
+    header[8] = BIT_DEPTH;
+    header[9] = COLOR_TYPE_INDEXED;
+    //compression, filter and interlace method 0
+    writeChunk(out, IHDR, header, header.length);
+
+    //index 0: off, index 1: on
+    byte[] palette = { (byte) (offColor >> 16), (byte) (offColor >> 8), (byte) offColor,
+        (byte) (onColor >> 16), (byte) (onColor >> 8), (byte) onColor };
+    writeChunk(out, PLTE, palette, palette.length);
+    byte offAlpha = (byte) (offColor >>> 24);
+    byte onAlpha = (byte) (onColor >>> 24);
+    if (offAlpha != (byte) 0xFF || onAlpha != (byte) 0xFF) {
+      byte[] transparency = { offAlpha, onAlpha };
+      writeChunk(out, TRNS, transparency, transparency.length);
+    }
+
+    ExposedByteArrayOutputStream data = new ExposedByteArrayOutputStream(1024);
+    deflateScanlines(matrix, moduleSize, quietZone, data);
+    writeChunk(out, IDAT, data.buffer(), data.size());
+
+    writeChunk(out, IEND, new byte[0], 0);
+  }
+
+  /**
+   * Each scanline is built once per matrix row and then repeated <code>moduleSize</code> times.
+   */
+  private static void deflateScanlines(BitMatrix matrix, int moduleSize, int quietZone, OutputStream out)
+        throws IOException
+  {
+    final int matrixWidth = matrix.getWidth();
+    final int matrixHeight = matrix.getHeight();
+    final int width = (matrixWidth + 2 * quietZone) * moduleSize;
+    byte[] scanline = new byte[1 + (width + 7) / 8];
+    byte[] buffer = new byte[4096];
+    Deflater deflater = DEFLATER.get();
+    deflater.reset();
+    try {
+      for (int row = -quietZone; row < matrixHeight + quietZone; row++) {
+        Arrays.fill(scanline, (byte) 0);
+        scanline[0] = FILTER_NONE;
+        if (row >= 0 && row < matrixHeight) {
+          for (int x = 0; x < matrixWidth; x++) {
+            if (!matrix.get(x, row)) continue;
+            final int start = (x + quietZone) * moduleSize;
+            for (int pixel = start; pixel < start + moduleSize; pixel++) {
+              scanline[1 + (pixel >> 3)] |= 0x80 >>> (pixel & 7);
+            }
+          }
+        }
+        for (int i = 0; i < moduleSize; i++) {
+          deflater.setInput(scanline);
+          while (!deflater.needsInput()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+          }
+        }
+      }
+      deflater.finish();
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+    }
+    finally {
+      deflater.reset();
+    }
+  }
+
+  private static void writeChunk(OutputStream out, byte[] type, byte[] data, int length) throws IOException
+  {
+    byte[] lengthBytes = new byte[4];
+    putInt(lengthBytes, 0, length);
+    out.write(lengthBytes);
+    out.write(type);
+    out.write(data, 0, length);
+    CRC32 crc = new CRC32();
+    crc.update(type);
+    crc.update(data, 0, length);
+    byte[] crcBytes = new byte[4];
+    putInt(crcBytes, 0, (int) crc.getValue());
+    out.write(crcBytes);
+  }
+
+  private static void putInt(byte[] bytes, int offset, int value)
+  {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  /**
+   * Gives access to the internal buffer to avoid the copy of <code>toByteArray()</code>.
+   */
+  private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream
+  {
+    ExposedByteArrayOutputStream(int size)
+    {
+      super(size);
+    }
+
+    byte[] buffer()
+    {
+      return buf;
+    }
+  }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+/**
+ * Size and encoding options of a QR code image. The modules are always scaled by an integer factor,
+ * so the image is never resampled and its size is the largest multiple of the module count (including
+ * quiet zone) not exceeding the requested size. The scale multiplies the pixels per module for high
+ * density displays, e.g. for the <code>2x</code> and <code>3x</code> candidates of a
+ * <code>srcset</code>.
+ */
+public class QRCodeOptions
+{
+
+  public static final int DEFAULT_SIZE = 400;
+  public static final int MIN_SIZE = 50;
+  public static final int MAX_SIZE = 2000;
+  public static final int MAX_SCALE = 3;
+  public static final int DEFAULT_QUIET_ZONE = 4;
+  public static final int MAX_QUIET_ZONE = 16;
+  public static final ErrorCorrectionLevel DEFAULT_ERROR_CORRECTION = ErrorCorrectionLevel.L;
+
+  public static final QRCodeOptions DEFAULT = new QRCodeOptions(DEFAULT_SIZE, 1, DEFAULT_ERROR_CORRECTION,
+        DEFAULT_QUIET_ZONE);
+
+  private final int size;
+  private final int scale;
+  private final ErrorCorrectionLevel errorCorrection;
+  private final int quietZone;
+
+  /**
+   * @param size
+   *          the requested width and height in CSS pixels
+   * @param scale
+   *          the device pixels per CSS pixel, 1 to {@link #MAX_SCALE}
+   * @param errorCorrection
+   *          the error correction level, lower levels result in less modules
+   * @param quietZone
+   *          the width of the light border in modules
+   */
+  public QRCodeOptions(int size, int scale, ErrorCorrectionLevel errorCorrection, int quietZone)
+  {
+    if (size < MIN_SIZE || size > MAX_SIZE)
+      throw new IllegalArgumentException("size must be between " + MIN_SIZE + " and " + MAX_SIZE + ": " + size);
+    if (scale < 1 || scale > MAX_SCALE)
+      throw new IllegalArgumentException("scale must be between 1 and " + MAX_SCALE + ": " + scale);
+    if (errorCorrection == null) throw new IllegalArgumentException("errorCorrection must not be null");
+    if (quietZone < 0 || quietZone > MAX_QUIET_ZONE)
+      throw new IllegalArgumentException("quietZone must be between 0 and " + MAX_QUIET_ZONE + ": " + quietZone);
+    this.size = size;
+    this.scale = scale;
+    this.errorCorrection = errorCorrection;
+    this.quietZone = quietZone;
+  }
+
+  public int getSize()
+  {
+    return size;
+  }
+
+  public int getScale()
+  {
+    return scale;
+  }
+
+  public ErrorCorrectionLevel getErrorCorrection()
+  {
+    return errorCorrection;
+  }
+
+  public int getQuietZone()
+  {
+    return quietZone;
+  }
+
+  /**
+   * @return the pixels per module in CSS pixels for a QR code with <code>modules</code> modules per
+   *         side
+   */
+  public int getModuleSize(int modules)
+  {
+    return Math.max(1, size / (modules + 2 * quietZone));
+  }
+
+  /**
+   * @return the width and height in CSS pixels for a QR code with <code>modules</code> modules per side
+   */
+  public int getImageSize(int modules)
+  {
+    return getModuleSize(modules) * (modules + 2 * quietZone);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return ((size * 31 + scale) * 31 + errorCorrection.hashCode()) * 31 + quietZone;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj) return true;
+    if (!(obj instanceof QRCodeOptions)) return false;
+    QRCodeOptions other = (QRCodeOptions) obj;
+    return size == other.size && scale == other.scale && errorCorrection == other.errorCorrection
+          && quietZone == other.quietZone;
+  }
+
+  @Override
+  public String toString()
+  {
+    return size + "@" + scale + "x," + errorCorrection + ",quietZone=" + quietZone;
+  }
+
+}
@@ -19,39 +19,200 @@
  */
 package com.sap.prd.mobile.ios.ota.webapp;
 
-import java.awt.Dimension;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.sonatype.plexus.components.cipher.Base64;
 
 import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
 import com.google.zxing.MultiFormatWriter;
 import com.google.zxing.WriterException;
 import com.google.zxing.client.j2se.MatrixToImageConfig;
-import com.google.zxing.client.j2se.MatrixToImageWriter;
 import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
 
 public class QREncoder
 {
 
   private static final BarcodeFormat DEFAULT_BARCODE_FORMAT = BarcodeFormat.QR_CODE;
-  private static final String DEFAULT_IMAGE_FORMAT = "PNG";
-  private static final int DEFAULT_WIDTH = 400;
-  private static final int DEFAULT_HEIGHT = 400;
-  private static final MatrixToImageConfig DEFAULT_MATRIX_CONFIG = new MatrixToImageConfig(0xFF000000, 0x00FFFFFF);
+  public static final String FORMAT_PNG = "png";
+  public static final String FORMAT_SVG = "svg";
+  static final String DEFAULT_IMAGE_FORMAT = FORMAT_PNG;
+  static final MatrixToImageConfig DEFAULT_MATRIX_CONFIG = new MatrixToImageConfig(0xFF000000, 0x00FFFFFF);
 
   public static void encode(String contents, OutputStream stream) throws IOException, WriterException
   {
-    encode(contents, stream, DEFAULT_MATRIX_CONFIG, null);
+    encode(contents, stream, DEFAULT_MATRIX_CONFIG, QRCodeOptions.DEFAULT);
+  }
+
+  public static void encode(String contents, OutputStream stream, MatrixToImageConfig config, QRCodeOptions options)
+        throws IOException, WriterException
+  {
+    if (options == null) options = QRCodeOptions.DEFAULT;
+    encode(encodeMatrix(contents, options.getErrorCorrection()), config, options, FORMAT_PNG, stream);
+  }
+
+  /**
+   * Returns the encoded image with <code>size</code> pixels per side in a buffer whose remaining bytes
+   * are exactly the image.
+   */
+  public static ByteBuffer encode(String contents, MatrixToImageConfig config, int size)
+        throws IOException, WriterException
+  {
+    return encode(contents, config, getOptions(size), DEFAULT_IMAGE_FORMAT);
+  }
+
+  /**
+   * Returns the image encoded in <code>format</code> ({@link #FORMAT_PNG} or {@link #FORMAT_SVG}) in a
+   * buffer whose remaining bytes are exactly the image.
+   */
+  public static ByteBuffer encode(String contents, MatrixToImageConfig config, int size, String format)
+        throws IOException, WriterException
+  {
+    return encode(contents, config, getOptions(size), format);
   }
 
-  public static void encode(String contents, OutputStream stream, MatrixToImageConfig config, Dimension dimension)
+  public static ByteBuffer encode(String contents, MatrixToImageConfig config, QRCodeOptions options, String format)
         throws IOException, WriterException
   {
-    MultiFormatWriter barcodeWriter = new MultiFormatWriter();
-    BitMatrix matrix = barcodeWriter.encode(contents, DEFAULT_BARCODE_FORMAT,
-          (dimension == null || dimension.width <= 0) ? DEFAULT_WIDTH : dimension.width,
-          (dimension == null || dimension.height <= 0) ? DEFAULT_HEIGHT : dimension.height);
-    MatrixToImageWriter.writeToStream(matrix, DEFAULT_IMAGE_FORMAT, stream,
-          config != null ? config : DEFAULT_MATRIX_CONFIG);
+    return encode(encodeMatrix(contents, options.getErrorCorrection()), config, options, format);
+  }
+
+  /**
+   * Renders the modules returned by {@link #encodeMatrix(String, ErrorCorrectionLevel)} into a buffer
+   * whose remaining bytes are exactly the image.
+   */
+  public static ByteBuffer encode(BitMatrix modules, MatrixToImageConfig config, QRCodeOptions options, String format)
+        throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+    encode(modules, config, options, format, out);
+    return ByteBuffer.wrap(out.toByteArray());
+  }
+
+  /**
+   * Renders the modules returned by {@link #encodeMatrix(String, ErrorCorrectionLevel)}. PNG images
+   * get an integer number of pixels per module. SVG images use one unit per module, the options only
+   * set the size the image is displayed with.
+   */
+  public static void encode(BitMatrix modules, MatrixToImageConfig config, QRCodeOptions options, String format,
+        OutputStream stream) throws IOException
+  {
+    if (config == null) config = DEFAULT_MATRIX_CONFIG;
+    if (options == null) options = QRCodeOptions.DEFAULT;
+    final int moduleCount = modules.getWidth();
+    if (FORMAT_SVG.equals(format)) {
+      int size = options.getImageSize(moduleCount);
+      SvgEncoder.write(modules, options.getQuietZone(), config.getPixelOnColor(), config.getPixelOffColor(), size,
+            size, stream);
+    }
+    else {
+      PngEncoder.write(modules, options.getModuleSize(moduleCount) * options.getScale(), options.getQuietZone(),
+            config.getPixelOnColor(), config.getPixelOffColor(), stream);
+    }
+  }
+
+  /**
+   * @return the modules of the QR code, one matrix cell per module and without quiet zone
+   */
+  public static BitMatrix encodeMatrix(String contents, ErrorCorrectionLevel errorCorrection) throws WriterException
+  {
+    Map<EncodeHintType, Object> hints = new HashMap<EncodeHintType, Object>();
+    hints.put(EncodeHintType.MARGIN, 0);
+    hints.put(EncodeHintType.ERROR_CORRECTION, errorCorrection);
+    //a requested size of 0 returns the matrix with exactly one cell per module
+    return new MultiFormatWriter().encode(contents, DEFAULT_BARCODE_FORMAT, 0, 0, hints);
+  }
+
+  public static String encodeModules(String contents) throws WriterException
+  {
+    return encodeModules(contents, QRCodeOptions.DEFAULT_ERROR_CORRECTION);
+  }
+
+  /**
+   * Returns the modules of the QR code without quiet zone in a compact form which can be rendered
+   * by the client: the number of modules per side, a colon and the base64 encoded modules packed
+   * row by row into bits, most significant bit first. A set bit is a dark module.
+   */
+  public static String encodeModules(String contents, ErrorCorrectionLevel errorCorrection) throws WriterException
+  {
+    BitMatrix matrix = encodeMatrix(contents, errorCorrection);
+    final int size = matrix.getWidth();
+    byte[] bits = new byte[(size * size + 7) / 8];
+    for (int y = 0, index = 0; y < size; y++) {
+      for (int x = 0; x < size; x++, index++) {
+        if (matrix.get(x, y)) bits[index >> 3] |= 0x80 >>> (index & 7);
+      }
+    }
+    try {
+      return size + ":" + new String(Base64.encodeBase64(bits), "US-ASCII");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); //should never happen
+    }
+  }
+
+  /**
+   * @return the matrix of the modules returned by {@link #encodeModules(String, ErrorCorrectionLevel)}
+   */
+  public static BitMatrix decodeModules(String modules)
+  {
+    final int size = getModuleCount(modules);
+    byte[] bits;
+    try {
+      bits = Base64.decodeBase64(modules.substring(modules.indexOf(':') + 1).getBytes("US-ASCII"));
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); //should never happen
+    }
+    BitMatrix matrix = new BitMatrix(size, size);
+    for (int y = 0, index = 0; y < size; y++) {
+      for (int x = 0; x < size; x++, index++) {
+        if ((bits[index >> 3] & (0x80 >>> (index & 7))) != 0) matrix.set(x, y);
+      }
+    }
+    return matrix;
+  }
+
+  /**
+   * @return the number of modules per side of the modules returned by
+   *         {@link #encodeModules(String, ErrorCorrectionLevel)}
+   */
+  public static int getModuleCount(String modules)
+  {
+    return Integer.parseInt(modules.substring(0, modules.indexOf(':')));
+  }
+
+  /**
+   * @return the QR code version (1 to 40) of a QR code with <code>moduleCount</code> modules per side
+   */
+  public static int getVersion(int moduleCount)
+  {
+    return (moduleCount - 17) / 4;
+  }
+
+  /**
+   * @return the content type of images encoded in <code>format</code>
+   */
+  public static String getContentType(String format)
+  {
+    return FORMAT_SVG.equals(format) ? SvgEncoder.CONTENT_TYPE : "image/png";
+  }
+
+  /**
+   * @return the default options with <code>size</code> limited to the supported sizes, the default
+   *         options if <code>size</code> is not positive
+   */
+  static QRCodeOptions getOptions(int size)
+  {
+    if (size <= 0) return QRCodeOptions.DEFAULT;
+    size = Math.max(QRCodeOptions.MIN_SIZE, Math.min(QRCodeOptions.MAX_SIZE, size));
+    return new QRCodeOptions(size, 1, QRCodeOptions.DEFAULT_ERROR_CORRECTION, QRCodeOptions.DEFAULT_QUIET_ZONE);
   }
 }
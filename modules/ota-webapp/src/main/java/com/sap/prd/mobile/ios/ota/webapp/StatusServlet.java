@@ -0,0 +1,129 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sap.prd.mobile.ios.ota.lib.DiskCache;
+import com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator;
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sap.prd.mobile.ios.ota.lib.RenderCache;
+import com.sap.prd.mobile.ios.ota.lib.SingleFlight;
+import com.sap.prd.mobile.ios.ota.lib.SlabStore;
+import com.sap.prd.mobile.ios.ota.lib.TokenRegistry;
+
+/**
+ * Readiness check for load balancers: responds with 200 after the warm-up has succeeded and with 503
+ * before or if it has failed (see {@link WarmUpListener}). The body lists the cache counters, the number of coalesced
+ * renderings and the saturation of the QR code generation as plain text.
+ */
+@SuppressWarnings("serial")
+public class StatusServlet extends BaseServlet
+{
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+  {
+    final boolean ready = WarmUpListener.isReady(getServletContext());
+    final String failure = ready ? null : WarmUpListener.getFailure(getServletContext());
+    response.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    response.setContentType("text/plain");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    PrintWriter writer = response.getWriter();
+    writer.println(ready ? "READY" : failure != null ? "FAILED " + failure : "STARTING");
+    printCache(writer, "plistCache", OtaPlistGenerator.getCache());
+    printCache(writer, "htmlCache", OtaHtmlGenerator.getCache());
+    printCache(writer, "qrCodeCache", Utils.getQRCodeCache());
+    printDiskCache(writer, "plistDiskCache", OtaPlistGenerator.getCache().getDiskCache());
+    printDiskCache(writer, "qrCodeDiskCache", Utils.getQRCodeCache().getDiskCache());
+    printSingleFlight(writer, "plistRenders", OtaPlistGenerator.getSingleFlight());
+    printSingleFlight(writer, "htmlRenders", OtaHtmlGenerator.getSingleFlight());
+    printSingleFlight(writer, "qrCodeRenders", Utils.getQRCodeSingleFlight());
+    printBulkhead(writer, "qrCodeBulkhead", Utils.getQRCodeBulkhead());
+    printTokenRegistry(writer, "plistTokens", Utils.getTokenRegistry());
+    writer.flush();
+  }
+
+  private static void printBulkhead(PrintWriter writer, String name, Bulkhead bulkhead)
+  {
+    writer.println(name + ".threads=" + bulkhead.getThreads());
+    writer.println(name + ".active=" + bulkhead.getActiveCount());
+    writer.println(name + ".queued=" + bulkhead.getQueueSize());
+    writer.println(name + ".queueCapacity=" + bulkhead.getQueueCapacity());
+    writer.println(name + ".completed=" + bulkhead.getCompletedCount());
+    writer.println(name + ".rejected=" + bulkhead.getRejectedCount());
+    writer.println(name + ".saturation=" + bulkhead.getSaturation());
+  }
+
+  private static void printSingleFlight(PrintWriter writer, String name, SingleFlight<?, ?> flights)
+  {
+    writer.println(name + ".inFlight=" + flights.size());
+    writer.println(name + ".executed=" + flights.getExecutionCount());
+    writer.println(name + ".coalesced=" + flights.getCoalescedCount());
+  }
+
+  private static void printTokenRegistry(PrintWriter writer, String name, TokenRegistry tokens)
+  {
+    if (tokens == null) return;
+    writer.println(name + ".entries=" + tokens.size());
+    writer.println(name + ".hits=" + tokens.getHitCount());
+    writer.println(name + ".misses=" + tokens.getMissCount());
+    writer.println(name + ".registrations=" + tokens.getRegistrationCount());
+    writer.println(name + ".rejections=" + tokens.getRejectionCount());
+    writer.println(name + ".errors=" + tokens.getErrorCount());
+  }
+
+  private static void printDiskCache(PrintWriter writer, String name, DiskCache cache)
+  {
+    if (cache == null) return;
+    writer.println(name + ".entries=" + cache.size());
+    writer.println(name + ".bytes=" + cache.getWeight());
+    writer.println(name + ".hits=" + cache.getHitCount());
+    writer.println(name + ".misses=" + cache.getMissCount());
+    writer.println(name + ".writes=" + cache.getWriteCount());
+    writer.println(name + ".droppedWrites=" + cache.getDroppedWriteCount());
+    writer.println(name + ".compactions=" + cache.getCompactionCount());
+    writer.println(name + ".errors=" + cache.getErrorCount());
+  }
+
+  private static void printCache(PrintWriter writer, String name, RenderCache cache)
+  {
+    writer.println(name + ".entries=" + cache.size());
+    writer.println(name + ".bytes=" + cache.getWeight());
+    writer.println(name + ".hits=" + cache.getHitCount());
+    writer.println(name + ".misses=" + cache.getMissCount());
+    writer.println(name + ".evictions=" + cache.getEvictionCount());
+    writer.println(name + ".rejections=" + cache.getRejectionCount());
+    writer.println(name + ".expirations=" + cache.getExpirationCount());
+    SlabStore store = cache.getSlabStore();
+    if (store != null) {
+      writer.println(name + ".offHeapCapacity=" + store.getCapacity());
+      writer.println(name + ".offHeapUsed=" + store.getUsedBytes());
+      writer.println(name + ".offHeapFailures=" + store.getFailureCount());
+    }
+  }
+
+}
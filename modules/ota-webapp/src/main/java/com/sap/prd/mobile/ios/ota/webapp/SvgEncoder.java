@@ -0,0 +1,111 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * Writes a <code>BitMatrix</code> as SVG. Each matrix cell is one user unit of the view box, so the
+ * matrix should contain one cell per module. Consecutive set cells of a row are merged into one
+ * path segment.
+ */
+public class SvgEncoder
+{
+
+  public static final String CONTENT_TYPE = "image/svg+xml";
+
+  /**
+   * Writes <code>matrix</code> as SVG to <code>out</code>. The stream is not closed.
+   * 
+   * @param onColor
+   *          ARGB colour of the set cells
+   * @param offColor
+   *          ARGB colour of the background, omitted if fully transparent
+   * @param width
+   *          the width of the image in pixels
+   * @param height
+   *          the height of the image in pixels
+   */
+  public static void write(BitMatrix matrix, int onColor, int offColor, int width, int height, OutputStream out)
+        throws IOException
+  {
+    write(matrix, 0, onColor, offColor, width, height, out);
+  }
+
+  /**
+   * Same as {@link #write(BitMatrix, int, int, int, int, OutputStream)} with a border of
+   * <code>quietZone</code> cells around the matrix.
+   */
+  public static void write(BitMatrix matrix, int quietZone, int onColor, int offColor, int width, int height,
+        OutputStream out) throws IOException
+  {
+    out.write(toSvg(matrix, quietZone, onColor, offColor, width, height).getBytes("UTF-8"));
+  }
+
+  static String toSvg(BitMatrix matrix, int quietZone, int onColor, int offColor, int width, int height)
+  {
+    final int matrixWidth = matrix.getWidth();
+    final int matrixHeight = matrix.getHeight();
+    StringBuilder svg = new StringBuilder(64 * matrixHeight);
+    svg.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(width)
+      .append("\" height=\"").append(height)
+      .append("\" viewBox=\"0 0 ").append(matrixWidth + 2 * quietZone).append(' ')
+      .append(matrixHeight + 2 * quietZone)
+      .append("\" shape-rendering=\"crispEdges\">");
+    if ((offColor >>> 24) != 0) {
+      svg.append("<rect width=\"100%\" height=\"100%\"");
+      appendFill(svg, offColor);
+      svg.append("/>");
+    }
+    svg.append("<path");
+    appendFill(svg, onColor);
+    svg.append(" d=\"");
+    for (int y = 0; y < matrixHeight; y++) {
+      int x = 0;
+      while (x < matrixWidth) {
+        if (!matrix.get(x, y)) {
+          x++;
+          continue;
+        }
+        int start = x;
+        while (x < matrixWidth && matrix.get(x, y))
+          x++;
+        int length = x - start;
+        svg.append('M').append(start + quietZone).append(' ').append(y + quietZone)
+          .append('h').append(length).append("v1h-").append(length).append('z');
+      }
+    }
+    svg.append("\"/></svg>");
+    return svg.toString();
+  }
+
+  private static void appendFill(StringBuilder svg, int color)
+  {
+    svg.append(" fill=\"#").append(Integer.toHexString(0x1000000 | (color & 0xFFFFFF)).substring(1)).append('"');
+    int alpha = color >>> 24;
+    if (alpha != 0xFF) {
+      svg.append(" fill-opacity=\"").append(Math.round(alpha * 1000 / 255f) / 1000f).append('"');
+    }
+  }
+
+}
@@ -19,23 +19,32 @@
  */
 package com.sap.prd.mobile.ios.ota.webapp;
 
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_QRCODE_FORMAT;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
 import static com.sap.prd.mobile.ios.ota.lib.LibUtils.decode;
+import static com.sap.prd.mobile.ios.ota.lib.LibUtils.sha1Hex;
 import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlService.HTML_SERVICE_SERVLET_NAME;
 import static com.sap.prd.mobile.ios.ota.webapp.OtaPlistService.PLIST_SERVICE_SERVLET_NAME;
 import static java.lang.String.format;
+import static org.apache.commons.lang.StringUtils.isBlank;
 
-import java.awt.Dimension;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRegistration;
@@ -46,6 +55,12 @@ import org.sonatype.plexus.components.cipher.Base64;
 
 import com.google.zxing.WriterException;
 import com.google.zxing.client.j2se.MatrixToImageConfig;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.sap.prd.mobile.ios.ota.lib.LibUtils;
+import com.sap.prd.mobile.ios.ota.lib.RenderCache;
+import com.sap.prd.mobile.ios.ota.lib.SingleFlight;
+import com.sap.prd.mobile.ios.ota.lib.SlabStore;
+import com.sap.prd.mobile.ios.ota.lib.TokenRegistry;
 
 public class Utils
 {
@@ -53,7 +68,6 @@ public class Utils
   private static final Logger LOG = Logger.getLogger(Utils.class.getSimpleName());
 
   private static final String US_ASCII = "US-ASCII";
-  private static final String UTF_8 = "UTF-8";
 
   /**
    * Returns the referer from parameter 'Referer' or from header parameter 'Referer'. The request
@@ -71,17 +85,27 @@ public class Utils
       referer = request.getHeader(KEY_REFERER);
     }
     else {
-      if (!referer.contains("://")) {
-        referer = decode(referer);
-        int idx = referer.indexOf("://");
-        if (idx < 0) throw new IOException(":// still not contained after decoding Referer");
-        idx = referer.lastIndexOf("=", idx);
-        if (idx >= 0) referer = referer.substring(idx + 1);
-      }
+      String decoded = decodeReferer(referer);
+      if (decoded == null) throw new IOException("Referer neither an URL nor Base64 encoded: " + referer);
+      referer = decoded;
     }
     return referer;
   }
 
+  /**
+   * @return the value of a 'Referer' request parameter, either an URL or Base64 encoded
+   *         (optionally as "Referer=&lt;URL&gt;"), or null if it is neither
+   */
+  static String decodeReferer(String referer)
+  {
+    if (referer.contains("://")) return referer;
+    String decoded = LibUtils.decodeOrNull(referer);
+    int idx = decoded == null ? -1 : decoded.indexOf("://");
+    if (idx < 0) return null;
+    idx = decoded.lastIndexOf("=", idx);
+    return idx >= 0 ? decoded.substring(idx + 1) : decoded;
+  }
+
   /**
    * Returns the referer from parameter 'Referer' or from header parameter 'Referer'. The request
    * parameter 'Referer' (if set) has priority to the header referer.
@@ -107,6 +131,24 @@ public class Utils
     return referer;
   }
 
+  /**
+   * Returns the parameters of a compact path segment after the servlet path, see
+   * {@link LibUtils#encodeParameters(Map)}.
+   * 
+   * @return the parameters or null if the path has no compact segment
+   * @throws IllegalArgumentException
+   *           if the compact segment is invalid
+   */
+  public static Map<String, String> getCompactParameters(HttpServletRequest request)
+  {
+    String pathInfo = request.getPathInfo(); //e.g. "/.g9Fgp-ilViTm..."
+    if (pathInfo == null) return null;
+    int start = pathInfo.startsWith("/") ? 1 : 0;
+    int end = pathInfo.indexOf('/', start);
+    String segment = pathInfo.substring(start, end < 0 ? pathInfo.length() : end);
+    return LibUtils.isCompact(segment) ? LibUtils.decodeParameters(segment) : null;
+  }
+
   public static Map<String, String> getParametersAndReferer(HttpServletRequest request, HttpServletResponse response,
         boolean exceptionIfRefererMissing) throws IOException, ServletException
   {
@@ -121,41 +163,26 @@ public class Utils
     return params;
   }
 
+  /**
+   * Same as {@link LibUtils#encode(String)}.
+   */
   public static String urlEncode(String string)
   {
-    if (string == null) {
-      return null;
-    }
-    try {
-      byte[] bytes = string.getBytes(UTF_8);
-      byte[] base64Bytes = Base64.encodeBase64(bytes);
-      String base64String = new String(base64Bytes, US_ASCII);
-      return URLEncoder.encode(base64String, UTF_8);
-    }
-    catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e); //should never happen
-    }
+    return LibUtils.encode(string);
   }
 
+  /**
+   * Same as {@link LibUtils#decode(String)}.
+   */
   public static String urlDecode(String string)
   {
-    if (string == null) {
-      return null;
-    }
-    try {
-      String urlDecodedString = URLDecoder.decode(string, UTF_8);
-      byte[] urlDecodedBytes = urlDecodedString.getBytes(US_ASCII);
-      byte[] decodedBase64Bytes = Base64.decodeBase64(urlDecodedBytes);
-      return new String(decodedBase64Bytes, UTF_8);
-    }
-    catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e); //should never happen
-    }
+    return decode(string);
   }
 
   /**
    * This method parses an URI after the <code>serviceName</code> into the elements separated by '/'
-   * and '=' and returns the key value pairs.<br>
+   * and '=' and returns the key value pairs. The PLIST service parses its URIs with
+   * {@link PlistRequest} instead.<br>
    * <ol>
    * <li>First the serviceName element is identified. Only elements after it are parsed.
    * <li>The single elements are split at '/'
@@ -191,6 +218,16 @@ public class Utils
    * <td>Single values are returned in a <code>String[1]</code></td>
    * </tr>
    * <tr>
+   * <td>/mywebapp/serviceName/~AbC-dEf_123</td>
+   * <td>the parameters registered for the token</td>
+   * <td>see {@link #getTokenRegistry()}</td>
+   * </tr>
+   * <tr>
+   * <td>/mywebapp/serviceName/.g9Fgp-ilViTm...</td>
+   * <td>the parameters packed into the segment</td>
+   * <td>see {@link LibUtils#encodeParameters(Map)}</td>
+   * </tr>
+   * <tr>
    * <td>/mywebapp/NOserviceName/a=b</td>
    * <td><code>null</code></td>
    * <td>If the <code>serviceName</code> is missing null is returned</code></td>
@@ -204,6 +241,8 @@ public class Utils
    *          The name of the service in the URI
    * @return <code>String</code> array containing <code>String[1]</code> and <code>String[2]</code>
    *         elements
+   * @throws IllegalArgumentException
+   *           if the URI contains a token which is not registered or an invalid compact segment
    */
   public static Map<String, String> extractSlashedEncodedParametersFromUri(HttpServletRequest request,
         String serviceUrlPattern)
@@ -223,6 +262,17 @@ public class Utils
 
     String[] elements = uri.split("/");
     for (String element : elements) {
+      if (TokenRegistry.isToken(element)) {
+        TokenRegistry tokens = tokenRegistry;
+        Map<String, String> tokenParams = tokens == null ? null : tokens.resolve(element);
+        if (tokenParams == null) throw new IllegalArgumentException(format("Unknown token '%s'", element));
+        result.putAll(tokenParams);
+        continue;
+      }
+      if (LibUtils.isCompact(element)) {
+        result.putAll(LibUtils.decodeParameters(element));
+        continue;
+      }
       String[] keyValue = parseKeyValuePair(decode(element));
       result.put(keyValue[0], keyValue.length > 1 ? keyValue[1] : null);
     }
@@ -253,15 +303,536 @@ public class Utils
   public static void sendQRCode(HttpServletRequest request, HttpServletResponse response, String contents)
         throws IOException, WriterException, URISyntaxException
   {
-    sendQRCode(request, response, contents, null, null);
+    sendQRCode(request, response, contents, null, QRCodeOptions.DEFAULT);
   }
 
+  /**
+   * Sends the QR code image for <code>contents</code> with the default options and <code>size</code>
+   * pixels per side, see
+   * {@link #sendQRCode(HttpServletRequest, HttpServletResponse, String, MatrixToImageConfig, QRCodeOptions)}.
+   */
   public static void sendQRCode(HttpServletRequest request, HttpServletResponse response, String contents,
-        MatrixToImageConfig config, Dimension dimension) throws IOException, WriterException, URISyntaxException
+        MatrixToImageConfig config, int size) throws IOException, WriterException, URISyntaxException
   {
-    response.setContentType("image/png");
+    sendQRCode(request, response, contents, config, QREncoder.getOptions(size));
+  }
+
+  /**
+   * Sends the QR code image for <code>contents</code>. The image only depends on the arguments, so it
+   * is sent with a strong <code>ETag</code> derived from them and may be cached forever. Encoded
+   * images are kept in memory, see {@link #getQRCodeCache()}. The image format is chosen with
+   * {@link #getQRCodeFormat(HttpServletRequest)}. The headers <code>X-QR-Version</code> and
+   * <code>X-QR-Modules</code> report the version and the modules per side of the QR code.
+   */
+  public static void sendQRCode(HttpServletRequest request, HttpServletResponse response, String contents,
+        MatrixToImageConfig config, QRCodeOptions options) throws IOException, WriterException, URISyntaxException
+  {
+    sendQRCode(request, response, contents, config, options, QR_CACHE_CONTROL);
+  }
+
+  /**
+   * Like {@link #sendQRCode(HttpServletRequest, HttpServletResponse, String, MatrixToImageConfig, QRCodeOptions)}
+   * with the specified <code>Cache-Control</code> header (none if blank). A <code>HEAD</code> request
+   * is answered without encoding the image.
+   */
+  public static void sendQRCode(HttpServletRequest request, HttpServletResponse response, String contents,
+        MatrixToImageConfig config, QRCodeOptions options, String cacheControl) throws IOException,
+        WriterException, URISyntaxException
+  {
+    if (config == null) config = QREncoder.DEFAULT_MATRIX_CONFIG;
+    if (options == null) options = QRCodeOptions.DEFAULT;
+    final String format = getQRCodeFormat(request);
+    if (request.getParameter(KEY_QRCODE_FORMAT) == null) response.addHeader("Vary", "Accept");
+
+    String etag = toETag(contents, String.valueOf(config.getPixelOnColor()),
+          String.valueOf(config.getPixelOffColor()), options.toString(), format);
+    if (isNotModified(request, etag, 0)) {
+      sendNotModified(response, etag, 0, cacheControl);
+      return;
+    }
+
+    final boolean head = isHead(request);
+    //the module count is cached with the image, so a cached image is sent without the bulkhead
+    final RenderCache.Key key = getImageKey(contents, config, options, format);
+    long ticket = SlabStore.enter();
+    try {
+      ByteBuffer entry = QR_CODE_CACHE.get(key);
+      if (entry != null) {
+        sendQRCode(response, format, etag, cacheControl, getModuleCount(entry), head ? null : getImage(entry));
+        return;
+      }
+    }
+    finally {
+      SlabStore.exit(ticket);
+    }
+
+    //not cached, the bulkhead is waited for outside of the read section
+    ByteBuffer entry = null;
+    int modules;
+    try {
+      if (!head) entry = renderQRCode(key, contents, config, options, format);
+      modules = entry != null ? getModuleCount(entry)
+            : QREncoder.getModuleCount(getQRCodeModules(contents, options.getErrorCorrection()));
+    }
+    catch (RejectedExecutionException e) {
+      LOG.warning("QR code generation is saturated, rejecting request for " + contents);
+      response.setHeader("Retry-After", String.valueOf(QR_RETRY_AFTER_SECONDS));
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "QR code generation is busy");
+      return;
+    }
+    sendQRCode(response, format, etag, cacheControl, modules, entry == null ? null : getImage(entry));
+  }
+
+  private static void sendQRCode(HttpServletResponse response, String format, String etag, String cacheControl,
+        int modules, ByteBuffer image) throws IOException
+  {
+    setValidators(response, etag, 0, cacheControl);
+    response.setIntHeader("X-QR-Version", QREncoder.getVersion(modules));
+    response.setIntHeader("X-QR-Modules", modules);
+    response.setContentType(QREncoder.getContentType(format));
+    if (image != null) sendBody(response, image);
+  }
+
+  public static ByteBuffer getQRCode(String contents, MatrixToImageConfig config, int size, String format)
+        throws IOException, WriterException
+  {
+    return getQRCode(contents, config, QREncoder.getOptions(size), format);
+  }
+
+  /**
+   * Returns the QR code image for <code>contents</code> from the cache. If necessary the image is
+   * rendered from the cached modules, see {@link #getQRCodeModules(String, ErrorCorrectionLevel)}.
+   * Encoding and rendering run on the threads of {@link #getQRCodeBulkhead()}, concurrent requests
+   * for the same image wait for a single rendering. The returned buffer is owned by the caller.
+   * 
+   * @throws RejectedExecutionException
+   *           if the image is not cached and the QR code generation is saturated
+   */
+  public static ByteBuffer getQRCode(final String contents, MatrixToImageConfig config, QRCodeOptions options,
+        final String format) throws IOException, WriterException
+  {
+    if (config == null) config = QREncoder.DEFAULT_MATRIX_CONFIG;
+    if (options == null) options = QRCodeOptions.DEFAULT;
+    RenderCache.Key key = getImageKey(contents, config, options, format);
+    long ticket = SlabStore.enter();
+    try {
+      ByteBuffer entry = QR_CODE_CACHE.get(key);
+      if (entry != null) {
+        ByteBuffer image = getImage(entry);
+        return (ByteBuffer) ByteBuffer.allocate(image.remaining()).put(image).flip();
+      }
+    }
+    finally {
+      SlabStore.exit(ticket);
+    }
+    return getImage(renderQRCode(key, contents, config, options, format));
+  }
+
+  /**
+   * Renders the QR code image on the bulkhead and caches it, preceded by its module count.
+   * 
+   * @return the entry on the heap, it can be read outside of a read section, see {@link #getImage(ByteBuffer)} and {@link #getModuleCount(ByteBuffer)}
+   */
+  private static ByteBuffer renderQRCode(final RenderCache.Key key, final String contents,
+        final MatrixToImageConfig config, final QRCodeOptions options, final String format) throws IOException,
+        WriterException
+  {
+    return callQRCodeBulkhead(key, new Callable<ByteBuffer>() {
+      @Override
+      public ByteBuffer call() throws Exception
+      {
+        String modules = encodeModules(contents, options.getErrorCorrection());
+        ByteBuffer image = QREncoder.encode(QREncoder.decodeModules(modules), config, options, format);
+        ByteBuffer entry = ByteBuffer.allocate(1 + image.remaining());
+        entry.put((byte) QREncoder.getModuleCount(modules)).put(image.duplicate()).flip();
+        QR_CODE_CACHE.put(key, entry);
+        return entry;
+      }
+    });
+  }
+
+  private static RenderCache.Key getImageKey(String contents, MatrixToImageConfig config, QRCodeOptions options,
+        String format)
+  {
+    //only strings, numbers and enums, so that the image can also be kept in a disk cache
+    return new RenderCache.Key(contents, "image", config.getPixelOnColor(), config.getPixelOffColor(),
+          options.getSize(), options.getScale(), options.getErrorCorrection(), options.getQuietZone(), format);
+  }
+
+  /**
+   * @return the image of a cached entry, without its leading module count
+   */
+  private static ByteBuffer getImage(ByteBuffer entry)
+  {
+    ByteBuffer image = entry.duplicate();
+    image.position(image.position() + 1);
+    return image.slice();
+  }
+
+  /**
+   * @return the modules per side (at most 177) stored in the first byte of a cached entry
+   */
+  private static int getModuleCount(ByteBuffer entry)
+  {
+    return entry.get(entry.position()) & 0xFF;
+  }
+
+  public static String getQRCodeModules(String contents) throws WriterException, IOException
+  {
+    return getQRCodeModules(contents, QRCodeOptions.DEFAULT_ERROR_CORRECTION);
+  }
+
+  /**
+   * Returns the modules of the QR code for <code>contents</code> from the cache, see
+   * {@link QREncoder#encodeModules(String, ErrorCorrectionLevel)}. Encoding runs on the threads of
+   * {@link #getQRCodeBulkhead()}, concurrent requests for the same modules wait for a single encoding.
+   * 
+   * @throws RejectedExecutionException
+   *           if the modules are not cached and the QR code generation is saturated
+   */
+  public static String getQRCodeModules(final String contents, final ErrorCorrectionLevel errorCorrection)
+        throws WriterException, IOException
+  {
+    RenderCache.Key key = getModulesKey(contents, errorCorrection);
+    long ticket = SlabStore.enter();
+    try {
+      ByteBuffer modules = QR_CODE_CACHE.get(key);
+      if (modules != null) return toModules(modules);
+    }
+    finally {
+      SlabStore.exit(ticket);
+    }
+    return callQRCodeBulkhead(key, new Callable<String>() {
+      @Override
+      public String call() throws Exception
+      {
+        return encodeModules(contents, errorCorrection);
+      }
+    });
+  }
+
+  private static String encodeModules(String contents, ErrorCorrectionLevel errorCorrection)
+        throws WriterException, UnsupportedEncodingException
+  {
+    RenderCache.Key key = getModulesKey(contents, errorCorrection);
+    ByteBuffer modules = QR_CODE_CACHE.get(key);
+    if (modules == null) {
+      modules = ByteBuffer.wrap(QREncoder.encodeModules(contents, errorCorrection).getBytes(US_ASCII));
+      QR_CODE_CACHE.put(key, modules);
+    }
+    return toModules(modules);
+  }
+
+  private static RenderCache.Key getModulesKey(String contents, ErrorCorrectionLevel errorCorrection)
+  {
+    return new RenderCache.Key(contents, "modules", errorCorrection);
+  }
+
+  private static String toModules(ByteBuffer modules) throws UnsupportedEncodingException
+  {
+    byte[] bytes = new byte[modules.remaining()];
+    modules.duplicate().get(bytes);
+    return new String(bytes, US_ASCII);
+  }
+
+  /**
+   * Runs <code>task</code> on the bulkhead unless a task with the same key is already queued or
+   * running, then its result is shared. A rejection is shared as well. The task runs within a read
+   * section of the {@link SlabStore}, so cached entries it reads are not reused meanwhile. It must
+   * not return such an entry.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> T callQRCodeBulkhead(RenderCache.Key key, final Callable<T> task) throws IOException,
+        WriterException
+  {
+    try {
+      return (T) QR_CODE_FLIGHTS.call(key, new Callable<Object>() {
+        @Override
+        public Object call() throws Exception
+        {
+          return QR_CODE_BULKHEAD.call(new Callable<T>() {
+            @Override
+            public T call() throws Exception
+            {
+              long ticket = SlabStore.enter();
+              try {
+                return task.call();
+              }
+              finally {
+                SlabStore.exit(ticket);
+              }
+            }
+          });
+        }
+      });
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the QR code");
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      //the bulkhead wraps the exception of the task once more
+      if (cause instanceof ExecutionException && cause.getCause() != null) cause = cause.getCause();
+      if (cause instanceof InterruptedException) {
+        throw new InterruptedIOException("Interrupted while waiting for the QR code");
+      }
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof WriterException) throw (WriterException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * @return the threads encoding QR codes, e.g. to read their saturation
+   */
+  public static Bulkhead getQRCodeBulkhead()
+  {
+    return QR_CODE_BULKHEAD;
+  }
+
+  /**
+   * @return the registry of the short PLIST URLs or null if they are not enabled, see
+   *         {@link WarmUpListener#TOKEN_JOURNAL_KEY}
+   */
+  public static TokenRegistry getTokenRegistry()
+  {
+    return tokenRegistry;
+  }
+
+  static void setTokenRegistry(TokenRegistry tokens)
+  {
+    tokenRegistry = tokens;
+  }
+
+  /**
+   * @return the QR codes currently being encoded, e.g. to read how many requests have been coalesced
+   */
+  public static SingleFlight<RenderCache.Key, Object> getQRCodeSingleFlight()
+  {
+    return QR_CODE_FLIGHTS;
+  }
+
+  /**
+   * Returns the QR code image for <code>contents</code> as data URI which can be embedded into a page.
+   */
+  public static String getQRCodeDataUri(String contents, MatrixToImageConfig config, QRCodeOptions options,
+        String format) throws IOException, WriterException
+  {
+    ByteBuffer image = getQRCode(contents, config, options, format).duplicate();
+    byte[] bytes = new byte[image.remaining()];
+    image.get(bytes);
+    return "data:" + QREncoder.getContentType(format) + ";base64," + new String(Base64.encodeBase64(bytes), US_ASCII);
+  }
+
+  /**
+   * Returns the QR code options selected with the request parameters {@link #QR_SIZE},
+   * {@link #QR_SCALE}, {@link #QR_ERROR_CORRECTION} and {@link #QR_QUIET_ZONE}. Missing or invalid
+   * values are replaced by the defaults, sizes are limited to the supported range.
+   */
+  public static QRCodeOptions getQRCodeOptions(HttpServletRequest request)
+  {
+    int size = parseInt(request.getParameter(QR_SIZE), QRCodeOptions.DEFAULT_SIZE);
+    size = Math.max(QRCodeOptions.MIN_SIZE, Math.min(QRCodeOptions.MAX_SIZE, size));
+    int scale = parseInt(request.getParameter(QR_SCALE), 1);
+    if (scale < 1 || scale > QRCodeOptions.MAX_SCALE) scale = 1;
+    int quietZone = parseInt(request.getParameter(QR_QUIET_ZONE), QRCodeOptions.DEFAULT_QUIET_ZONE);
+    if (quietZone < 0 || quietZone > QRCodeOptions.MAX_QUIET_ZONE) quietZone = QRCodeOptions.DEFAULT_QUIET_ZONE;
+    ErrorCorrectionLevel errorCorrection = QRCodeOptions.DEFAULT_ERROR_CORRECTION;
+    String errorCorrectionString = request.getParameter(QR_ERROR_CORRECTION);
+    if (errorCorrectionString != null) {
+      try {
+        errorCorrection = ErrorCorrectionLevel.valueOf(errorCorrectionString.toUpperCase(Locale.ENGLISH));
+      }
+      catch (IllegalArgumentException e) {
+        LOG.fine("Ignoring invalid error correction level " + errorCorrectionString);
+      }
+    }
+    return new QRCodeOptions(size, scale, errorCorrection, quietZone);
+  }
+
+  private static int parseInt(String value, int defaultValue)
+  {
+    if (value == null) return defaultValue;
+    try {
+      return Integer.parseInt(value.trim());
+    }
+    catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Returns the requested QR code image format. An explicit <code>qrcodeFormat</code> parameter wins,
+   * otherwise SVG is only chosen if the <code>Accept</code> header prefers it over PNG. Browsers
+   * accepting <code>image/*</code> keep getting PNG.
+   * 
+   * @return {@link QREncoder#FORMAT_PNG} or {@link QREncoder#FORMAT_SVG}
+   */
+  public static String getQRCodeFormat(HttpServletRequest request)
+  {
+    String format = request.getParameter(KEY_QRCODE_FORMAT);
+    if (format != null) {
+      return QREncoder.FORMAT_SVG.equalsIgnoreCase(format) ? QREncoder.FORMAT_SVG : QREncoder.FORMAT_PNG;
+    }
+    return prefersSvg(request.getHeader("Accept")) ? QREncoder.FORMAT_SVG : QREncoder.FORMAT_PNG;
+  }
+
+  static boolean prefersSvg(String accept)
+  {
+    if (accept == null) return false;
+    float svg = -1, png = -1, image = -1, any = -1;
+    for (String range : accept.split(",")) {
+      String[] parts = range.split(";");
+      String type = parts[0].trim().toLowerCase(Locale.ENGLISH);
+      float quality = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String parameter = parts[i].trim();
+        if (parameter.startsWith("q=")) {
+          try {
+            quality = Float.parseFloat(parameter.substring(2));
+          }
+          catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      if (type.equals(SvgEncoder.CONTENT_TYPE)) svg = quality;
+      else if (type.equals("image/png")) png = quality;
+      else if (type.equals("image/*")) image = quality;
+      else if (type.equals("*/*")) any = quality;
+    }
+    if (png < 0) png = image >= 0 ? image : any;
+    return svg > 0 && svg > png;
+  }
+
+  /**
+   * @return the cache of encoded QR code images, e.g. to read its hit and miss counters
+   */
+  public static RenderCache getQRCodeCache()
+  {
+    return QR_CODE_CACHE;
+  }
+
+  /**
+   * @return a strong entity tag (quoted) derived from <code>parts</code>, the parts of a
+   *         representation it depends on
+   */
+  public static String toETag(String... parts)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (String part : parts) {
+      sb.append(part).append('\n');
+    }
+    return "\"" + sha1Hex(sb.toString()) + "\"";
+  }
+
+  /**
+   * Checks the conditional request headers against the validators of the current representation.
+   * <code>If-None-Match</code> takes precedence over <code>If-Modified-Since</code>.
+   * 
+   * @param etag
+   *          the quoted entity tag or null if unknown
+   * @param lastModified
+   *          the time of the last modification in milliseconds or 0 if unknown
+   * @return true if the client already has the current representation
+   */
+  public static boolean isNotModified(HttpServletRequest request, String etag, long lastModified)
+  {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) return etag != null && matchesETag(ifNoneMatch, etag);
+    if (lastModified <= 0) return false;
+    long ifModifiedSince;
+    try {
+      ifModifiedSince = request.getDateHeader("If-Modified-Since");
+    }
+    catch (IllegalArgumentException e) {
+      return false; //not a date, ignored
+    }
+    return ifModifiedSince > 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+  }
+
+  /**
+   * Sets the <code>ETag</code>, <code>Last-Modified</code> and <code>Cache-Control</code> headers,
+   * each only if known resp. not blank.
+   */
+  public static void setValidators(HttpServletResponse response, String etag, long lastModified,
+        String cacheControl)
+  {
+    if (etag != null) response.setHeader("ETag", etag);
+    if (lastModified > 0) response.setDateHeader("Last-Modified", lastModified);
+    if (!isBlank(cacheControl)) response.setHeader("Cache-Control", cacheControl);
+  }
+
+  /**
+   * Answers a conditional request with <code>304 Not Modified</code>, see
+   * {@link #isNotModified(HttpServletRequest, String, long)}.
+   */
+  public static void sendNotModified(HttpServletResponse response, String etag, long lastModified,
+        String cacheControl)
+  {
+    setValidators(response, etag, lastModified, cacheControl);
+    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+  }
+
+  /**
+   * @return true for a <code>HEAD</code> request, its response must not contain a body
+   */
+  public static boolean isHead(HttpServletRequest request)
+  {
+    return "HEAD".equals(request.getMethod());
+  }
+
+  /**
+   * Checks an <code>If-None-Match</code> request header against the current entity tag. Entity tags
+   * are compared weakly as required for this header.
+   * 
+   * @param ifNoneMatch
+   *          the header value, may be null
+   * @param etag
+   *          the quoted entity tag of the current representation
+   * @return true if the client already has the current representation
+   */
+  public static boolean matchesETag(String ifNoneMatch, String etag)
+  {
+    if (ifNoneMatch == null) return false;
+    String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.equals("*")) return true;
+      if (tag.startsWith("W/")) tag = tag.substring(2);
+      if (tag.equals(opaqueTag)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Sends <code>body</code> to the client, the <code>Content-Length</code> is set to the remaining
+   * bytes of the buffer. Direct buffers, e.g. cached bodies held off-heap, are written through a
+   * channel, directly if the output stream of the container is one. A cached body held off-heap must
+   * be sent within the read section it was looked up in, see {@link SlabStore#enter()}.
+   * 
+   * @param response
+   * @param body
+   * @throws IOException
+   */
+  public static void sendBody(HttpServletResponse response, ByteBuffer body) throws IOException
+  {
+    response.setContentLength(body.remaining());
     ServletOutputStream os = response.getOutputStream();
-    QREncoder.encode(contents, os, config, dimension);
+    if (body.hasArray()) {
+      os.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+    }
+    else {
+      WritableByteChannel channel = os instanceof WritableByteChannel ? (WritableByteChannel) os
+            : Channels.newChannel(os);
+      ByteBuffer buffer = body.duplicate();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
     os.flush();
   }
 
@@ -269,6 +840,56 @@ public class Utils
   public final static String QR_OFF_COLOR = "qrOffColor";
   public final static int QR_ON_COLOR_DEFAULT = 0xFF000000;
   public final static int QR_OFF_COLOR_DEFAULT = 0x00FFFFFF;
+  public final static String QR_SIZE = "qrSize";
+  public final static String QR_SCALE = "qrScale";
+  public final static String QR_ERROR_CORRECTION = "qrErrorCorrection";
+  public final static String QR_QUIET_ZONE = "qrQuietZone";
+
+  /**
+   * Maximum size in bytes of the encoded QR code images kept in memory.
+   */
+  public static final long QR_CODE_CACHE_SIZE = 8 * 1024 * 1024;
+
+  /**
+   * Size in bytes of the segment file of the disk cache for the QR code images, see
+   * {@link WarmUpListener#CACHE_DIRECTORY_KEY}.
+   */
+  public static final long QR_CODE_DISK_CACHE_SIZE = 64 * 1024 * 1024;
+  public static final int QR_CODE_DISK_CACHE_ENTRIES = 32768;
+
+  /**
+   * QR code URLs contain everything the image depends on, browsers and proxies may keep it forever.
+   */
+  static final String QR_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+  /**
+   * Pages, PLISTs and redirects are revalidated with each use, they change with a new template.
+   */
+  static final String DEFAULT_CACHE_CONTROL = "no-cache";
+
+  private static final RenderCache QR_CODE_CACHE = new RenderCache(QR_CODE_CACHE_SIZE, 1024, 0,
+        new SlabStore(2 * QR_CODE_CACHE_SIZE));
+
+  private static final SingleFlight<RenderCache.Key, Object> QR_CODE_FLIGHTS =
+        new SingleFlight<RenderCache.Key, Object>();
+
+  private static volatile TokenRegistry tokenRegistry;
+
+  /**
+   * Threads encoding QR codes. Half of the processors at most, the rest stays available for the
+   * PLIST and HTML requests.
+   */
+  public static final int QR_CODE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+  /**
+   * QR codes waiting for a thread, further requests are rejected with 503.
+   */
+  public static final int QR_CODE_QUEUE_CAPACITY = 64;
+
+  static final int QR_RETRY_AFTER_SECONDS = 2;
+
+  private static final Bulkhead QR_CODE_BULKHEAD = new Bulkhead("ota-qrcode", QR_CODE_THREADS,
+        QR_CODE_QUEUE_CAPACITY);
 
   public static MatrixToImageConfig getMatrixToImageConfig(HttpServletRequest request)
   {
@@ -298,6 +919,8 @@ public class Utils
   }
 
   private static boolean getServletMappingUrlPattern_workaroundUsageLogged = false;
+
+  private static final String URL_PATTERN_ATTRIBUTE_PREFIX = Utils.class.getName() + ".urlPattern.";
   
   /**
    * Gets the <code>url-pattern</code> configured in the <code>servlet-mapping</code> for the
@@ -310,30 +933,63 @@ public class Utils
    */
   public static String getServletMappingUrlPattern(HttpServletRequest request, String servletName)
   {
+    ServletContext context;
     try {
-      ServletRegistration servletRegistration = request.getServletContext().getServletRegistration(servletName);
-      String firstMapping = servletRegistration.getMappings().iterator().next();
-      if (firstMapping.endsWith("/*")) firstMapping = firstMapping.substring(0, firstMapping.length() - "/*".length());
-      return firstMapping;
+      context = request.getServletContext();
+    }
+    catch (NoSuchMethodError e) {
+      return getDefaultServletMappingUrlPattern(servletName, e);
+    }
+    return getServletMappingUrlPattern(context, servletName);
+  }
 
+  /**
+   * Gets the <code>url-pattern</code> configured in the <code>servlet-mapping</code> for the
+   * specified <code>servletName</code>. The pattern is looked up once and then kept as attribute of
+   * the context.<br/>
+   * The trailing "/*" is removed.
+   * 
+   * @param context
+   * @param servletName
+   * @return url-pattern without "/*"
+   */
+  public static String getServletMappingUrlPattern(ServletContext context, String servletName)
+  {
+    final String attributeName = URL_PATTERN_ATTRIBUTE_PREFIX + servletName;
+    Object cached = context.getAttribute(attributeName);
+    if (cached instanceof String) return (String) cached;
+
+    String urlPattern;
+    try {
+      ServletRegistration servletRegistration = context.getServletRegistration(servletName);
+      urlPattern = servletRegistration.getMappings().iterator().next();
+      if (urlPattern.endsWith("/*")) urlPattern = urlPattern.substring(0, urlPattern.length() - "/*".length());
     }
     catch (NoSuchMethodError e) {
-      //Workaround - Servlet 3.0 API required - not contained before Tomcat 7
-      if(!getServletMappingUrlPattern_workaroundUsageLogged) {
-        LOG.warning("Your Servlet engine does not yet support the Servlet 3.0 API required to read url-patterns from " +
-        		"servlet-mappings. Use Tomcat 7 or any other servlet engine supporting Servlet 3.0 if you experience issues. Missing method: "+e.getMessage());
-        getServletMappingUrlPattern_workaroundUsageLogged = true;
-      }
-      if (servletName.equals(HTML_SERVICE_SERVLET_NAME)) {
-        return "/HTML";
-      }
-      else if (servletName.equals(PLIST_SERVICE_SERVLET_NAME)) {
-        return "/PLIST";
-      }
-      else {
-        throw new IllegalStateException(format("Unknown servletName '%s'", servletName), e);
-      }
+      urlPattern = getDefaultServletMappingUrlPattern(servletName, e);
     }
+    context.setAttribute(attributeName, urlPattern);
+    return urlPattern;
   }
 
+  private static String getDefaultServletMappingUrlPattern(String servletName, NoSuchMethodError e)
+  {
+    //Workaround - Servlet 3.0 API required - not contained before Tomcat 7
+    if(!getServletMappingUrlPattern_workaroundUsageLogged) {
+      LOG.warning("Your Servlet engine does not yet support the Servlet 3.0 API required to read url-patterns from " +
+      		"servlet-mappings. Use Tomcat 7 or any other servlet engine supporting Servlet 3.0 if you experience issues. Missing method: "+e.getMessage());
+      getServletMappingUrlPattern_workaroundUsageLogged = true;
+    }
+    if (servletName.equals(HTML_SERVICE_SERVLET_NAME)) {
+      return "/HTML";
+    }
+    else if (servletName.equals(PLIST_SERVICE_SERVLET_NAME)) {
+      return "/PLIST";
+    }
+    else {
+      throw new IllegalStateException(format("Unknown servletName '%s'", servletName), e);
+    }
+  }
+
+
 }
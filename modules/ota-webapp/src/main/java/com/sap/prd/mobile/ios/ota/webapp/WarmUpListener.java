@@ -0,0 +1,256 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_IDENTIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_VERSION;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_TITLE;
+import static com.sap.prd.mobile.ios.ota.lib.LibUtils.buildMap;
+import static com.sap.prd.mobile.ios.ota.webapp.BaseServlet.APPLICATION_BASE_URL_KEY;
+import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlService.HTML_SERVICE_SERVLET_NAME;
+import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlService.HTML_TEMPLATE_PATH_KEY;
+import static com.sap.prd.mobile.ios.ota.webapp.OtaPlistService.PLIST_SERVICE_SERVLET_NAME;
+import static com.sap.prd.mobile.ios.ota.webapp.OtaPlistService.PLIST_TEMPLATE_PATH_KEY;
+import static java.lang.String.format;
+import static java.util.logging.Level.SEVERE;
+import static org.apache.commons.lang.StringUtils.equalsIgnoreCase;
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.sap.prd.mobile.ios.ota.lib.Constants;
+import com.sap.prd.mobile.ios.ota.lib.DiskCache;
+import com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator;
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sap.prd.mobile.ios.ota.lib.RenderCache;
+import com.sap.prd.mobile.ios.ota.lib.TemplateWatcher;
+import com.sap.prd.mobile.ios.ota.lib.TokenRegistry;
+
+/**
+ * Prepares everything the services need when the web application is started, so that the first
+ * requests do not pay for it: the configured generators are created (Velocity engines, parsed
+ * templates), a PLIST, an HTML page and a QR code are rendered once (zxing and encoder classes) and
+ * the service URL patterns are resolved. If the context parameter {@value #CACHE_DIRECTORY_KEY} is
+ * set, the rendered PLISTs and QR codes are also cached in that directory, see {@link DiskCache}. If
+ * {@value #TOKEN_JOURNAL_KEY} is set, the PLIST URLs are shortened with a {@link TokenRegistry}.<br/>
+ * The warm-up runs in the background, requests arriving before it has finished initialize what they
+ * need themselves. {@link #isReady(ServletContext)} returns true once the warm-up has succeeded, if it
+ * failed {@link #getFailure(ServletContext)} returns the reason, see {@link StatusServlet}.
+ */
+public class WarmUpListener implements ServletContextListener
+{
+
+  private static final Logger LOG = Logger.getLogger(WarmUpListener.class.getSimpleName());
+
+  static final String READY_ATTRIBUTE = WarmUpListener.class.getName() + ".ready";
+  static final String FAILURE_ATTRIBUTE = WarmUpListener.class.getName() + ".failure";
+
+  private static final String WARM_UP_REFERER = "http://localhost/ota-warm-up/WarmUp.htm";
+
+  /**
+   * Context parameter with the directory of the disk caches. Several nodes may share it.
+   */
+  public static final String CACHE_DIRECTORY_KEY = "cacheDirectory";
+
+  /**
+   * Context parameter with the journal file of the short PLIST URLs, see {@link TokenRegistry}. The
+   * PLIST URLs have their long form if it is not set. Several nodes may share the file.
+   */
+  public static final String TOKEN_JOURNAL_KEY = "tokenJournal";
+
+  private Thread warmUpThread;
+
+  @Override
+  public void contextInitialized(ServletContextEvent event)
+  {
+    final ServletContext context = event.getServletContext();
+    openDiskCaches(context);
+    openTokenRegistry(context);
+    warmUpThread = new Thread(new Runnable() {
+      @Override
+      public void run()
+      {
+        runWarmUp(context);
+      }
+    }, "ota-warm-up");
+    warmUpThread.setDaemon(true);
+    warmUpThread.start();
+  }
+
+  /**
+   * Waits until the warm-up started by {@link #contextInitialized(ServletContextEvent)} has finished.
+   * 
+   * @return false if it is still running after <code>millis</code>
+   */
+  boolean awaitWarmUp(long millis) throws InterruptedException
+  {
+    Thread thread = warmUpThread;
+    if (thread == null) return true;
+    thread.join(millis);
+    return !thread.isAlive();
+  }
+
+  static void runWarmUp(ServletContext context)
+  {
+    long start = System.currentTimeMillis();
+    try {
+      warmUp(context);
+      LOG.info(format("Warm-up finished in %d ms", System.currentTimeMillis() - start));
+      context.setAttribute(READY_ATTRIBUTE, Boolean.TRUE);
+    }
+    catch (Exception e) {
+      LOG.log(SEVERE, "Warm-up failed, the node does not report ready", e);
+      context.setAttribute(FAILURE_ATTRIBUTE, String.valueOf(e));
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event)
+  {
+    Thread thread = warmUpThread;
+    if (thread != null) {
+      thread.interrupt();
+      try {
+        thread.join(10000);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    event.getServletContext().removeAttribute(READY_ATTRIBUTE);
+    event.getServletContext().removeAttribute(FAILURE_ATTRIBUTE);
+    TemplateWatcher.shutdown();
+    closeDiskCache(OtaPlistGenerator.getCache());
+    closeDiskCache(Utils.getQRCodeCache());
+    closeTokenRegistry();
+  }
+
+  static void openTokenRegistry(ServletContext context)
+  {
+    String journal = context.getInitParameter(TOKEN_JOURNAL_KEY);
+    if (isBlank(journal)) return;
+    try {
+      Utils.setTokenRegistry(new TokenRegistry(new File(journal)));
+    }
+    catch (IOException e) {
+      LOG.log(SEVERE, "Cannot open the token journal " + journal + ", PLIST URLs have their long form", e);
+    }
+  }
+
+  private static void closeTokenRegistry()
+  {
+    TokenRegistry tokens = Utils.getTokenRegistry();
+    if (tokens == null) return;
+    Utils.setTokenRegistry(null);
+    try {
+      tokens.close();
+    }
+    catch (IOException e) {
+      LOG.log(SEVERE, "Cannot close the token journal " + tokens.getJournal(), e);
+    }
+  }
+
+  static void openDiskCaches(ServletContext context)
+  {
+    String directory = context.getInitParameter(CACHE_DIRECTORY_KEY);
+    if (isBlank(directory)) return;
+    try {
+      OtaPlistGenerator.getCache().setDiskCache(new DiskCache(new File(directory), "plist",
+            OtaPlistGenerator.DISK_CACHE_SIZE, OtaPlistGenerator.DISK_CACHE_ENTRIES));
+      Utils.getQRCodeCache().setDiskCache(new DiskCache(new File(directory), "qrcode",
+            Utils.QR_CODE_DISK_CACHE_SIZE, Utils.QR_CODE_DISK_CACHE_ENTRIES));
+      LOG.info("Disk caches opened in " + directory);
+    }
+    catch (IOException e) {
+      LOG.log(SEVERE, "Cannot open the disk caches in " + directory + ", only the memory caches are used", e);
+    }
+  }
+
+  private static void closeDiskCache(RenderCache cache)
+  {
+    DiskCache diskCache = cache.getDiskCache();
+    if (diskCache == null) return;
+    cache.setDiskCache(null);
+    try {
+      diskCache.close();
+    }
+    catch (IOException e) {
+      LOG.log(SEVERE, "Cannot close the disk cache " + diskCache.getName(), e);
+    }
+  }
+
+  /**
+   * @return true if the warm-up has finished successfully
+   */
+  public static boolean isReady(ServletContext context)
+  {
+    return Boolean.TRUE.equals(context.getAttribute(READY_ATTRIBUTE));
+  }
+
+  /**
+   * @return the reason why the warm-up failed or null if it has not failed (yet)
+   */
+  public static String getFailure(ServletContext context)
+  {
+    Object failure = context.getAttribute(FAILURE_ATTRIBUTE);
+    return failure instanceof String ? (String) failure : null;
+  }
+
+  static void warmUp(ServletContext context) throws Exception
+  {
+    final boolean debug = equalsIgnoreCase(context.getInitParameter(Constants.KEY_DEBUG), "true");
+    String htmlTemplatePath = context.getInitParameter(HTML_TEMPLATE_PATH_KEY);
+    String plistTemplatePath = context.getInitParameter(PLIST_TEMPLATE_PATH_KEY);
+    OtaHtmlGenerator htmlGenerator = debug ? OtaHtmlGenerator.getReloadingInstance(htmlTemplatePath)
+          : OtaHtmlGenerator.getInstance(htmlTemplatePath);
+    OtaPlistGenerator plistGenerator = debug ? OtaPlistGenerator.getReloadingInstance(plistTemplatePath)
+          : OtaPlistGenerator.getInstance(plistTemplatePath);
+
+    String applicationBaseUrl = context.getInitParameter(APPLICATION_BASE_URL_KEY);
+    if (isBlank(applicationBaseUrl)) applicationBaseUrl = "http://localhost" + context.getContextPath();
+    URL htmlServiceUrl = new URL(applicationBaseUrl
+          + Utils.getServletMappingUrlPattern(context, HTML_SERVICE_SERVLET_NAME));
+    URL plistServiceUrl = new URL(applicationBaseUrl
+          + Utils.getServletMappingUrlPattern(context, PLIST_SERVICE_SERVLET_NAME));
+
+    Map<String, String> params = buildMap(KEY_REFERER, WARM_UP_REFERER, KEY_TITLE, "WarmUp",
+          KEY_BUNDLE_IDENTIFIER, "com.sap.ota.WarmUp", KEY_BUNDLE_VERSION, "1.0");
+    URL plistUrl = OtaPlistGenerator.generatePlistRequestUrl(plistServiceUrl, params);
+    URL htmlUrl = OtaHtmlGenerator.generateHtmlServiceUrl(htmlServiceUrl, params);
+
+    //generate(..) bypasses the caches, the synthetic App must not displace real entries
+    plistGenerator.generate(new OtaPlistGenerator.Parameters(params));
+    htmlGenerator.generate(new OtaHtmlGenerator.Parameters(plistUrl, htmlUrl, params,
+          Collections.<String, String> emptyMap()));
+    QREncoder.encode(htmlUrl.toExternalForm(), new ByteArrayOutputStream(), null, QRCodeOptions.DEFAULT);
+  }
+
+}
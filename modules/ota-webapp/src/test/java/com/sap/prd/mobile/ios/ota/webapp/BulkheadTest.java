@@ -0,0 +1,131 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BulkheadTest
+{
+
+  @Test
+  public void testCall() throws Exception
+  {
+    Bulkhead bulkhead = new Bulkhead("test", 1, 1);
+    String threadName = bulkhead.call(new Callable<String>() {
+      @Override
+      public String call()
+      {
+        return Thread.currentThread().getName();
+      }
+    });
+    assertTrue(threadName, threadName.startsWith("test-"));
+  }
+
+  @Test
+  public void testException() throws Exception
+  {
+    Bulkhead bulkhead = new Bulkhead("test", 1, 1);
+    final IOException exception = new IOException("failed");
+    try {
+      bulkhead.call(new Callable<String>() {
+        @Override
+        public String call() throws Exception
+        {
+          throw exception;
+        }
+      });
+      fail("ExecutionException expected");
+    }
+    catch (ExecutionException e) {
+      assertSame(exception, e.getCause());
+    }
+  }
+
+  @Test
+  public void testRejection() throws Exception
+  {
+    final Bulkhead bulkhead = new Bulkhead("test", 1, 1);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Callable<String> blocking = new Callable<String>() {
+      @Override
+      public String call() throws Exception
+      {
+        started.countDown();
+        release.await();
+        return "done";
+      }
+    };
+    Thread[] callers = new Thread[2];
+    for (int i = 0; i < callers.length; i++) {
+      callers[i] = new Thread() {
+        @Override
+        public void run()
+        {
+          try {
+            bulkhead.call(blocking);
+          }
+          catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+    }
+    callers[0].start();
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    callers[1].start();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (bulkhead.getQueueSize() < 1 && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    assertEquals(1, bulkhead.getActiveCount());
+    assertEquals(1, bulkhead.getQueueSize());
+    assertEquals(1.0, bulkhead.getSaturation(), 0.001);
+
+    try {
+      bulkhead.call(blocking);
+      fail("RejectedExecutionException expected");
+    }
+    catch (RejectedExecutionException e) {
+      assertEquals(1, bulkhead.getRejectedCount());
+    }
+
+    release.countDown();
+    for (Thread caller : callers) {
+      caller.join(10000);
+    }
+    //the pool counts a task as completed slightly after its result has been delivered
+    while (bulkhead.getCompletedCount() < 2 && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    assertEquals(2, bulkhead.getCompletedCount());
+  }
+
+}
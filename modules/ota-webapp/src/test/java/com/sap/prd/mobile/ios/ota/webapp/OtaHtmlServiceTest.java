@@ -22,6 +22,7 @@ package com.sap.prd.mobile.ios.ota.webapp;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_IDENTIFIER;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_VERSION;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_DEBUG;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_INLINE_QRCODES;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_IPA_CLASSIFIER;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_OTA_CLASSIFIER;
 import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
@@ -34,13 +35,16 @@ import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlService.HTML_TEMPLATE_PAT
 import static com.sap.prd.mobile.ios.ota.webapp.TestUtils.mockResponse;
 import static com.sap.prd.mobile.ios.ota.webapp.TestUtils.mockServletContextInitParameters;
 import static com.sap.prd.mobile.ios.ota.webapp.TestUtils.mockServletContextUrlMappings;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
@@ -116,13 +120,13 @@ public class OtaHtmlServiceTest
   {
     OtaHtmlService service = new OtaHtmlService();
     service = (OtaHtmlService)mockServletContextInitParameters(service, DEFAULT_INIT_PARAMS);
-    StringWriter writer = new StringWriter();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
 
     HttpServletRequest request = mockRequest();
-    HttpServletResponse response = mockResponse(writer);
+    HttpServletResponse response = mockResponse(out);
     service.doPost(request, response);
 
-    String result = writer.getBuffer().toString();
+    String result = out.toString("UTF-8");
     assertContains(CHECK_TITLE, result);
     assertContains(TEST_IPA_LINK, result);
     assertOtaLink(result, TEST_PLIST_URL.toString(), TEST_BUNDLEIDENTIFIER);
@@ -134,20 +138,38 @@ public class OtaHtmlServiceTest
   {
     OtaHtmlService service = new OtaHtmlService();
     service = (OtaHtmlService)mockServletContextInitParameters(service, DEFAULT_INIT_PARAMS, HTML_TEMPLATE_PATH_KEY, TEST_ALTERNATIVE_TEMPLATE);
-    StringWriter writer = new StringWriter();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
 
     HttpServletRequest request = mockRequest();
-    HttpServletResponse response = mockResponse(writer);
+    HttpServletResponse response = mockResponse(out);
 
     service.doPost(request, response);
 
-    String result = writer.getBuffer().toString();
+    String result = out.toString("UTF-8");
     assertContains("ALTERNATIVE HTML TEMPLATE", result);
     assertContains(CHECK_TITLE, result);
     assertContains("<a href='itms-services:///?action=download-manifest&url=" + TEST_PLIST_URL + "'>OTA</a>", result);
     assertContains("<a href='" + TEST_IPA_LINK + "'>IPA</a>", result);
   }
 
+  @Test
+  public void testRefererHeaderNotValidatedByDate() throws ServletException, IOException
+  {
+    OtaHtmlService service = new OtaHtmlService();
+    service = (OtaHtmlService)mockServletContextInitParameters(service, DEFAULT_INIT_PARAMS);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    //the page of a different Referer must not be confirmed by the date alone
+    HttpServletRequest request = mockRequest();
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(Long.MAX_VALUE / 2);
+    HttpServletResponse response = mockResponse(out);
+    service.doPost(request, response);
+
+    verify(response).addHeader("Vary", KEY_REFERER);
+    verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertContains(CHECK_TITLE, out.toString("UTF-8"));
+  }
+
   private HttpServletRequest mockRequest()
   {
     HttpServletRequest request = mock(HttpServletRequest.class);
@@ -171,7 +193,7 @@ public class OtaHtmlServiceTest
   {
     OtaHtmlService service = new OtaHtmlService();
     service = (OtaHtmlService)mockServletContextInitParameters(service, DEFAULT_INIT_PARAMS);
-    StringWriter writer = new StringWriter();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
 
     HttpServletRequest request = mock(HttpServletRequest.class);
     when(request.getHeader(KEY_REFERER)).thenReturn(TEST_REFERER_WITH_CLASSIFIER);
@@ -188,11 +210,11 @@ public class OtaHtmlServiceTest
 
     mockServletContextUrlMappings(request);
     
-    HttpServletResponse response = mockResponse(writer);
+    HttpServletResponse response = mockResponse(out);
 
     service.doPost(request, response);
 
-    String result = writer.getBuffer().toString();
+    String result = out.toString("UTF-8");
     assertContains(CHECK_TITLE, result);
     assertContains(TEST_IPA_LINK_WITH_CLASSIFIER, result);
     assertOtaLink(result, TEST_PLIST_URL_WITH_CLASSIFIERS.toString(), TEST_BUNDLEIDENTIFIER);
@@ -204,18 +226,69 @@ public class OtaHtmlServiceTest
   {
     OtaHtmlService service = new OtaHtmlService();
     service = (OtaHtmlService)TestUtils.mockServletContextInitParameters(service, DEFAULT_INIT_PARAMS, APPLICATION_BASE_URL_KEY, DIFFERING_APPLICATION_BASE_URL);
-    StringWriter writer = new StringWriter();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
 
     HttpServletRequest request = mockRequest();
-    HttpServletResponse response = mockResponse(writer);
+    HttpServletResponse response = mockResponse(out);
     service.doPost(request, response);
 
-    String result = writer.getBuffer().toString();
+    String result = out.toString("UTF-8");
     assertContains(CHECK_TITLE, result);
     assertContains(TEST_IPA_LINK, result);
     assertOtaLink(result, DIFFERING_PLIST_URL.toString(), TEST_BUNDLEIDENTIFIER);
     assertContains(DIFFERING_PLIST_URL.toExternalForm(), result);
     assertContains(DIFFERING_APPLICATION_BASE_URL, result);
   }
+
+  @Test
+  public void testInlineQrcodes() throws Exception
+  {
+    OtaHtmlService service = new OtaHtmlService();
+    service = (OtaHtmlService)mockServletContextInitParameters(service, DEFAULT_INIT_PARAMS, KEY_INLINE_QRCODES, "true");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    service.doPost(mockRequest(), mockResponse(out));
+
+    String result = out.toString("UTF-8");
+    String plistQrcode = Utils.getQRCodeDataUri(TEST_PLIST_URL.toExternalForm() + "?action=itmsRedirect", null,
+          QRCodeOptions.DEFAULT, QREncoder.FORMAT_SVG);
+    String htmlQrcode = Utils.getQRCodeDataUri(TEST_REFERER, null, QRCodeOptions.DEFAULT, QREncoder.FORMAT_SVG);
+    assertContains("data-sources=\"" + plistQrcode + " " + TEST_PLIST_URL.toExternalForm() + "?action=qrcode", result);
+    assertContains("data-sources=\"" + htmlQrcode + " ", result);
+  }
+
+  @Test
+  public void testCanvasQrcodes() throws Exception
+  {
+    OtaHtmlService service = new OtaHtmlService();
+    service = (OtaHtmlService)mockServletContextInitParameters(service, DEFAULT_INIT_PARAMS, KEY_INLINE_QRCODES,
+          OtaHtmlService.INLINE_QRCODES_CANVAS);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    service.doPost(mockRequest(), mockResponse(out));
+
+    String result = out.toString("UTF-8");
+    assertContains("data-modules=\"" + Utils.getQRCodeModules(TEST_PLIST_URL.toExternalForm() + "?action=itmsRedirect")
+          + "\"", result);
+    assertContains("data-modules=\"" + Utils.getQRCodeModules(TEST_REFERER) + "\"", result);
+    assertFalse(result.contains("data:image"));
+  }
+
+  @Test
+  public void testWithoutInlineQrcodes() throws Exception
+  {
+    OtaHtmlService service = new OtaHtmlService();
+    service = (OtaHtmlService)mockServletContextInitParameters(service, DEFAULT_INIT_PARAMS);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    service.doPost(mockRequest(), mockResponse(out));
+
+    String result = out.toString("UTF-8");
+    assertContains("data-sources=\" " + TEST_PLIST_URL.toExternalForm() + "?action=qrcode", result);
+    //shown without script, upgraded by it
+    assertContains("src=\"" + TEST_PLIST_URL.toExternalForm() + "?action=qrcode\"", result);
+    assertContains("data-modules=\"\"", result);
+    assertFalse(result.contains("data:image"));
+  }
   
 }
\ No newline at end of file
@@ -36,13 +36,17 @@ import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlServiceTest.TEST_TITLE;
 import static com.sap.prd.mobile.ios.ota.webapp.TestUtils.mockResponse;
 import static com.sap.prd.mobile.ios.ota.webapp.TestUtils.mockServletContextInitParameters;
 import static com.sap.prd.mobile.ios.ota.webapp.TestUtils.mockServletContextUrlMappings;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -51,6 +55,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
 
 public class OtaPlistServiceTest
 {
@@ -73,7 +79,7 @@ public class OtaPlistServiceTest
   {
     OtaPlistService service = new OtaPlistService();
     service = (OtaPlistService)TestUtils.mockServletContextInitParameters(service, DEFAULT_INIT_PARAMS);
-    StringWriter writer = new StringWriter();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
 
     HttpServletRequest request = mock(HttpServletRequest.class);
     when(request.getContextPath()).thenReturn("");
@@ -88,12 +94,11 @@ public class OtaPlistServiceTest
     map.put(KEY_BUNDLE_VERSION, new String[]{TEST_BUNDLEVERSION});
     when(request.getParameterMap()).thenReturn(map);
     
-    HttpServletResponse response = mock(HttpServletResponse.class);
-    when(response.getWriter()).thenReturn(new PrintWriter(writer));
+    HttpServletResponse response = mockResponse(out);
 
     service.doGet(request, response);
 
-    String result = writer.getBuffer().toString();
+    String result = out.toString("UTF-8");
     assertContains(STRING_TAG_START + TEST_TITLE + STRING_TAG_END, result);
     assertContains(STRING_TAG_START + TEST_BUNDLEVERSION + STRING_TAG_END, result);
     assertContains(STRING_TAG_START + TEST_BUNDLEIDENTIFIER + STRING_TAG_END, result);
@@ -106,7 +111,7 @@ public class OtaPlistServiceTest
     OtaPlistService service = new OtaPlistService();
     service = (OtaPlistService)TestUtils.mockServletContextInitParameters(service, DEFAULT_INIT_PARAMS);
 
-    StringWriter writer = new StringWriter();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
 
     HttpServletRequest request = mock(HttpServletRequest.class);
 
@@ -121,31 +126,109 @@ public class OtaPlistServiceTest
 
     mockServletContextUrlMappings(request);
     
-    HttpServletResponse response = mock(HttpServletResponse.class);
-    when(response.getWriter()).thenReturn(new PrintWriter(writer));
+    HttpServletResponse response = mockResponse(out);
 
     service.doGet(request, response);
 
-    String result = writer.getBuffer().toString();
+    String result = out.toString("UTF-8");
     assertContains(STRING_TAG_START + TEST_TITLE + STRING_TAG_END, result);
     assertContains(STRING_TAG_START + TEST_BUNDLEVERSION + STRING_TAG_END, result);
     assertContains(STRING_TAG_START + TEST_BUNDLEIDENTIFIER + STRING_TAG_END, result);
     assertContains(STRING_TAG_START + TEST_IPA_LINK + STRING_TAG_END, result);
   }
 
+  @Test
+  public void testConditionalGet() throws ServletException, IOException
+  {
+    OtaPlistService service = new OtaPlistService();
+    service = (OtaPlistService)TestUtils.mockServletContextInitParameters(service, DEFAULT_INIT_PARAMS);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HttpServletResponse response = mockResponse(out);
+    service.doGet(mockPlistRequest(), response);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(eq("ETag"), etag.capture());
+    verify(response).setHeader("Cache-Control", "no-cache");
+    assertTrue(out.size() > 0);
+
+    HttpServletRequest request = mockPlistRequest();
+    when(request.getHeader("If-None-Match")).thenReturn(etag.getValue());
+    out = new ByteArrayOutputStream();
+    response = mockResponse(out);
+    service.doGet(request, response);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals(0, out.size());
+
+    request = mockPlistRequest();
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\"");
+    out = new ByteArrayOutputStream();
+    service.doGet(request, mockResponse(out));
+    assertContains(STRING_TAG_START + TEST_TITLE + STRING_TAG_END, out.toString("UTF-8"));
+  }
+
+  @Test
+  public void testHead() throws ServletException, IOException
+  {
+    OtaPlistService service = new OtaPlistService();
+    service = (OtaPlistService)TestUtils.mockServletContextInitParameters(service, DEFAULT_INIT_PARAMS);
+
+    HttpServletRequest request = mockPlistRequest();
+    when(request.getMethod()).thenReturn("HEAD");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HttpServletResponse response = mockResponse(out);
+    service.doHead(request, response);
+    verify(response).setContentType("application/xml");
+    verify(response).setHeader(eq("ETag"), anyString());
+    assertEquals(0, out.size());
+  }
+
+  @Test
+  public void testMalformedUri() throws ServletException, IOException
+  {
+    OtaPlistService service = new OtaPlistService();
+    service = (OtaPlistService)TestUtils.mockServletContextInitParameters(service, DEFAULT_INIT_PARAMS);
+
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getContextPath()).thenReturn("");
+    when(request.getRequestURI()).thenReturn("/PLIST/" + encode(KEY_TITLE + "=" + TEST_TITLE) + "/abc$");
+    mockServletContextUrlMappings(request);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HttpServletResponse response = mockResponse(out);
+    service.doGet(request, response);
+    verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+    assertEquals(0, out.size());
+  }
+
+  private HttpServletRequest mockPlistRequest()
+  {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getContextPath()).thenReturn("");
+    when(request.getRequestURI()).thenReturn("/PLIST");
+    mockServletContextUrlMappings(request);
+
+    when(request.getParameter(KEY_REFERER)).thenReturn(TEST_REFERER);
+    Map<String, String[]> map = new HashMap<String, String[]>();
+    map.put(KEY_REFERER, new String[]{TEST_REFERER});
+    map.put(KEY_TITLE, new String[]{TEST_TITLE});
+    map.put(KEY_BUNDLE_IDENTIFIER, new String[]{TEST_BUNDLEIDENTIFIER});
+    map.put(KEY_BUNDLE_VERSION, new String[]{TEST_BUNDLEVERSION});
+    when(request.getParameterMap()).thenReturn(map);
+    return request;
+  }
+
   @Test
   public void testWithConfiguration() throws ServletException, IOException
   {
     OtaHtmlService service = new OtaHtmlService();
     service = (OtaHtmlService)mockServletContextInitParameters(service, DEFAULT_INIT_PARAMS, HTML_TEMPLATE_PATH_KEY, TEST_ALTERNATIVE_TEMPLATE);
-    StringWriter writer = new StringWriter();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
 
     HttpServletRequest request = mockRequest();
-    HttpServletResponse response = mockResponse(writer);
+    HttpServletResponse response = mockResponse(out);
 
     service.doPost(request, response);
 
-    String result = writer.getBuffer().toString();
+    String result = out.toString("UTF-8");
     assertContains("ALTERNATIVE PLIST TEMPLATE", result);
     assertContains("<string>" + TEST_BUNDLEIDENTIFIER + "_iOS8Fix</string>", result);
   }
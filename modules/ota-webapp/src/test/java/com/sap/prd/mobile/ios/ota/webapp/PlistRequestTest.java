@@ -0,0 +1,180 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_ACTION;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_IDENTIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_BUNDLE_VERSION;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_IPA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_REFERER;
+import static com.sap.prd.mobile.ios.ota.lib.Constants.KEY_TITLE;
+import static com.sap.prd.mobile.ios.ota.lib.LibUtils.buildMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.Base64Url;
+import com.sap.prd.mobile.ios.ota.lib.LibUtils;
+import com.sap.prd.mobile.ios.ota.lib.TokenRegistry;
+
+public class PlistRequestTest
+{
+
+  private static final String REFERER = "http://host/abc/MyApp-1.0.htm";
+
+  @Test
+  public void testParseLongForm()
+  {
+    PlistRequest plistRequest = new PlistRequest();
+    String uri = "/ota-service/PLIST/" + LibUtils.encode(KEY_REFERER + "=" + REFERER) + "/"
+          + LibUtils.encode(KEY_TITLE + "=My Appü") + "/"
+          + Base64Url.encodeStandard(KEY_BUNDLE_IDENTIFIER + "=com.sap.MyApp") + "/"
+          + LibUtils.encode(KEY_BUNDLE_VERSION + "=1.0") + "/" + LibUtils.encode("unknown=x") + "/"
+          + LibUtils.encode(KEY_IPA_CLASSIFIER) + "//" + LibUtils.encode(KEY_ACTION + "=itmsRedirect") + "/";
+    assertTrue(plistRequest.parse(uri, "/ota-service", "/PLIST"));
+    assertEquals(200, plistRequest.getStatus());
+    assertEquals(REFERER, plistRequest.getReferer());
+    assertEquals("My Appü", plistRequest.getTitle());
+    assertEquals("com.sap.MyApp", plistRequest.getBundleIdentifier());
+    assertEquals("1.0", plistRequest.getBundleVersion());
+    assertNull(plistRequest.getIpaClassifier());
+    assertNull(plistRequest.getOtaClassifier());
+    assertEquals("itmsRedirect", plistRequest.getAction());
+    assertEquals(5, plistRequest.toMap().size());
+
+    plistRequest = new PlistRequest();
+    assertTrue(plistRequest.parse("/PLIST", "", "/PLIST"));
+    assertTrue(plistRequest.toMap().isEmpty());
+  }
+
+  @Test
+  public void testParseCompact()
+  {
+    Map<String, String> params = buildMap(KEY_REFERER, REFERER, KEY_TITLE, "MyApp");
+    PlistRequest plistRequest = new PlistRequest();
+    assertTrue(plistRequest.parse("/PLIST/" + LibUtils.encodeParameters(params) + "/"
+          + LibUtils.encode(KEY_ACTION + "=qrcode"), "", "/PLIST"));
+    assertEquals(REFERER, plistRequest.getReferer());
+    assertEquals("MyApp", plistRequest.getTitle());
+    assertEquals("qrcode", plistRequest.getAction());
+  }
+
+  @Test
+  public void testParseToken() throws Exception
+  {
+    TokenRegistry tokens = new TokenRegistry();
+    String token = tokens.register(buildMap(KEY_REFERER, REFERER, KEY_TITLE, "MyApp"));
+    Utils.setTokenRegistry(tokens);
+    try {
+      PlistRequest plistRequest = new PlistRequest();
+      assertTrue(plistRequest.parse("/PLIST/" + token, "", "/PLIST"));
+      assertEquals(REFERER, plistRequest.getReferer());
+      assertEquals("MyApp", plistRequest.getTitle());
+
+      plistRequest = new PlistRequest();
+      assertTrue(plistRequest.parse("/PLIST/%7E" + token.substring(1), "", "/PLIST"));
+      assertEquals("MyApp", plistRequest.getTitle());
+
+      plistRequest = new PlistRequest();
+      assertFalse(plistRequest.parse("/PLIST/~unknown", "", "/PLIST"));
+      assertEquals(404, plistRequest.getStatus());
+    }
+    finally {
+      Utils.setTokenRegistry(null);
+    }
+  }
+
+  @Test
+  public void testParseInvalid()
+  {
+    String[] invalid = { "/PLIST/abc$", "/PLIST/YW%2", "/PLIST/YW%zzJj", "/PLIST/~", "/PLIST/.abc$", "/PLIST/.AAAA" };
+    for (String uri : invalid) {
+      PlistRequest plistRequest = new PlistRequest();
+      assertFalse(uri, plistRequest.parse(uri, "", "/PLIST"));
+      assertEquals(uri, 400, plistRequest.getStatus());
+    }
+    PlistRequest plistRequest = new PlistRequest();
+    assertFalse(plistRequest.parse("/other/PLIST/abc", "/ota-service", "/PLIST"));
+    assertEquals(404, plistRequest.getStatus());
+    plistRequest = new PlistRequest();
+    assertFalse(plistRequest.parse("/ota-service/HTML/abc", "/ota-service", "/PLIST"));
+    assertEquals(404, plistRequest.getStatus());
+  }
+
+  @Test
+  public void testAddRequestParameters() throws Exception
+  {
+    PlistRequest plistRequest = new PlistRequest();
+    assertTrue(plistRequest.parse("/PLIST/" + LibUtils.encode(KEY_REFERER + "=" + REFERER) + "/"
+          + LibUtils.encode(KEY_TITLE + "=MyApp"), "", "/PLIST"));
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    Map<String, String[]> requestParams = new HashMap<String, String[]>();
+    requestParams.put(KEY_REFERER, new String[] { "http://other/Other.htm" });
+    requestParams.put(KEY_TITLE, new String[] { "Other" });
+    requestParams.put(KEY_ACTION, new String[] { "qrcode", "itmsRedirect" });
+    when(request.getParameterMap()).thenReturn(requestParams);
+    when(request.getParameter(KEY_REFERER)).thenReturn("http://other/Other.htm");
+    assertTrue(plistRequest.addRequestParameters(request));
+    assertEquals(REFERER, plistRequest.getReferer()); //the URI has precedence
+    assertEquals("Other", plistRequest.getTitle()); //the request parameter has precedence
+    assertNull(plistRequest.getAction()); //given twice
+
+    plistRequest = new PlistRequest();
+    assertTrue(plistRequest.parse("/PLIST", "", "/PLIST"));
+    assertTrue(plistRequest.addRequestParameters(request));
+    assertEquals("http://other/Other.htm", plistRequest.getReferer());
+  }
+
+  @Test
+  public void testAddInvalidReferer() throws Exception
+  {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameter(KEY_REFERER)).thenReturn("not$base64");
+    PlistRequest plistRequest = new PlistRequest();
+    assertTrue(plistRequest.parse("/PLIST", "", "/PLIST"));
+    assertFalse(plistRequest.addRequestParameters(request));
+    assertEquals(400, plistRequest.getStatus());
+
+    when(request.getParameter(KEY_REFERER)).thenReturn(LibUtils.encode("no URL"));
+    plistRequest = new PlistRequest();
+    assertTrue(plistRequest.parse("/PLIST", "", "/PLIST"));
+    assertFalse(plistRequest.addRequestParameters(request));
+    assertEquals(400, plistRequest.getStatus());
+  }
+
+  @Test
+  public void testParseInvalidCompactSegment()
+  {
+    PlistRequest plistRequest = new PlistRequest();
+    assertFalse(plistRequest.parse("/PLIST/.AAAA", "", "/PLIST"));
+    assertEquals(400, plistRequest.getStatus());
+  }
+
+}
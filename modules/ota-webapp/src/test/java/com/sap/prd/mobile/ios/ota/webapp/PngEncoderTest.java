@@ -0,0 +1,109 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.common.BitMatrix;
+
+public class PngEncoderTest
+{
+
+  @Test
+  public void testPixels() throws Exception
+  {
+    BitMatrix matrix = new BitMatrix(13, 7);
+    matrix.set(0, 0);
+    matrix.set(8, 3);
+    matrix.set(12, 6);
+
+    BufferedImage image = decode(matrix, 0xFF000000, 0xFFFFFFFF);
+    assertEquals(13, image.getWidth());
+    assertEquals(7, image.getHeight());
+    for (int y = 0; y < 7; y++) {
+      for (int x = 0; x < 13; x++) {
+        assertEquals("pixel " + x + "," + y, matrix.get(x, y) ? 0xFF000000 : 0xFFFFFFFF, image.getRGB(x, y));
+      }
+    }
+  }
+
+  @Test
+  public void testTransparency() throws Exception
+  {
+    BitMatrix matrix = new BitMatrix(2, 1);
+    matrix.set(0, 0);
+
+    BufferedImage image = decode(matrix, 0xFF123456, 0x00FFFFFF);
+    assertEquals(0xFF123456, image.getRGB(0, 0));
+    assertEquals(0, image.getRGB(1, 0) >>> 24);
+  }
+
+  @Test
+  public void testModuleSizeAndQuietZone() throws Exception
+  {
+    BitMatrix matrix = new BitMatrix(2, 2);
+    matrix.set(0, 0);
+    matrix.set(1, 1);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PngEncoder.write(matrix, 3, 1, 0xFF000000, 0xFFFFFFFF, out);
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(12, image.getWidth());
+    assertEquals(12, image.getHeight());
+    for (int y = 0; y < 12; y++) {
+      for (int x = 0; x < 12; x++) {
+        int moduleX = x / 3 - 1;
+        int moduleY = y / 3 - 1;
+        boolean on = moduleX >= 0 && moduleX < 2 && moduleY >= 0 && moduleY < 2 && matrix.get(moduleX, moduleY);
+        assertEquals("pixel " + x + "," + y, on ? 0xFF000000 : 0xFFFFFFFF, image.getRGB(x, y));
+      }
+    }
+  }
+
+  @Test
+  public void testQRCode() throws Exception
+  {
+    BitMatrix matrix = new MultiFormatWriter().encode("http://host/ota-service/abc", BarcodeFormat.QR_CODE, 400, 400);
+    BufferedImage image = decode(matrix, 0xFF000000, 0xFFFFFFFF);
+    for (int y = 0; y < 400; y += 7) {
+      for (int x = 0; x < 400; x += 7) {
+        assertEquals(matrix.get(x, y) ? 0xFF000000 : 0xFFFFFFFF, image.getRGB(x, y));
+      }
+    }
+  }
+
+  private static BufferedImage decode(BitMatrix matrix, int onColor, int offColor) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PngEncoder.write(matrix, onColor, offColor, out);
+    return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.zxing.common.BitMatrix;
+
+public class SvgEncoderTest
+{
+
+  @Test
+  public void testRuns()
+  {
+    BitMatrix matrix = new BitMatrix(5, 2);
+    matrix.set(0, 0);
+    matrix.set(1, 0);
+    matrix.set(2, 0);
+    matrix.set(4, 0);
+    matrix.set(1, 1);
+
+    String svg = SvgEncoder.toSvg(matrix, 0, 0xFF000000, 0x00FFFFFF, 100, 40);
+    assertEquals("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" height=\"40\" viewBox=\"0 0 5 2\""
+          + " shape-rendering=\"crispEdges\"><path fill=\"#000000\""
+          + " d=\"M0 0h3v1h-3zM4 0h1v1h-1zM1 1h1v1h-1z\"/></svg>", svg);
+  }
+
+  @Test
+  public void testQuietZone()
+  {
+    BitMatrix matrix = new BitMatrix(2, 2);
+    matrix.set(0, 0);
+    matrix.set(1, 1);
+
+    String svg = SvgEncoder.toSvg(matrix, 4, 0xFF000000, 0x00FFFFFF, 100, 100);
+    assertTrue(svg, svg.contains("viewBox=\"0 0 10 10\""));
+    assertTrue(svg, svg.contains(" d=\"M4 4h1v1h-1zM5 5h1v1h-1z\""));
+  }
+
+  @Test
+  public void testColors()
+  {
+    BitMatrix matrix = new BitMatrix(1, 1);
+    matrix.set(0, 0);
+
+    String svg = SvgEncoder.toSvg(matrix, 0, 0x80123456, 0xFFABCDEF, 10, 10);
+    assertTrue(svg, svg.contains("<rect width=\"100%\" height=\"100%\" fill=\"#abcdef\"/>"));
+    assertTrue(svg, svg.contains("<path fill=\"#123456\" fill-opacity=\"0.502\""));
+  }
+
+}
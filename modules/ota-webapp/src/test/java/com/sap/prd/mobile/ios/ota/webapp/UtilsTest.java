@@ -19,21 +19,34 @@
  */
 package com.sap.prd.mobile.ios.ota.webapp;
 
+import static com.sap.prd.mobile.ios.ota.webapp.TestUtils.mockResponse;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.sonatype.plexus.components.cipher.Base64;
 
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.sap.prd.mobile.ios.ota.lib.Constants;
 import com.sap.prd.mobile.ios.ota.lib.LibUtils;
+import com.sap.prd.mobile.ios.ota.lib.RenderCache;
+import com.sap.prd.mobile.ios.ota.lib.TokenRegistry;
 
 public class UtilsTest
 {
@@ -121,6 +134,69 @@ public class UtilsTest
           -1); //null
   }
 
+  @Test
+  public void testExtractParametersFromUri_Token() throws Exception
+  {
+    TokenRegistry tokens = new TokenRegistry();
+    String token = tokens.register(LibUtils.buildMap(Constants.KEY_REFERER, "http://host/MyApp.htm",
+          Constants.KEY_TITLE, "MyApp"));
+    Utils.setTokenRegistry(tokens);
+    try {
+      testExtractSlashedEncodedParametersFromUriCheck(
+            "/blabla/SERVICE/" + token + "/" + LibUtils.encode("action=itmsRedirect"),
+            "/SERVICE",
+            3,
+            new String[] { Constants.KEY_REFERER, "http://host/MyApp.htm" },
+            new String[] { Constants.KEY_TITLE, "MyApp" },
+            new String[] { Constants.KEY_ACTION, "itmsRedirect" });
+      try {
+        testExtractSlashedEncodedParametersFromUriCheck("/blabla/SERVICE/~unknown", "/SERVICE", -1);
+        fail("Unknown token resolved");
+      }
+      catch (IllegalArgumentException e) {
+        //expected
+      }
+    }
+    finally {
+      Utils.setTokenRegistry(null);
+    }
+  }
+
+  @Test
+  public void testExtractParametersFromUri_Compact()
+  {
+    String segment = LibUtils.encodeParameters(LibUtils.buildMap(Constants.KEY_REFERER, "http://host/MyApp.htm",
+          Constants.KEY_TITLE, "MyApp"));
+    testExtractSlashedEncodedParametersFromUriCheck(
+          "/blabla/SERVICE/" + segment + "/" + LibUtils.encode("action=itmsRedirect"),
+          "/SERVICE",
+          3,
+          new String[] { Constants.KEY_REFERER, "http://host/MyApp.htm" },
+          new String[] { Constants.KEY_TITLE, "MyApp" },
+          new String[] { Constants.KEY_ACTION, "itmsRedirect" });
+  }
+
+  @Test
+  public void testGetCompactParameters()
+  {
+    Map<String, String> params = LibUtils.buildMap(Constants.KEY_REFERER, "http://host/MyApp.htm",
+          Constants.KEY_TITLE, "MyApp");
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    assertNull(Utils.getCompactParameters(request));
+    when(request.getPathInfo()).thenReturn("/" + LibUtils.encodeParameters(params));
+    assertEquals(params, Utils.getCompactParameters(request));
+    when(request.getPathInfo()).thenReturn("/abc");
+    assertNull(Utils.getCompactParameters(request));
+    when(request.getPathInfo()).thenReturn("/.abc$");
+    try {
+      Utils.getCompactParameters(request);
+      fail("Invalid segment decoded");
+    }
+    catch (IllegalArgumentException e) {
+      //expected
+    }
+  }
+
   private void testExtractSlashedEncodedParametersFromUriCheck(String uri, String serviceName, int expectedNr, String[]... expected)
   {
     HttpServletRequest request = mock(HttpServletRequest.class);
@@ -167,4 +243,187 @@ public class UtilsTest
     System.out.println(LibUtils.encode(bundleVersion));
   }
 
+  @Test
+  public void testSendQRCodeCached() throws Exception
+  {
+    final String contents = "http://ota-server:8080/ota-service/HTML/cached";
+    RenderCache cache = Utils.getQRCodeCache();
+    long hits = cache.getHitCount();
+
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    HttpServletResponse response = mockResponse(first);
+    Utils.sendQRCode(mock(HttpServletRequest.class), response, contents, null, 200);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(eq("ETag"), etag.capture());
+    verify(response).setHeader("Cache-Control", Utils.QR_CACHE_CONTROL);
+    verify(response).setContentType("image/png");
+
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    Utils.sendQRCode(mock(HttpServletRequest.class), mockResponse(second), contents, null, 200);
+    assertEquals(hits + 1, cache.getHitCount());
+    assertTrue(first.size() > 0);
+    assertTrue(Arrays.equals(first.toByteArray(), second.toByteArray()));
+
+    HttpServletRequest conditional = mock(HttpServletRequest.class);
+    when(conditional.getHeader("If-None-Match")).thenReturn(etag.getValue());
+    ByteArrayOutputStream notModified = new ByteArrayOutputStream();
+    response = mockResponse(notModified);
+    Utils.sendQRCode(conditional, response, contents, null, 200);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals(0, notModified.size());
+  }
+
+  @Test
+  public void testIsNotModified()
+  {
+    final String etag = Utils.toETag("a", "b");
+    final long lastModified = 1000000000000L;
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+    assertFalse(Utils.isNotModified(request, etag, lastModified));
+
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(lastModified + 500);
+    assertTrue(Utils.isNotModified(request, etag, lastModified));
+    assertFalse(Utils.isNotModified(request, etag, 0));
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(lastModified - 1000);
+    assertFalse(Utils.isNotModified(request, etag, lastModified));
+
+    //If-None-Match takes precedence
+    when(request.getHeader("If-None-Match")).thenReturn(etag);
+    assertTrue(Utils.isNotModified(request, etag, lastModified));
+    assertFalse(Utils.isNotModified(request, null, lastModified));
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(lastModified);
+    when(request.getHeader("If-None-Match")).thenReturn(Utils.toETag("a", "c"));
+    assertFalse(Utils.isNotModified(request, etag, lastModified));
+  }
+
+  @Test
+  public void testSendQRCodeHead() throws Exception
+  {
+    final String contents = "http://ota-server:8080/ota-service/HTML/head";
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("HEAD");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HttpServletResponse response = mockResponse(out);
+    Utils.sendQRCode(request, response, contents, null, QRCodeOptions.DEFAULT, "max-age=60");
+    verify(response).setContentType("image/png");
+    verify(response).setHeader("Cache-Control", "max-age=60");
+    verify(response).setIntHeader("X-QR-Modules", QREncoder.getModuleCount(Utils.getQRCodeModules(contents)));
+    assertEquals(0, out.size());
+  }
+
+  @Test
+  public void testMatchesETag()
+  {
+    assertFalse(Utils.matchesETag(null, "\"abc\""));
+    assertTrue(Utils.matchesETag("\"abc\"", "\"abc\""));
+    assertTrue(Utils.matchesETag("\"xyz\", W/\"abc\"", "\"abc\""));
+    assertTrue(Utils.matchesETag("*", "\"abc\""));
+    assertFalse(Utils.matchesETag("\"abcd\"", "\"abc\""));
+  }
+
+  @Test
+  public void testGetQRCodeModules() throws Exception
+  {
+    String modules = Utils.getQRCodeModules("http://ota-server:8080/ota-service/HTML/modules");
+    int separator = modules.indexOf(':');
+    int size = Integer.parseInt(modules.substring(0, separator));
+    assertEquals(1, (size - 17) % 4); //version 1 has 21 modules, each version adds 4
+    byte[] bits = Base64.decodeBase64(modules.substring(separator + 1).getBytes("US-ASCII"));
+    assertEquals((size * size + 7) / 8, bits.length);
+    //top row of the upper left finder pattern: seven dark modules followed by a light separator
+    assertEquals((byte) 0xFE, bits[0]);
+    assertEquals(modules, Utils.getQRCodeModules("http://ota-server:8080/ota-service/HTML/modules"));
+  }
+
+  @Test
+  public void testGetQRCodeOptions()
+  {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    assertEquals(QRCodeOptions.DEFAULT, Utils.getQRCodeOptions(request));
+
+    when(request.getParameter(Utils.QR_SIZE)).thenReturn("200");
+    when(request.getParameter(Utils.QR_SCALE)).thenReturn("2");
+    when(request.getParameter(Utils.QR_ERROR_CORRECTION)).thenReturn("m");
+    when(request.getParameter(Utils.QR_QUIET_ZONE)).thenReturn("2");
+    assertEquals(new QRCodeOptions(200, 2, ErrorCorrectionLevel.M, 2), Utils.getQRCodeOptions(request));
+
+    when(request.getParameter(Utils.QR_SIZE)).thenReturn("100000");
+    when(request.getParameter(Utils.QR_SCALE)).thenReturn("5");
+    when(request.getParameter(Utils.QR_ERROR_CORRECTION)).thenReturn("X");
+    when(request.getParameter(Utils.QR_QUIET_ZONE)).thenReturn("abc");
+    assertEquals(new QRCodeOptions(QRCodeOptions.MAX_SIZE, 1, QRCodeOptions.DEFAULT_ERROR_CORRECTION,
+          QRCodeOptions.DEFAULT_QUIET_ZONE), Utils.getQRCodeOptions(request));
+  }
+
+  @Test
+  public void testSendQRCodeHeaders() throws Exception
+  {
+    final String contents = "http://ota-server:8080/ota-service/HTML/headers";
+    HttpServletResponse response = mockResponse(new ByteArrayOutputStream());
+    Utils.sendQRCode(mock(HttpServletRequest.class), response, contents, null, QRCodeOptions.DEFAULT);
+    int modules = QREncoder.getModuleCount(Utils.getQRCodeModules(contents));
+    verify(response).setIntHeader("X-QR-Modules", modules);
+    verify(response).setIntHeader("X-QR-Version", (modules - 17) / 4);
+  }
+
+  @Test
+  public void testSendQRCodeModulesCached() throws Exception
+  {
+    final String contents = "http://ota-server:8080/ota-service/HTML/modulesCached";
+    Utils.sendQRCode(mock(HttpServletRequest.class), mockResponse(new ByteArrayOutputStream()), contents, null,
+          QRCodeOptions.DEFAULT);
+    int modules = QREncoder.getModuleCount(Utils.getQRCodeModules(contents));
+
+    //the module count is cached with the image, a hit needs a single lookup and no bulkhead
+    RenderCache cache = Utils.getQRCodeCache();
+    long hits = cache.getHitCount(), misses = cache.getMissCount();
+    HttpServletResponse response = mockResponse(new ByteArrayOutputStream());
+    Utils.sendQRCode(mock(HttpServletRequest.class), response, contents, null, QRCodeOptions.DEFAULT);
+    verify(response).setIntHeader("X-QR-Modules", modules);
+    verify(response).setIntHeader("X-QR-Version", (modules - 17) / 4);
+
+    HttpServletRequest head = mock(HttpServletRequest.class);
+    when(head.getMethod()).thenReturn("HEAD");
+    response = mockResponse(new ByteArrayOutputStream());
+    Utils.sendQRCode(head, response, contents, null, QRCodeOptions.DEFAULT);
+    verify(response).setIntHeader("X-QR-Modules", modules);
+    assertEquals(hits + 2, cache.getHitCount());
+    assertEquals(misses, cache.getMissCount());
+  }
+
+  @Test
+  public void testPrefersSvg()
+  {
+    assertFalse(Utils.prefersSvg(null));
+    assertTrue(Utils.prefersSvg("image/svg+xml"));
+    assertFalse(Utils.prefersSvg("image/png"));
+    assertFalse(Utils.prefersSvg("image/avif,image/webp,image/apng,image/svg+xml,image/*,*/*;q=0.8"));
+    assertTrue(Utils.prefersSvg("image/svg+xml, image/png;q=0.5"));
+    assertTrue(Utils.prefersSvg("image/svg+xml, */*;q=0.1"));
+    assertFalse(Utils.prefersSvg("image/svg+xml;q=0, image/png"));
+  }
+
+  @Test
+  public void testSendQRCodeSvg() throws Exception
+  {
+    final String contents = "http://ota-server:8080/ota-service/HTML/svg";
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameter(Constants.KEY_QRCODE_FORMAT)).thenReturn("svg");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HttpServletResponse response = mockResponse(out);
+    Utils.sendQRCode(request, response, contents, null, 200);
+    verify(response).setContentType(SvgEncoder.CONTENT_TYPE);
+    String svg = out.toString("UTF-8");
+    assertTrue(svg, svg.startsWith("<svg "));
+    assertTrue(svg, svg.contains("width=\"200\" height=\"200\""));
+
+    request = mock(HttpServletRequest.class);
+    when(request.getHeader("Accept")).thenReturn("image/svg+xml");
+    response = mockResponse(new ByteArrayOutputStream());
+    Utils.sendQRCode(request, response, contents, null, 200);
+    verify(response).setContentType(SvgEncoder.CONTENT_TYPE);
+    verify(response).addHeader("Vary", "Accept");
+  }
+
 }
@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlService.HTML_TEMPLATE_PATH_KEY;
+import static com.sap.prd.mobile.ios.ota.webapp.TestUtils.assertContains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRegistration;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+public class WarmUpListenerTest
+{
+
+  private static ServletContext mockContext()
+  {
+    ServletContext context = mock(ServletContext.class);
+    when(context.getContextPath()).thenReturn("/ota-service");
+    when(context.getInitParameter(HTML_TEMPLATE_PATH_KEY)).thenReturn("template.html");
+    for (String[] mapping : new String[][] { { "otaHtmlService", "/HTML/*" }, { "otaPlistService", "/PLIST/*" } }) {
+      ServletRegistration registration = mock(ServletRegistration.class);
+      Collection<String> mappings = new ArrayList<String>();
+      mappings.add(mapping[1]);
+      when(registration.getMappings()).thenReturn(mappings);
+      when(context.getServletRegistration(mapping[0])).thenReturn(registration);
+    }
+    return context;
+  }
+
+  @Test
+  public void testWarmUp() throws InterruptedException
+  {
+    ServletContext context = mockContext();
+    WarmUpListener listener = new WarmUpListener();
+    listener.contextInitialized(new ServletContextEvent(context));
+    assertTrue(listener.awaitWarmUp(60000));
+
+    verify(context).setAttribute(WarmUpListener.READY_ATTRIBUTE, Boolean.TRUE);
+    verify(context, never()).setAttribute(eq(WarmUpListener.FAILURE_ATTRIBUTE), anyString());
+    verify(context).setAttribute(Utils.class.getName() + ".urlPattern.otaHtmlService", "/HTML");
+    verify(context).setAttribute(Utils.class.getName() + ".urlPattern.otaPlistService", "/PLIST");
+  }
+
+  @Test
+  public void testWarmUpFailure() throws InterruptedException
+  {
+    ServletContext context = mock(ServletContext.class); //no servlet mappings
+    when(context.getContextPath()).thenReturn("/ota-service");
+    WarmUpListener listener = new WarmUpListener();
+    listener.contextInitialized(new ServletContextEvent(context));
+    assertTrue(listener.awaitWarmUp(60000));
+
+    verify(context, never()).setAttribute(WarmUpListener.READY_ATTRIBUTE, Boolean.TRUE);
+    verify(context).setAttribute(eq(WarmUpListener.FAILURE_ATTRIBUTE), anyString());
+  }
+
+  @Test
+  public void testUrlPatternFromAttribute()
+  {
+    ServletContext context = mock(ServletContext.class);
+    when(context.getAttribute(Utils.class.getName() + ".urlPattern.otaHtmlService")).thenReturn("/resolved");
+    assertEquals("/resolved", Utils.getServletMappingUrlPattern(context, "otaHtmlService"));
+  }
+
+  @Test
+  public void testStatus() throws ServletException, IOException
+  {
+    StatusServlet servlet = (StatusServlet) TestUtils.mockServletContextInitParameters(new StatusServlet(),
+          new String[0]);
+    ServletContext context = servlet.getServletContext();
+
+    StringWriter out = new StringWriter();
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(out));
+    servlet.doGet(mock(HttpServletRequest.class), response);
+    verify(response).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    assertContains("STARTING", out.toString());
+    assertFalse(WarmUpListener.isReady(context));
+
+    when(context.getAttribute(WarmUpListener.FAILURE_ATTRIBUTE)).thenReturn("java.io.IOException: broken");
+    out.getBuffer().setLength(0);
+    servlet.doGet(mock(HttpServletRequest.class), response);
+    verify(response, times(2)).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    assertContains("FAILED java.io.IOException: broken", out.toString());
+
+    when(context.getAttribute(WarmUpListener.READY_ATTRIBUTE)).thenReturn(Boolean.TRUE);
+    assertTrue(WarmUpListener.isReady(context));
+    out.getBuffer().setLength(0);
+    servlet.doGet(mock(HttpServletRequest.class), response);
+    verify(response).setStatus(HttpServletResponse.SC_OK);
+    assertContains("READY", out.toString());
+    assertContains("plistCache.hits=", out.toString());
+    assertContains("qrCodeBulkhead.rejected=", out.toString());
+  }
+
+}